@@ -0,0 +1,303 @@
+package us.hall.weka.smile;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Distance kernels on the jdk.incubator.vector API, a lane of the widest
+ * vector the hardware has per coordinate. They replace the sums of
+ * {@link UnrolledDistance} and keep the rest: missing values take the same
+ * slow path once a sum comes out NaN, and the bounded forms give up once
+ * the partial sum passes the limit, checked every four vectors.
+ * <p/>
+ * This source needs Java 16 or later and is built apart from the Java 8
+ * tree, with --add-modules jdk.incubator.vector, into the same package.
+ * Nothing refers to it directly: {@link UnrolledDistance#vectorized}
+ * loads it by name, and a runtime without the classes or the module gets
+ * the unrolled kernels instead. A wrapper only uses it when its kernel is
+ * set to vector.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public final class VectorDistance {
+
+  /** The widest vectors of doubles the hardware has */
+  static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  /** Coordinates between checks of a bounded sum */
+  static final int CHECK = 4 * SPECIES.length();
+
+  private VectorDistance() {
+  }
+
+  /**
+   * @see UnrolledDistance#squaredEuclidean(double[], double[], int)
+   */
+  static double squaredEuclidean(double[] q, double[] data, int off) {
+    int d = q.length;
+    int m = SPECIES.loopBound(d);
+    DoubleVector s = DoubleVector.zero(SPECIES);
+    for (int j = 0; j < m; j += SPECIES.length()) {
+      DoubleVector t = DoubleVector.fromArray(SPECIES, q, j).sub(DoubleVector.fromArray(SPECIES, data, off + j));
+      s = t.fma(t, s);
+    }
+    double sum = s.reduceLanes(VectorOperators.ADD);
+    for (int j = m; j < d; j++) {
+      double t = q[j] - data[off + j];
+      sum += t * t;
+    }
+    return sum;
+  }
+
+  /**
+   * @see UnrolledDistance#squaredEuclidean(double[], double[], int, double)
+   */
+  static double squaredEuclidean(double[] q, double[] data, int off, double limit) {
+    int d = q.length;
+    int m = SPECIES.loopBound(d);
+    DoubleVector s = DoubleVector.zero(SPECIES);
+    for (int j = 0; j < m; j += SPECIES.length()) {
+      DoubleVector t = DoubleVector.fromArray(SPECIES, q, j).sub(DoubleVector.fromArray(SPECIES, data, off + j));
+      s = t.fma(t, s);
+      if ((j + SPECIES.length()) % CHECK == 0 && s.reduceLanes(VectorOperators.ADD) > limit) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    double sum = s.reduceLanes(VectorOperators.ADD);
+    for (int j = m; j < d; j++) {
+      double t = q[j] - data[off + j];
+      sum += t * t;
+    }
+    return sum;
+  }
+
+  /**
+   * @see UnrolledDistance#manhattan(double[], double[], int)
+   */
+  static double manhattan(double[] q, double[] data, int off) {
+    int d = q.length;
+    int m = SPECIES.loopBound(d);
+    DoubleVector s = DoubleVector.zero(SPECIES);
+    for (int j = 0; j < m; j += SPECIES.length()) {
+      s = s.add(DoubleVector.fromArray(SPECIES, q, j).sub(DoubleVector.fromArray(SPECIES, data, off + j)).abs());
+    }
+    double sum = s.reduceLanes(VectorOperators.ADD);
+    for (int j = m; j < d; j++) {
+      sum += Math.abs(q[j] - data[off + j]);
+    }
+    return sum;
+  }
+
+  /**
+   * @see UnrolledDistance#manhattan(double[], double[], int, double)
+   */
+  static double manhattan(double[] q, double[] data, int off, double limit) {
+    int d = q.length;
+    int m = SPECIES.loopBound(d);
+    DoubleVector s = DoubleVector.zero(SPECIES);
+    for (int j = 0; j < m; j += SPECIES.length()) {
+      s = s.add(DoubleVector.fromArray(SPECIES, q, j).sub(DoubleVector.fromArray(SPECIES, data, off + j)).abs());
+      if ((j + SPECIES.length()) % CHECK == 0 && s.reduceLanes(VectorOperators.ADD) > limit) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    double sum = s.reduceLanes(VectorOperators.ADD);
+    for (int j = m; j < d; j++) {
+      sum += Math.abs(q[j] - data[off + j]);
+    }
+    return sum;
+  }
+
+  /**
+   * @see UnrolledDistance#chebyshev(double[], double[], int)
+   */
+  static double chebyshev(double[] q, double[] data, int off) {
+    return chebyshev(q, data, off, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * @see UnrolledDistance#chebyshev(double[], double[], int, double)
+   */
+  static double chebyshev(double[] q, double[] data, int off, double limit) {
+    int d = q.length;
+    int m = SPECIES.loopBound(d);
+    DoubleVector s = DoubleVector.zero(SPECIES);
+    for (int j = 0; j < m; j += SPECIES.length()) {
+      DoubleVector t = DoubleVector.fromArray(SPECIES, q, j).sub(DoubleVector.fromArray(SPECIES, data, off + j)).abs();
+      // the comparison is false for NaN, which skips missing coordinates
+      VectorMask<Double> greater = t.compare(VectorOperators.GT, s);
+      s = s.blend(t, greater);
+      if ((j + SPECIES.length()) % CHECK == 0 && s.reduceLanes(VectorOperators.MAX) > limit) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    double max = s.reduceLanes(VectorOperators.MAX);
+    for (int j = m; j < d; j++) {
+      double t = Math.abs(q[j] - data[off + j]);
+      max = t > max ? t : max;
+    }
+    return max;
+  }
+
+  /**
+   * Euclidean distance.
+   */
+  public static class Euclidean extends UnrolledDistance.Euclidean {
+
+    private static final long serialVersionUID = 5920738214558379047L;
+
+    @Override
+    public double d(double[] q, double[] data, int off) {
+      double sum = VectorDistance.squaredEuclidean(q, data, off);
+      if (Double.isNaN(sum)) {
+        sum = missing(q, data, off, 2);
+      }
+      return Math.sqrt(sum);
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off, double bound) {
+      double sum = VectorDistance.squaredEuclidean(q, data, off, limit(bound, 2));
+      if (Double.isNaN(sum)) {
+        sum = missing(q, data, off, 2);
+      }
+      return Math.sqrt(sum);
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double[] out, int outOff) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        double sum = VectorDistance.squaredEuclidean(q, data, off);
+        if (Double.isNaN(sum)) {
+          sum = missing(q, data, off, 2);
+        }
+        out[outOff++] = Math.sqrt(sum);
+      }
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double bound, double[] out) {
+      int d = q.length;
+      double limit = limit(bound, 2);
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        double sum = VectorDistance.squaredEuclidean(q, data, off, limit);
+        if (Double.isNaN(sum)) {
+          sum = missing(q, data, off, 2);
+        }
+        out[i - from] = Math.sqrt(sum);
+      }
+    }
+  }
+
+  /**
+   * Manhattan distance.
+   */
+  public static class Manhattan extends UnrolledDistance.Manhattan {
+
+    private static final long serialVersionUID = -2263480410526911578L;
+
+    @Override
+    public double d(double[] q, double[] data, int off) {
+      double sum = VectorDistance.manhattan(q, data, off);
+      return Double.isNaN(sum) ? missing(q, data, off, 1) : sum;
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off, double bound) {
+      double sum = VectorDistance.manhattan(q, data, off, bound);
+      return Double.isNaN(sum) ? missing(q, data, off, 1) : sum;
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double[] out, int outOff) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        double sum = VectorDistance.manhattan(q, data, off);
+        out[outOff++] = Double.isNaN(sum) ? missing(q, data, off, 1) : sum;
+      }
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double bound, double[] out) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        double sum = VectorDistance.manhattan(q, data, off, bound);
+        out[i - from] = Double.isNaN(sum) ? missing(q, data, off, 1) : sum;
+      }
+    }
+  }
+
+  /**
+   * Chebyshev distance.
+   */
+  public static class Chebyshev extends UnrolledDistance.Chebyshev {
+
+    private static final long serialVersionUID = 7381965320185735163L;
+
+    @Override
+    public double d(double[] q, double[] data, int off) {
+      return VectorDistance.chebyshev(q, data, off);
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off, double bound) {
+      return VectorDistance.chebyshev(q, data, off, bound);
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double[] out, int outOff) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        out[outOff++] = VectorDistance.chebyshev(q, data, off);
+      }
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double bound, double[] out) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        out[i - from] = VectorDistance.chebyshev(q, data, off, bound);
+      }
+    }
+  }
+
+  /**
+   * Minkowski distance of order p. Orders 1 and 2 use the vector Manhattan
+   * and Euclidean sums, higher orders the scalar sum of powers.
+   */
+  public static class Minkowski extends UnrolledDistance.Minkowski {
+
+    private static final long serialVersionUID = -4419637351702833206L;
+
+    /**
+     * @param p the order, at least 1
+     */
+    public Minkowski(int p) {
+      super(p);
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off) {
+      double sum = p == 1 ? VectorDistance.manhattan(q, data, off)
+        : p == 2 ? VectorDistance.squaredEuclidean(q, data, off) : power(q, data, off);
+      if (Double.isNaN(sum)) {
+        sum = missing(q, data, off, p);
+      }
+      return p == 1 ? sum : p == 2 ? Math.sqrt(sum) : Math.pow(sum, 1.0 / p);
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off, double bound) {
+      double limit = limit(bound, p);
+      double sum = p == 1 ? VectorDistance.manhattan(q, data, off, limit)
+        : p == 2 ? VectorDistance.squaredEuclidean(q, data, off, limit) : power(q, data, off, limit);
+      if (Double.isNaN(sum)) {
+        sum = missing(q, data, off, p);
+      }
+      return p == 1 ? sum : p == 2 ? Math.sqrt(sum) : Math.pow(sum, 1.0 / p);
+    }
+  }
+}
@@ -0,0 +1,343 @@
+package us.hall.weka.smile;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import us.hall.weka.smile.data.InstancesMatrix;
+
+/**
+ * Squared Euclidean distances between the rows of a dataset computed as
+ * ||x||^2 + ||y||^2 - 2 x.y, which turns all pairs work into the product of
+ * the data with its transpose. The row norms are computed once, and the
+ * dot products are taken a tile of rows at a time, two rows against two
+ * rows over a block of coordinates, so each tile is reused from cache
+ * instead of streamed from memory for every pair. Tiles of all pairs are
+ * spread over the fork-join common pool.
+ * <p/>
+ * The norm form loses precision to cancellation when two points are close
+ * compared to their length, so results are not those of the direct
+ * kernels of {@link UnrolledDistance}. {@link #slack(int, int)} bounds the
+ * difference: a caller that has to decide a pair exactly against a
+ * threshold recomputes only the pairs within the slack of it. Missing
+ * coordinates make the result NaN, which also calls for the direct
+ * kernels.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class BlockedEuclidean {
+
+  /** Rows on each side of a tile */
+  public static final int TILE = 64;
+
+  /**
+   * Dimension from which a tile beats the direct kernels over the same
+   * pairs once the passes over the tile to use it are counted
+   */
+  public static final int MIN_DIMENSION = 8;
+
+  /** Coordinates per pass over a tile */
+  static final int DEPTH = 256;
+
+  /** Rows from which tiles and norms are computed in parallel */
+  static final int PARALLEL_THRESHOLD = 1024;
+
+  /** Unit roundoff of double */
+  static final double UNIT = 0x1p-53;
+
+  /** The rows, row i at i * d */
+  final double[] values;
+
+  /** Number of rows */
+  final int n;
+
+  /** Dimension */
+  final int d;
+
+  /** Squared norm of each row */
+  final double[] norms;
+
+  /** Relative error bound of a distance, see slack */
+  final double error;
+
+  /**
+   * Computes the row norms of row major data, which is not copied.
+   *
+   * @param values the rows, row i at i * d
+   * @param n number of rows
+   * @param d dimension
+   */
+  public BlockedEuclidean(double[] values, int n, int d) {
+    this.values = values;
+    this.n = n;
+    this.d = d;
+    norms = new double[n];
+    IntStream rows = IntStream.range(0, n);
+    if (n >= PARALLEL_THRESHOLD) {
+      rows = rows.parallel();
+    }
+    rows.forEach(i -> norms[i] = squaredNorm(values, i * d, d));
+    // dot product and norms each within d units of their magnitude, plus
+    // the roundings of the final sum, doubled to cover the direct kernel
+    error = (4.0 * d + 8.0) * UNIT;
+  }
+
+  /**
+   * Computes the row norms of a matrix.
+   *
+   * @param matrix the rows
+   */
+  public BlockedEuclidean(InstancesMatrix matrix) {
+    this(matrix.values(), matrix.numRows(), matrix.numColumns());
+  }
+
+  /**
+   * @param x holds the point
+   * @param off position of the point in x
+   * @param d dimension
+   * @return the squared norm of the point
+   */
+  public static double squaredNorm(double[] x, int off, int d) {
+    double s0 = 0.0, s1 = 0.0;
+    int j = 0;
+    for (; j + 1 < d; j += 2) {
+      double t0 = x[off + j];
+      double t1 = x[off + j + 1];
+      s0 += t0 * t0;
+      s1 += t1 * t1;
+    }
+    if (j < d) {
+      double t = x[off + j];
+      s0 += t * t;
+    }
+    return s0 + s1;
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int size() {
+    return n;
+  }
+
+  /**
+   * @return the dimension
+   */
+  public int dimension() {
+    return d;
+  }
+
+  /**
+   * @param i a row
+   * @return its squared norm
+   */
+  public double norm(int i) {
+    return norms[i];
+  }
+
+  /**
+   * Bound on the difference between the squared distance of rows i and j
+   * computed here and by the direct kernel.
+   *
+   * @param i a row
+   * @param j another row
+   * @return the bound
+   */
+  public double slack(int i, int j) {
+    return error * (norms[i] + norms[j]);
+  }
+
+  /**
+   * As {@link #slack(int, int)} for an outside query.
+   *
+   * @param qNorm squared norm of the query
+   * @param j a row
+   * @return the bound
+   */
+  public double slack(double qNorm, int j) {
+    return error * (qNorm + norms[j]);
+  }
+
+  /**
+   * Squared distances between rows [aFrom, aTo) and rows [bFrom, bTo).
+   *
+   * @param aFrom first row of the tile
+   * @param aTo end of the rows of the tile
+   * @param bFrom first column of the tile
+   * @param bTo end of the columns of the tile
+   * @param out receives the distance between rows i and j at
+   *        (i - aFrom) * (bTo - bFrom) + j - bFrom
+   */
+  public void squaredDistances(int aFrom, int aTo, int bFrom, int bTo, double[] out) {
+    int w = bTo - bFrom;
+    Arrays.fill(out, 0, (aTo - aFrom) * w, 0.0);
+    for (int k0 = 0; k0 < d; k0 += DEPTH) {
+      dots(aFrom, aTo, bFrom, bTo, k0, Math.min(d, k0 + DEPTH), out);
+    }
+    for (int i = aFrom, o = 0; i < aTo; i++) {
+      double ni = norms[i];
+      for (int j = bFrom; j < bTo; j++, o++) {
+        double s = ni + norms[j] - 2.0 * out[o];
+        out[o] = s < 0.0 ? 0.0 : s;
+      }
+    }
+  }
+
+  /**
+   * Adds the dot products of the tile over coordinates [k0, k1) to out,
+   * two rows by four columns at a time so each value loaded is used two or
+   * four times.
+   */
+  void dots(int aFrom, int aTo, int bFrom, int bTo, int k0, int k1, double[] out) {
+    double[] x = values;
+    int w = bTo - bFrom;
+    int i = aFrom;
+    for (; i + 1 < aTo; i += 2) {
+      int a0 = i * d, a1 = a0 + d;
+      int o0 = (i - aFrom) * w - bFrom, o1 = o0 + w;
+      int j = bFrom;
+      for (; j + 3 < bTo; j += 4) {
+        int b0 = j * d, b1 = b0 + d, b2 = b1 + d, b3 = b2 + d;
+        double s00 = 0.0, s01 = 0.0, s02 = 0.0, s03 = 0.0;
+        double s10 = 0.0, s11 = 0.0, s12 = 0.0, s13 = 0.0;
+        for (int k = k0; k < k1; k++) {
+          double x0 = x[a0 + k];
+          double x1 = x[a1 + k];
+          double y0 = x[b0 + k];
+          double y1 = x[b1 + k];
+          double y2 = x[b2 + k];
+          double y3 = x[b3 + k];
+          s00 += x0 * y0;
+          s01 += x0 * y1;
+          s02 += x0 * y2;
+          s03 += x0 * y3;
+          s10 += x1 * y0;
+          s11 += x1 * y1;
+          s12 += x1 * y2;
+          s13 += x1 * y3;
+        }
+        out[o0 + j] += s00;
+        out[o0 + j + 1] += s01;
+        out[o0 + j + 2] += s02;
+        out[o0 + j + 3] += s03;
+        out[o1 + j] += s10;
+        out[o1 + j + 1] += s11;
+        out[o1 + j + 2] += s12;
+        out[o1 + j + 3] += s13;
+      }
+      for (; j < bTo; j++) {
+        int b0 = j * d;
+        double s0 = 0.0, s1 = 0.0;
+        for (int k = k0; k < k1; k++) {
+          double y = x[b0 + k];
+          s0 += x[a0 + k] * y;
+          s1 += x[a1 + k] * y;
+        }
+        out[o0 + j] += s0;
+        out[o1 + j] += s1;
+      }
+    }
+    if (i < aTo) {
+      int a0 = i * d;
+      int o0 = (i - aFrom) * w - bFrom;
+      for (int j = bFrom; j < bTo; j++) {
+        int b0 = j * d;
+        double s = 0.0;
+        for (int k = k0; k < k1; k++) {
+          s += x[a0 + k] * x[b0 + k];
+        }
+        out[o0 + j] += s;
+      }
+    }
+  }
+
+  /**
+   * Squared distances from an outside query to rows [from, to), four rows
+   * at a time against each coordinate of the query.
+   *
+   * @param q the query, of length dimension()
+   * @param qNorm squared norm of the query
+   * @param from first row
+   * @param to end of the rows
+   * @param out receives the distance to row j at j - from
+   */
+  public void squaredDistances(double[] q, double qNorm, int from, int to, double[] out) {
+    double[] x = values;
+    int j = from;
+    for (; j + 3 < to; j += 4) {
+      int b0 = j * d, b1 = b0 + d, b2 = b1 + d, b3 = b2 + d;
+      double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+      for (int k = 0; k < q.length; k++) {
+        double t = q[k];
+        s0 += t * x[b0 + k];
+        s1 += t * x[b1 + k];
+        s2 += t * x[b2 + k];
+        s3 += t * x[b3 + k];
+      }
+      int o = j - from;
+      out[o] = distance(qNorm, j, s0);
+      out[o + 1] = distance(qNorm, j + 1, s1);
+      out[o + 2] = distance(qNorm, j + 2, s2);
+      out[o + 3] = distance(qNorm, j + 3, s3);
+    }
+    for (; j < to; j++) {
+      int b0 = j * d;
+      double s = 0.0;
+      for (int k = 0; k < q.length; k++) {
+        s += q[k] * x[b0 + k];
+      }
+      out[j - from] = distance(qNorm, j, s);
+    }
+  }
+
+  private double distance(double qNorm, int j, double dot) {
+    double s = qNorm + norms[j] - 2.0 * dot;
+    return s < 0.0 ? 0.0 : s;
+  }
+
+  /**
+   * Receives the tiles of {@link #forEachTile(boolean, TileVisitor)}.
+   */
+  public interface TileVisitor {
+
+    /**
+     * Called once per tile, from several threads at once for different
+     * tiles. The array is reused after the call returns.
+     *
+     * @param aFrom first row of the tile
+     * @param aTo end of the rows of the tile
+     * @param bFrom first column of the tile
+     * @param bTo end of the columns of the tile
+     * @param sq squared distances laid out as in
+     *        {@link BlockedEuclidean#squaredDistances(int, int, int, int, double[])}
+     */
+    void visit(int aFrom, int aTo, int bFrom, int bTo, double[] sq);
+  }
+
+  /**
+   * Computes every tile of the all pairs distances, tile rows in parallel.
+   *
+   * @param lower only the tiles on or below the diagonal, whose columns
+   *        come no later than their rows, for a visitor that fills in the
+   *        symmetric pairs itself
+   * @param visitor receives the tiles
+   */
+  public void forEachTile(boolean lower, TileVisitor visitor) {
+    int blocks = (n + TILE - 1) / TILE;
+    IntStream rows = IntStream.range(0, blocks);
+    if (n >= PARALLEL_THRESHOLD) {
+      rows = rows.parallel();
+    }
+    rows.forEach(a -> {
+      double[] sq = new double[TILE * TILE];
+      int aFrom = a * TILE;
+      int aTo = Math.min(n, aFrom + TILE);
+      int last = lower ? a : blocks - 1;
+      for (int b = 0; b <= last; b++) {
+        int bFrom = b * TILE;
+        int bTo = Math.min(n, bFrom + TILE);
+        squaredDistances(aFrom, aTo, bFrom, bTo, sq);
+        visitor.visit(aFrom, aTo, bFrom, bTo, sq);
+      }
+    });
+  }
+}
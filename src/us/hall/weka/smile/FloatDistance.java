@@ -0,0 +1,267 @@
+package us.hall.weka.smile;
+
+import java.io.Serializable;
+
+import smile.math.distance.Distance;
+import smile.math.distance.Metric;
+
+/**
+ * Single precision distance kernels. Points held as float[] take half the
+ * memory bandwidth of double[] in the distance loops, which dominate
+ * neighbor queries; sums are still accumulated in double, unrolled as in
+ * {@link UnrolledDistance}.
+ * <p/>
+ * Each SmileDistance wrapper hands out the matching kernel from
+ * {@link SmileDistance#getFloatDistance()}; other distances get a
+ * {@link Widened} one.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public abstract class FloatDistance implements Metric<float[]>, Serializable {
+
+  /** for serialization */
+  private static final long serialVersionUID = -1750286851815305049L;
+
+  /**
+   * @param x a point
+   * @param y another point of the same length
+   * @return the squared Euclidean distance between x and y
+   */
+  public static double squaredEuclidean(float[] x, float[] y) {
+    int n = x.length;
+    int m = n & ~3;
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    for (int j = 0; j < m; j += 4) {
+      double t0 = x[j] - y[j];
+      double t1 = x[j + 1] - y[j + 1];
+      double t2 = x[j + 2] - y[j + 2];
+      double t3 = x[j + 3] - y[j + 3];
+      s0 += t0 * t0;
+      s1 += t1 * t1;
+      s2 += t2 * t2;
+      s3 += t3 * t3;
+    }
+    for (int j = m; j < n; j++) {
+      double t = x[j] - y[j];
+      s0 += t * t;
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * @param x a point
+   * @param y another point of the same length
+   * @return the Manhattan distance between x and y
+   */
+  public static double manhattan(float[] x, float[] y) {
+    int n = x.length;
+    int m = n & ~3;
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    for (int j = 0; j < m; j += 4) {
+      s0 += Math.abs(x[j] - y[j]);
+      s1 += Math.abs(x[j + 1] - y[j + 1]);
+      s2 += Math.abs(x[j + 2] - y[j + 2]);
+      s3 += Math.abs(x[j + 3] - y[j + 3]);
+    }
+    for (int j = m; j < n; j++) {
+      s0 += Math.abs(x[j] - y[j]);
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * @param x a point
+   * @param y another point of the same length
+   * @return the Chebyshev distance between x and y
+   */
+  public static double chebyshev(float[] x, float[] y) {
+    int n = x.length;
+    int m = n & ~3;
+    float m0 = 0.0f, m1 = 0.0f, m2 = 0.0f, m3 = 0.0f;
+    for (int j = 0; j < m; j += 4) {
+      float t0 = Math.abs(x[j] - y[j]);
+      float t1 = Math.abs(x[j + 1] - y[j + 1]);
+      float t2 = Math.abs(x[j + 2] - y[j + 2]);
+      float t3 = Math.abs(x[j + 3] - y[j + 3]);
+      m0 = t0 > m0 ? t0 : m0;
+      m1 = t1 > m1 ? t1 : m1;
+      m2 = t2 > m2 ? t2 : m2;
+      m3 = t3 > m3 ? t3 : m3;
+    }
+    for (int j = m; j < n; j++) {
+      float t = Math.abs(x[j] - y[j]);
+      m0 = t > m0 ? t : m0;
+    }
+    return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+  }
+
+  /**
+   * Narrows a point to single precision.
+   *
+   * @param x the point
+   * @param dst destination of the same length, or null to allocate one
+   * @return dst holding x
+   */
+  public static float[] narrow(double[] x, float[] dst) {
+    if (dst == null) {
+      dst = new float[x.length];
+    }
+    for (int j = 0; j < x.length; j++) {
+      dst[j] = (float)x[j];
+    }
+    return dst;
+  }
+
+  /**
+   * Narrows row major points to single precision rows.
+   *
+   * @param values the points, row i at i * d
+   * @param n number of points
+   * @param d dimension
+   * @return one float[] per point
+   */
+  public static float[][] narrow(double[] values, int n, int d) {
+    float[][] rows = new float[n][d];
+    for (int i = 0, off = 0; i < n; i++, off += d) {
+      float[] r = rows[i];
+      for (int j = 0; j < d; j++) {
+        r[j] = (float)values[off + j];
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Euclidean distance.
+   */
+  public static class Euclidean extends FloatDistance {
+
+    private static final long serialVersionUID = 8452101848219458817L;
+
+    @Override
+    public double d(float[] x, float[] y) {
+      return Math.sqrt(squaredEuclidean(x, y));
+    }
+
+    @Override
+    public String toString() {
+      return "Euclidean distance (float)";
+    }
+  }
+
+  /**
+   * Manhattan distance.
+   */
+  public static class Manhattan extends FloatDistance {
+
+    private static final long serialVersionUID = -5349806281209924917L;
+
+    @Override
+    public double d(float[] x, float[] y) {
+      return manhattan(x, y);
+    }
+
+    @Override
+    public String toString() {
+      return "Manhattan distance (float)";
+    }
+  }
+
+  /**
+   * Chebyshev distance.
+   */
+  public static class Chebyshev extends FloatDistance {
+
+    private static final long serialVersionUID = 2309483107538306513L;
+
+    @Override
+    public double d(float[] x, float[] y) {
+      return chebyshev(x, y);
+    }
+
+    @Override
+    public String toString() {
+      return "Chebyshev distance (float)";
+    }
+  }
+
+  /**
+   * Minkowski distance of order p.
+   */
+  public static class Minkowski extends FloatDistance {
+
+    private static final long serialVersionUID = 6137412905611372417L;
+
+    /** The order, at least 1 */
+    final int p;
+
+    /**
+     * @param p the order, at least 1
+     */
+    public Minkowski(int p) {
+      if (p < 1) {
+        throw new IllegalArgumentException("Invalid Minkowski order: " + p);
+      }
+      this.p = p;
+    }
+
+    @Override
+    public double d(float[] x, float[] y) {
+      if (p == 1) {
+        return manhattan(x, y);
+      }
+      if (p == 2) {
+        return Math.sqrt(squaredEuclidean(x, y));
+      }
+      double sum = 0.0;
+      for (int j = 0; j < x.length; j++) {
+        sum += Math.pow(Math.abs(x[j] - y[j]), p);
+      }
+      return Math.pow(sum, 1.0 / p);
+    }
+
+    @Override
+    public String toString() {
+      return "Minkowski distance (float, p = " + p + ")";
+    }
+  }
+
+  /**
+   * A double precision distance over single precision points, widening
+   * both into new arrays on every call: the float kernel of a SmileDistance
+   * without one of its own. Slower than the kernels above, but the same
+   * distance, and a Metric only through them.
+   */
+  public static class Widened implements Distance<float[]>, Serializable {
+
+    private static final long serialVersionUID = -2877451830236412046L;
+
+    /** The double precision distance */
+    final Distance<double[]> distance;
+
+    /**
+     * @param distance the double precision distance
+     */
+    public Widened(Distance<double[]> distance) {
+      this.distance = distance;
+    }
+
+    @Override
+    public double d(float[] x, float[] y) {
+      return distance.d(widen(x), widen(y));
+    }
+
+    static double[] widen(float[] x) {
+      double[] w = new double[x.length];
+      for (int j = 0; j < x.length; j++) {
+        w[j] = x[j];
+      }
+      return w;
+    }
+
+    @Override
+    public String toString() {
+      return distance + " (float)";
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package us.hall.weka.smile;
+
+import java.io.Serializable;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import smile.math.distance.Distance;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.core.SelectedTag;
+import weka.core.Tag;
+import weka.core.Utils;
+
+/**
+ * Base of the SmileDistance wrappers, holding which kernel computes their
+ * distances, -K one of SmileDistance.TAGS_KERNEL:
+ * <ul>
+ * <li>smile, the Smile distance itself, pairwise</li>
+ * <li>unrolled, the UnrolledDistance kernel, the default</li>
+ * <li>vector, the jdk.incubator.vector kernel of VectorDistance, which
+ * needs Java 16 or later run with --add-modules jdk.incubator.vector and
+ * falls back to unrolled otherwise</li>
+ * </ul>
+ * getSmileDistance() returns the kernel chosen and the bulk distances go
+ * to it, so callers such as DBScan -A pick it up with the wrapper, e.g.
+ * -A "us.hall.weka.smile.SmileEuclideanDistance -K vector".
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public abstract class KernelDistance implements SmileDistance, OptionHandler, Serializable {
+
+  /** for serialization */
+  private static final long serialVersionUID = -5206419683126907463L;
+
+  /** The kernel, one of TAGS_KERNEL */
+  int kernel = KERNEL_UNROLLED;
+
+  /**
+   * @return the Smile distance of the wrapper
+   */
+  abstract Distance<double[]> smile();
+
+  /**
+   * @return the unrolled kernel of the wrapper
+   */
+  abstract UnrolledDistance unrolled();
+
+  /**
+   * @return the vector kernel of the wrapper, the unrolled one when the
+   *         runtime has none
+   */
+  abstract UnrolledDistance vector();
+
+  @Override
+  public Distance getSmileDistance() {
+    switch (kernel) {
+    case KERNEL_SMILE:
+      return smile();
+    case KERNEL_VECTOR:
+      return vector();
+    default:
+      return unrolled();
+    }
+  }
+
+  /**
+   * @return the kernel of the bulk distances, null for the Smile distance
+   */
+  UnrolledDistance kernel() {
+    return kernel == KERNEL_SMILE ? null : kernel == KERNEL_VECTOR ? vector() : unrolled();
+  }
+
+  @Override
+  public void distances(double[] q, double[] data, int d, int from, int to, double[] out) {
+    UnrolledDistance k = kernel();
+    if (k == null) {
+      SmileDistance.super.distances(q, data, d, from, to, out);
+    } else {
+      k.distances(q, data, d, from, to, out);
+    }
+  }
+
+  @Override
+  public void distances(double[] q, double[] data, int d, int from, int to, double bound, double[] out) {
+    UnrolledDistance k = kernel();
+    if (k == null) {
+      SmileDistance.super.distances(q, data, d, from, to, bound, out);
+    } else {
+      k.distances(q, data, d, from, to, bound, out);
+    }
+  }
+
+  @Override
+  public double distance(double[] x, double[] y, double bound) {
+    UnrolledDistance k = kernel();
+    if (k == null) {
+      return SmileDistance.super.distance(x, y, bound);
+    }
+    UnrolledDistance.checkLength(x, y);
+    return k.d(x, y, 0, bound);
+  }
+
+  @Override
+  public void distances(double[] a, int aFrom, int aTo, double[] b, int bFrom, int bTo, int d, double[] out) {
+    UnrolledDistance k = kernel();
+    if (k == null) {
+      SmileDistance.super.distances(a, aFrom, aTo, b, bFrom, bTo, d, out);
+    } else {
+      k.distances(a, aFrom, aTo, b, bFrom, bTo, d, out);
+    }
+  }
+
+  /**
+   * @return the kernel computing the distances
+   */
+  public SelectedTag getKernel() {
+    return new SelectedTag(kernel, TAGS_KERNEL);
+  }
+
+  /**
+   * @param value the kernel computing the distances
+   */
+  public void setKernel(SelectedTag value) {
+    if (value.getTags() == TAGS_KERNEL) {
+      kernel = value.getSelectedTag().getID();
+    }
+  }
+
+  /**
+   * @return tip text for this property suitable for displaying in the
+   *         explorer/experimenter gui
+   */
+  public String kernelTipText() {
+    return "The code computing the distances: Smile's own, the unrolled kernel, "
+      + "or the Vector API kernel, which falls back to unrolled without Java 16 "
+      + "and --add-modules jdk.incubator.vector.";
+  }
+
+  @Override
+  public Enumeration<Option> listOptions() {
+    Vector<Option> result = new Vector<Option>();
+    result.addElement(new Option("\tThe kernel computing the distances.\n"
+      + "\t(default: unrolled)", "K", 1, "-K " + Tag.toOptionSynopsis(TAGS_KERNEL)));
+    return result.elements();
+  }
+
+  @Override
+  public void setOptions(String[] options) throws Exception {
+    String temp = Utils.getOption('K', options);
+    if (temp.length() > 0) {
+      setKernel(new SelectedTag(temp, TAGS_KERNEL));
+    } else {
+      kernel = KERNEL_UNROLLED;
+    }
+    Utils.checkForRemainingOptions(options);
+  }
+
+  @Override
+  public String[] getOptions() {
+    if (kernel == KERNEL_UNROLLED) {
+      return new String[0];
+    }
+    return new String[] { "-K", getKernel().getSelectedTag().getIDStr() };
+  }
+}
@@ -1,19 +1,33 @@
 package us.hall.weka.smile;
 
-import java.io.Serializable;
-
 import smile.math.distance.Distance;
 import smile.math.distance.ChebyshevDistance;
 import weka.core.Instances;
 
 
 /**
- * Weka wrapper class for Smile ChebyshevDistance class
+ * Weka wrapper class for Smile ChebyshevDistance class, computed by the
+ * unrolled kernel of UnrolledDistance by default, see KernelDistance,
  * that will work with Weka ClassDiscovery
  */
-public class SmileChebyshevDistance implements SmileDistance, Serializable {
+public class SmileChebyshevDistance extends KernelDistance {
 	
+	/** for serialization */
+	private static final long serialVersionUID = 6770502638967457350L;
+
 	Instances data;
+
+	/** The Smile distance, for -K smile */
+	static final ChebyshevDistance SMILE = new ChebyshevDistance();
+
+	/** Kernel of the bulk distances */
+	static final UnrolledDistance.Chebyshev KERNEL = new UnrolledDistance.Chebyshev();
+
+	/** The Vector API kernel, KERNEL where the runtime has none */
+	static final UnrolledDistance VECTOR = UnrolledDistance.vectorized(KERNEL);
+
+	/** Kernel of the float storage mode */
+	static final FloatDistance.Chebyshev FLOAT = new FloatDistance.Chebyshev();
 	
   /**
    * Constructs an Euclidean Distance object, Instances must be still set.
@@ -31,7 +45,23 @@ public class SmileChebyshevDistance implements SmileDistance, Serializable {
     this.data = data;
   }	
   
-  public Distance getSmileDistance() {
-  	return new ChebyshevDistance();
+  @Override
+  Distance<double[]> smile() {
+  	return SMILE;
+  }
+
+  @Override
+  UnrolledDistance unrolled() {
+  	return KERNEL;
+  }
+
+  @Override
+  UnrolledDistance vector() {
+  	return VECTOR;
+  }
+
+  @Override
+  public Distance<float[]> getFloatDistance() {
+  	return FLOAT;
   }
 }
\ No newline at end of file
@@ -1,8 +1,117 @@
 package us.hall.weka.smile;
 
 import smile.math.distance.Distance;
+import weka.core.Tag;
 
 public interface SmileDistance {
 
+	/** Kernel: the Smile distance itself */
+	public static final int KERNEL_SMILE = 0;
+
+	/** Kernel: UnrolledDistance, the default */
+	public static final int KERNEL_UNROLLED = 1;
+
+	/** Kernel: VectorDistance where the runtime has it, else unrolled */
+	public static final int KERNEL_VECTOR = 2;
+
+	/** Kernels a wrapper can compute its distances with, see KernelDistance */
+	public static final Tag[] TAGS_KERNEL = {
+		new Tag(KERNEL_SMILE, "smile", "Smile distance"),
+		new Tag(KERNEL_UNROLLED, "unrolled", "Unrolled kernel"),
+		new Tag(KERNEL_VECTOR, "vector", "Vector API kernel")
+	};
+
 	public Distance getSmileDistance();
+
+	/**
+	 * The same distance over single precision points. The wrappers have
+	 * kernels of their own; this default widens the points for the double
+	 * precision distance, so any SmileDistance has one.
+	 *
+	 * @return the float kernel
+	 */
+	@SuppressWarnings("unchecked")
+	public default Distance<float[]> getFloatDistance() {
+		return new FloatDistance.Widened(getSmileDistance());
+	}
+
+	/**
+	 * Distances from one query to a block of rows. This default makes a
+	 * pairwise call per row; the wrappers override it with a tight loop.
+	 *
+	 * @param q the query, of length d
+	 * @param data row major points, row i at i * d
+	 * @param d dimension
+	 * @param from first row
+	 * @param to end of the rows
+	 * @param out receives the distance to row i at i - from
+	 */
+	@SuppressWarnings("unchecked")
+	public default void distances(double[] q, double[] data, int d, int from, int to, double[] out) {
+		Distance<double[]> dist = getSmileDistance();
+		double[] y = new double[d];
+		for (int i = from; i < to; i++) {
+			System.arraycopy(data, i * d, y, 0, d);
+			out[i - from] = dist.d(q, y);
+		}
+	}
+
+	/**
+	 * Bounded form of the block distances, for callers that only need the
+	 * rows within some distance. A wrapper may stop summing a row once it
+	 * is known to lie beyond the bound and report it as infinite; rows
+	 * within the bound get their exact distance. This default computes
+	 * every distance in full.
+	 *
+	 * @param q the query, of length d
+	 * @param data row major points, row i at i * d
+	 * @param d dimension
+	 * @param from first row
+	 * @param to end of the rows
+	 * @param bound the distance past which a row is not wanted
+	 * @param out receives the distance to row i at i - from
+	 */
+	public default void distances(double[] q, double[] data, int d, int from, int to, double bound, double[] out) {
+		distances(q, data, d, from, to, out);
+	}
+
+	/**
+	 * Bounded distance between two points, see
+	 * {@link #distances(double[], double[], int, int, int, double, double[])}.
+	 *
+	 * @param x a point
+	 * @param y another point of the same length
+	 * @param bound the distance past which it is not wanted
+	 * @return the distance, or anything greater than bound once it is known
+	 *         to exceed it
+	 */
+	@SuppressWarnings("unchecked")
+	public default double distance(double[] x, double[] y, double bound) {
+		return ((Distance<double[]>)getSmileDistance()).d(x, y);
+	}
+
+	/**
+	 * Distance tile between two blocks of rows, see
+	 * {@link #distances(double[], double[], int, int, int, double[])}.
+	 *
+	 * @param a the first rows, row major
+	 * @param aFrom first row of a
+	 * @param aTo end of the rows of a
+	 * @param b the second rows, row major
+	 * @param bFrom first row of b
+	 * @param bTo end of the rows of b
+	 * @param d dimension
+	 * @param out receives the distance between rows i and j at
+	 *        (i - aFrom) * (bTo - bFrom) + j - bFrom
+	 */
+	public default void distances(double[] a, int aFrom, int aTo, double[] b, int bFrom, int bTo, int d, double[] out) {
+		int w = bTo - bFrom;
+		double[] x = new double[d];
+		double[] row = new double[w];
+		for (int i = aFrom; i < aTo; i++) {
+			System.arraycopy(a, i * d, x, 0, d);
+			distances(x, b, d, bFrom, bTo, row);
+			System.arraycopy(row, 0, out, (i - aFrom) * w, w);
+		}
+	}
 }
\ No newline at end of file
@@ -1,19 +1,34 @@
 package us.hall.weka.smile;
 
-import java.io.Serializable;
-
 import smile.math.distance.Distance;
 import smile.math.distance.EuclideanDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
 import weka.core.Instances;
 
 
 /**
- * Weka wrapper class for Smile EuclideanDistance class
+ * Weka wrapper class for Smile EuclideanDistance class, computed by the
+ * unrolled kernel of UnrolledDistance by default, see KernelDistance,
  * that will work with Weka ClassDiscovery
  */
-public class SmileEuclideanDistance implements SmileDistance, Serializable {
+public class SmileEuclideanDistance extends KernelDistance {
 	
+	/** for serialization */
+	private static final long serialVersionUID = 5680477231652609397L;
+
 	Instances data;
+
+	/** The Smile distance, for -K smile */
+	static final EuclideanDistance SMILE = new EuclideanDistance();
+
+	/** Kernel of the bulk distances */
+	static final UnrolledDistance.Euclidean KERNEL = new UnrolledDistance.Euclidean();
+
+	/** The Vector API kernel, KERNEL where the runtime has none */
+	static final UnrolledDistance VECTOR = UnrolledDistance.vectorized(KERNEL);
+
+	/** Kernel of the float storage mode */
+	static final FloatDistance.Euclidean FLOAT = new FloatDistance.Euclidean();
 	
   /**
    * Constructs an Euclidean Distance object, Instances must be still set.
@@ -31,7 +46,34 @@ public class SmileEuclideanDistance implements SmileDistance, Serializable {
     this.data = data;
   }	
   
-  public Distance getSmileDistance() {
-  	return new EuclideanDistance();
+  @Override
+  Distance<double[]> smile() {
+  	return SMILE;
+  }
+
+  @Override
+  UnrolledDistance unrolled() {
+  	return KERNEL;
+  }
+
+  @Override
+  UnrolledDistance vector() {
+  	return VECTOR;
+  }
+
+  @Override
+  public Distance<float[]> getFloatDistance() {
+  	return FLOAT;
+  }
+
+  /**
+   * The blocked engine for many distances among the rows of a matrix, its
+   * row norms computed once here.
+   *
+   * @param matrix the points
+   * @return the engine over the rows
+   */
+  public BlockedEuclidean pairwise(InstancesMatrix matrix) {
+  	return new BlockedEuclidean(matrix);
   }
 }
\ No newline at end of file
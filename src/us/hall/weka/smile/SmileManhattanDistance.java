@@ -1,19 +1,33 @@
 package us.hall.weka.smile;
 
-import java.io.Serializable;
-
 import smile.math.distance.Distance;
 import smile.math.distance.ManhattanDistance;
 import weka.core.Instances;
 
 
 /**
- * Weka wrapper class for Smile ManhattanDistance class
+ * Weka wrapper class for Smile ManhattanDistance class, computed by the
+ * unrolled kernel of UnrolledDistance by default, see KernelDistance,
  * that will work with Weka ClassDiscovery
  */
-public class SmileManhattanDistance implements SmileDistance, Serializable {
+public class SmileManhattanDistance extends KernelDistance {
 	
+	/** for serialization */
+	private static final long serialVersionUID = -6780394408126172849L;
+
 	Instances data;
+
+	/** The Smile distance, for -K smile */
+	static final ManhattanDistance SMILE = new ManhattanDistance();
+
+	/** Kernel of the bulk distances */
+	static final UnrolledDistance.Manhattan KERNEL = new UnrolledDistance.Manhattan();
+
+	/** The Vector API kernel, KERNEL where the runtime has none */
+	static final UnrolledDistance VECTOR = UnrolledDistance.vectorized(KERNEL);
+
+	/** Kernel of the float storage mode */
+	static final FloatDistance.Manhattan FLOAT = new FloatDistance.Manhattan();
 	
   /**
    * Constructs a Manhattan Distance object, Instances must be still set.
@@ -31,7 +45,23 @@ public class SmileManhattanDistance implements SmileDistance, Serializable {
     this.data = data;
   }	
   
-  public Distance getSmileDistance() {
-  	return new ManhattanDistance();
+  @Override
+  Distance<double[]> smile() {
+  	return SMILE;
+  }
+
+  @Override
+  UnrolledDistance unrolled() {
+  	return KERNEL;
+  }
+
+  @Override
+  UnrolledDistance vector() {
+  	return VECTOR;
+  }
+
+  @Override
+  public Distance<float[]> getFloatDistance() {
+  	return FLOAT;
   }
 }
\ No newline at end of file
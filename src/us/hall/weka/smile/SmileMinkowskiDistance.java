@@ -1,19 +1,33 @@
 package us.hall.weka.smile;
 
-import java.io.Serializable;
-
 import smile.math.distance.Distance;
 import smile.math.distance.MinkowskiDistance;
 import weka.core.Instances;
 
 
 /**
- * Weka wrapper class for Smile MinkowskiDistance class
+ * Weka wrapper class for Smile MinkowskiDistance class, computed by the
+ * unrolled kernel of UnrolledDistance by default, see KernelDistance,
  * that will work with Weka ClassDiscovery
  */
-public class SmileMinkowskiDistance implements SmileDistance, Serializable {
+public class SmileMinkowskiDistance extends KernelDistance {
 	
+	/** for serialization */
+	private static final long serialVersionUID = -4148133559662554674L;
+
 	Instances data;
+
+	/** The Smile distance, for -K smile */
+	static final MinkowskiDistance SMILE = new MinkowskiDistance(1);
+
+	/** Kernel of the bulk distances */
+	static final UnrolledDistance.Minkowski KERNEL = new UnrolledDistance.Minkowski(1);
+
+	/** The Vector API kernel, KERNEL where the runtime has none */
+	static final UnrolledDistance VECTOR = UnrolledDistance.vectorized(KERNEL);
+
+	/** Kernel of the float storage mode */
+	static final FloatDistance.Minkowski FLOAT = new FloatDistance.Minkowski(1);
 	
   /**
    * Constructs an Minkowski Distance object, Instances must be still set.
@@ -31,7 +45,23 @@ public class SmileMinkowskiDistance implements SmileDistance, Serializable {
     this.data = data;
   }	
   
-  public Distance getSmileDistance() {
-  	return new MinkowskiDistance(1);
+  @Override
+  Distance<double[]> smile() {
+  	return SMILE;
+  }
+
+  @Override
+  UnrolledDistance unrolled() {
+  	return KERNEL;
+  }
+
+  @Override
+  UnrolledDistance vector() {
+  	return VECTOR;
+  }
+
+  @Override
+  public Distance<float[]> getFloatDistance() {
+  	return FLOAT;
   }
 }
\ No newline at end of file
@@ -0,0 +1,633 @@
+package us.hall.weka.smile;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import smile.math.distance.Metric;
+
+/**
+ * Double precision distance kernels unrolled over four independent
+ * accumulators. The Smile distances sum into one variable, so every add
+ * waits on the one before; split accumulators keep the floating point
+ * pipeline full and leave loops the JIT can vectorize. Sums are therefore
+ * associated differently and may differ from Smile in the last bits.
+ * <p/>
+ * Missing values are handled as Smile does: coordinates missing in either
+ * point are skipped and the sum is scaled up by the fraction skipped. That
+ * slower path only runs once the fast sum comes out NaN.
+ * <p/>
+ * The bounded forms serve callers that only need to know whether a point
+ * lies within some distance, a range radius or the current k-th nearest.
+ * They check the partial sum every 16 coordinates and give up, returning
+ * infinity, once it has passed the bound. Sums only grow, so a distance is
+ * abandoned only when the full one would have been beyond the bound too,
+ * and a distance within it is computed in full, exactly as unbounded.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public abstract class UnrolledDistance implements Metric<double[]>, Serializable {
+
+  /** for serialization */
+  private static final long serialVersionUID = 2739468061917437723L;
+
+  /**
+   * @param x a point
+   * @param y another point of the same length
+   * @return the squared Euclidean distance between x and y, NaN if a
+   *         coordinate is missing
+   */
+  public static double squaredEuclidean(double[] x, double[] y) {
+    return squaredEuclidean(x, y, 0);
+  }
+
+  /**
+   * Squared Euclidean distance from q to a point held in a larger array.
+   * The loop is bounded by q.length, which lets the JIT drop the range
+   * checks on q; indexing both sides by offset is markedly slower.
+   *
+   * @param q a point
+   * @param data holds the other point
+   * @param off position of the other point in data
+   * @return the squared Euclidean distance, NaN if a coordinate is missing
+   */
+  public static double squaredEuclidean(double[] q, double[] data, int off) {
+    int d = q.length;
+    int m = d & ~3;
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    for (int j = 0; j < m; j += 4) {
+      int p = off + j;
+      double t0 = q[j] - data[p];
+      double t1 = q[j + 1] - data[p + 1];
+      double t2 = q[j + 2] - data[p + 2];
+      double t3 = q[j + 3] - data[p + 3];
+      s0 += t0 * t0;
+      s1 += t1 * t1;
+      s2 += t2 * t2;
+      s3 += t3 * t3;
+    }
+    for (int j = m; j < d; j++) {
+      double t = q[j] - data[off + j];
+      s0 += t * t;
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * As {@link #squaredEuclidean(double[], double[], int)}, giving up once
+   * the sum passes limit.
+   *
+   * @param q a point
+   * @param data holds the other point
+   * @param off position of the other point in data
+   * @param limit the sum past which the distance is not wanted
+   * @return the squared Euclidean distance, infinity once it exceeds
+   *         limit, NaN if a coordinate is missing
+   */
+  public static double squaredEuclidean(double[] q, double[] data, int off, double limit) {
+    int d = q.length;
+    int m = d & ~3;
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    for (int j = 0; j < m; j += 4) {
+      int p = off + j;
+      double t0 = q[j] - data[p];
+      double t1 = q[j + 1] - data[p + 1];
+      double t2 = q[j + 2] - data[p + 2];
+      double t3 = q[j + 3] - data[p + 3];
+      s0 += t0 * t0;
+      s1 += t1 * t1;
+      s2 += t2 * t2;
+      s3 += t3 * t3;
+      if ((j & 12) == 12 && (s0 + s1) + (s2 + s3) > limit) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    for (int j = m; j < d; j++) {
+      double t = q[j] - data[off + j];
+      s0 += t * t;
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * @param x a point
+   * @param y another point of the same length
+   * @return the Manhattan distance between x and y, NaN if a coordinate
+   *         is missing
+   */
+  public static double manhattan(double[] x, double[] y) {
+    return manhattan(x, y, 0);
+  }
+
+  /**
+   * Manhattan distance from q to a point held in a larger array, see
+   * {@link #squaredEuclidean(double[], double[], int)}.
+   *
+   * @param q a point
+   * @param data holds the other point
+   * @param off position of the other point in data
+   * @return the Manhattan distance, NaN if a coordinate is missing
+   */
+  public static double manhattan(double[] q, double[] data, int off) {
+    int d = q.length;
+    int m = d & ~3;
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    for (int j = 0; j < m; j += 4) {
+      int p = off + j;
+      s0 += Math.abs(q[j] - data[p]);
+      s1 += Math.abs(q[j + 1] - data[p + 1]);
+      s2 += Math.abs(q[j + 2] - data[p + 2]);
+      s3 += Math.abs(q[j + 3] - data[p + 3]);
+    }
+    for (int j = m; j < d; j++) {
+      s0 += Math.abs(q[j] - data[off + j]);
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * As {@link #manhattan(double[], double[], int)}, giving up once the sum
+   * passes limit.
+   *
+   * @param q a point
+   * @param data holds the other point
+   * @param off position of the other point in data
+   * @param limit the sum past which the distance is not wanted
+   * @return the Manhattan distance, infinity once it exceeds limit, NaN if
+   *         a coordinate is missing
+   */
+  public static double manhattan(double[] q, double[] data, int off, double limit) {
+    int d = q.length;
+    int m = d & ~3;
+    double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+    for (int j = 0; j < m; j += 4) {
+      int p = off + j;
+      s0 += Math.abs(q[j] - data[p]);
+      s1 += Math.abs(q[j + 1] - data[p + 1]);
+      s2 += Math.abs(q[j + 2] - data[p + 2]);
+      s3 += Math.abs(q[j + 3] - data[p + 3]);
+      if ((j & 12) == 12 && (s0 + s1) + (s2 + s3) > limit) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    for (int j = m; j < d; j++) {
+      s0 += Math.abs(q[j] - data[off + j]);
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * @param x a point
+   * @param y another point of the same length
+   * @return the Chebyshev distance between x and y, over the coordinates
+   *         present in both
+   */
+  public static double chebyshev(double[] x, double[] y) {
+    return chebyshev(x, y, 0);
+  }
+
+  /**
+   * Chebyshev distance from q to a point held in a larger array, see
+   * {@link #squaredEuclidean(double[], double[], int)}.
+   *
+   * @param q a point
+   * @param data holds the other point
+   * @param off position of the other point in data
+   * @return the Chebyshev distance, over the coordinates present in both
+   */
+  public static double chebyshev(double[] q, double[] data, int off) {
+    int d = q.length;
+    int m = d & ~3;
+    double m0 = 0.0, m1 = 0.0, m2 = 0.0, m3 = 0.0;
+    for (int j = 0; j < m; j += 4) {
+      // comparisons are false for NaN, which skips missing coordinates
+      int p = off + j;
+      double t0 = Math.abs(q[j] - data[p]);
+      double t1 = Math.abs(q[j + 1] - data[p + 1]);
+      double t2 = Math.abs(q[j + 2] - data[p + 2]);
+      double t3 = Math.abs(q[j + 3] - data[p + 3]);
+      m0 = t0 > m0 ? t0 : m0;
+      m1 = t1 > m1 ? t1 : m1;
+      m2 = t2 > m2 ? t2 : m2;
+      m3 = t3 > m3 ? t3 : m3;
+    }
+    for (int j = m; j < d; j++) {
+      double t = Math.abs(q[j] - data[off + j]);
+      m0 = t > m0 ? t : m0;
+    }
+    return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+  }
+
+  /**
+   * As {@link #chebyshev(double[], double[], int)}, giving up once the
+   * distance passes limit.
+   *
+   * @param q a point
+   * @param data holds the other point
+   * @param off position of the other point in data
+   * @param limit the distance past which it is not wanted
+   * @return the Chebyshev distance, infinity once it exceeds limit
+   */
+  public static double chebyshev(double[] q, double[] data, int off, double limit) {
+    int d = q.length;
+    int m = d & ~3;
+    double m0 = 0.0, m1 = 0.0, m2 = 0.0, m3 = 0.0;
+    for (int j = 0; j < m; j += 4) {
+      int p = off + j;
+      double t0 = Math.abs(q[j] - data[p]);
+      double t1 = Math.abs(q[j + 1] - data[p + 1]);
+      double t2 = Math.abs(q[j + 2] - data[p + 2]);
+      double t3 = Math.abs(q[j + 3] - data[p + 3]);
+      m0 = t0 > m0 ? t0 : m0;
+      m1 = t1 > m1 ? t1 : m1;
+      m2 = t2 > m2 ? t2 : m2;
+      m3 = t3 > m3 ? t3 : m3;
+      if ((j & 12) == 12 && Math.max(Math.max(m0, m1), Math.max(m2, m3)) > limit) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    for (int j = m; j < d; j++) {
+      double t = Math.abs(q[j] - data[off + j]);
+      m0 = t > m0 ? t : m0;
+    }
+    return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+  }
+
+  /**
+   * The sum of |q - y|^p past which the distance is certainly beyond
+   * bound: bound^p, raised a few units in the last place for orders above
+   * 1 so that rounding the p-th root cannot bring it back within.
+   */
+  static double limit(double bound, int p) {
+    return p == 1 ? bound : Math.pow(bound, p) * (1.0 + 0x1p-48);
+  }
+
+  /**
+   * Sum of |q - y|^p over the coordinates present in both points, scaled
+   * by the number of coordinates over the number present, as Smile does.
+   */
+  static double missing(double[] q, double[] data, int off, int p) {
+    int count = 0;
+    double sum = 0.0;
+    for (int j = 0; j < q.length; j++) {
+      double u = q[j];
+      double v = data[off + j];
+      if (!Double.isNaN(u) && !Double.isNaN(v)) {
+        count++;
+        double t = Math.abs(u - v);
+        sum += p == 1 ? t : p == 2 ? t * t : Math.pow(t, p);
+      }
+    }
+    return count == 0 ? Double.NaN : q.length * sum / count;
+  }
+
+  /**
+   * The Vector API form of a kernel, VectorDistance, when this runtime has
+   * it. Those classes are built apart for Java 16 and later and need the
+   * jdk.incubator.vector module at run time, so they are loaded by name;
+   * when either is missing the kernel itself is returned.
+   *
+   * @param kernel an unrolled kernel
+   * @return the vector kernel computing the same distance, or kernel
+   */
+  public static UnrolledDistance vectorized(UnrolledDistance kernel) {
+    String name = UnrolledDistance.class.getPackage().getName() + ".VectorDistance";
+    try {
+      // initialized first, so a missing module fails here and not in use
+      Class.forName(name);
+      Class<?> c = Class.forName(name + "$" + kernel.getClass().getSimpleName());
+      if (kernel instanceof Minkowski) {
+        return (UnrolledDistance)c.getConstructor(int.class).newInstance(((Minkowski)kernel).p);
+      }
+      return (UnrolledDistance)c.getConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return kernel;
+    }
+  }
+
+  static void checkLength(double[] x, double[] y) {
+    if (x.length != y.length) {
+      throw new IllegalArgumentException(String.format("Arrays have different length: x[%d], y[%d]", x.length, y.length));
+    }
+  }
+
+  /**
+   * Distance from q to a point held in a larger array.
+   *
+   * @param q a point
+   * @param data holds the other point
+   * @param off position of the other point in data, which has q.length
+   *        coordinates
+   * @return the distance
+   */
+  public abstract double d(double[] q, double[] data, int off);
+
+  /**
+   * Bounded form of {@link #d(double[], double[], int)}.
+   *
+   * @param q a point
+   * @param data holds the other point
+   * @param off position of the other point in data
+   * @param bound the distance past which it is not wanted
+   * @return the distance, or infinity once it is known to exceed bound
+   */
+  public abstract double d(double[] q, double[] data, int off, double bound);
+
+  @Override
+  public double d(double[] x, double[] y) {
+    checkLength(x, y);
+    return d(x, y, 0);
+  }
+
+  /**
+   * Distances from q to rows [from, to) of row major data.
+   *
+   * @param q the query, of length d
+   * @param data the rows, row i at i * d
+   * @param d dimension
+   * @param from first row
+   * @param to end of the rows
+   * @param out receives the distance to row i at i - from
+   */
+  public void distances(double[] q, double[] data, int d, int from, int to, double[] out) {
+    if (q.length != d) {
+      q = Arrays.copyOf(q, d);
+    }
+    distances(q, data, from, to, out, 0);
+  }
+
+  /**
+   * Bounded form of {@link #distances(double[], double[], int, int, int, double[])}.
+   *
+   * @param q the query, of length d
+   * @param data the rows, row i at i * d
+   * @param d dimension
+   * @param from first row
+   * @param to end of the rows
+   * @param bound the distance past which a row is not wanted
+   * @param out receives the distance to row i at i - from, infinity for
+   *        those abandoned beyond bound
+   */
+  public void distances(double[] q, double[] data, int d, int from, int to, double bound, double[] out) {
+    if (q.length != d) {
+      q = Arrays.copyOf(q, d);
+    }
+    distances(q, data, from, to, bound, out);
+  }
+
+  /**
+   * Distance tile between rows [aFrom, aTo) of a and rows [bFrom, bTo) of
+   * b, both row major of dimension d.
+   *
+   * @param a the first rows
+   * @param aFrom first row of a
+   * @param aTo end of the rows of a
+   * @param b the second rows
+   * @param bFrom first row of b
+   * @param bTo end of the rows of b
+   * @param d dimension
+   * @param out receives the distance between rows i and j at
+   *        (i - aFrom) * (bTo - bFrom) + j - bFrom
+   */
+  public void distances(double[] a, int aFrom, int aTo, double[] b, int bFrom, int bTo, int d, double[] out) {
+    int w = bTo - bFrom;
+    double[] q = new double[d];
+    for (int i = aFrom; i < aTo; i++) {
+      System.arraycopy(a, i * d, q, 0, d);
+      distances(q, b, bFrom, bTo, out, (i - aFrom) * w);
+    }
+  }
+
+  /**
+   * Distances from q to rows [from, to) of data, of dimension q.length,
+   * written from out[outOff]. Each metric has its own copy of this loop so
+   * the kernel call in it is static and inlined.
+   */
+  abstract void distances(double[] q, double[] data, int from, int to, double[] out, int outOff);
+
+  /**
+   * Bounded distances from q to rows [from, to) of data, written from
+   * out[0].
+   */
+  abstract void distances(double[] q, double[] data, int from, int to, double bound, double[] out);
+
+  /**
+   * Euclidean distance.
+   */
+  public static class Euclidean extends UnrolledDistance {
+
+    private static final long serialVersionUID = -6108592817261405227L;
+
+    @Override
+    public double d(double[] q, double[] data, int off) {
+      double sum = squaredEuclidean(q, data, off);
+      if (Double.isNaN(sum)) {
+        sum = missing(q, data, off, 2);
+      }
+      return Math.sqrt(sum);
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off, double bound) {
+      double sum = squaredEuclidean(q, data, off, limit(bound, 2));
+      if (Double.isNaN(sum)) {
+        sum = missing(q, data, off, 2);
+      }
+      return Math.sqrt(sum);
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double[] out, int outOff) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        double sum = squaredEuclidean(q, data, off);
+        if (Double.isNaN(sum)) {
+          sum = missing(q, data, off, 2);
+        }
+        out[outOff++] = Math.sqrt(sum);
+      }
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double bound, double[] out) {
+      int d = q.length;
+      double limit = limit(bound, 2);
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        double sum = squaredEuclidean(q, data, off, limit);
+        if (Double.isNaN(sum)) {
+          sum = missing(q, data, off, 2);
+        }
+        out[i - from] = Math.sqrt(sum);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Euclidean distance";
+    }
+  }
+
+  /**
+   * Manhattan distance.
+   */
+  public static class Manhattan extends UnrolledDistance {
+
+    private static final long serialVersionUID = 4512009254368208863L;
+
+    @Override
+    public double d(double[] q, double[] data, int off) {
+      double sum = manhattan(q, data, off);
+      return Double.isNaN(sum) ? missing(q, data, off, 1) : sum;
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off, double bound) {
+      double sum = manhattan(q, data, off, bound);
+      return Double.isNaN(sum) ? missing(q, data, off, 1) : sum;
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double[] out, int outOff) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        double sum = manhattan(q, data, off);
+        out[outOff++] = Double.isNaN(sum) ? missing(q, data, off, 1) : sum;
+      }
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double bound, double[] out) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        double sum = manhattan(q, data, off, bound);
+        out[i - from] = Double.isNaN(sum) ? missing(q, data, off, 1) : sum;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Manhattan distance";
+    }
+  }
+
+  /**
+   * Chebyshev distance.
+   */
+  public static class Chebyshev extends UnrolledDistance {
+
+    private static final long serialVersionUID = -3215802307785318841L;
+
+    @Override
+    public double d(double[] q, double[] data, int off) {
+      return chebyshev(q, data, off);
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off, double bound) {
+      return chebyshev(q, data, off, bound);
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double[] out, int outOff) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        out[outOff++] = chebyshev(q, data, off);
+      }
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double bound, double[] out) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        out[i - from] = chebyshev(q, data, off, bound);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Chebyshev distance";
+    }
+  }
+
+  /**
+   * Minkowski distance of order p. Orders 1 and 2 use the Manhattan and
+   * Euclidean sums.
+   */
+  public static class Minkowski extends UnrolledDistance {
+
+    private static final long serialVersionUID = 1394630541702270839L;
+
+    /** The order, at least 1 */
+    final int p;
+
+    /**
+     * @param p the order, at least 1
+     */
+    public Minkowski(int p) {
+      if (p < 1) {
+        throw new IllegalArgumentException("Invalid Minkowski order: " + p);
+      }
+      this.p = p;
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off) {
+      double sum = p == 1 ? manhattan(q, data, off)
+        : p == 2 ? squaredEuclidean(q, data, off) : power(q, data, off);
+      if (Double.isNaN(sum)) {
+        sum = missing(q, data, off, p);
+      }
+      return p == 1 ? sum : p == 2 ? Math.sqrt(sum) : Math.pow(sum, 1.0 / p);
+    }
+
+    @Override
+    public double d(double[] q, double[] data, int off, double bound) {
+      double limit = limit(bound, p);
+      double sum = p == 1 ? manhattan(q, data, off, limit)
+        : p == 2 ? squaredEuclidean(q, data, off, limit) : power(q, data, off, limit);
+      if (Double.isNaN(sum)) {
+        sum = missing(q, data, off, p);
+      }
+      return p == 1 ? sum : p == 2 ? Math.sqrt(sum) : Math.pow(sum, 1.0 / p);
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double[] out, int outOff) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        out[outOff++] = d(q, data, off);
+      }
+    }
+
+    @Override
+    void distances(double[] q, double[] data, int from, int to, double bound, double[] out) {
+      int d = q.length;
+      for (int i = from, off = from * d; i < to; i++, off += d) {
+        out[i - from] = d(q, data, off, bound);
+      }
+    }
+
+    double power(double[] q, double[] data, int off) {
+      double sum = 0.0;
+      for (int j = 0; j < q.length; j++) {
+        sum += Math.pow(Math.abs(q[j] - data[off + j]), p);
+      }
+      return sum;
+    }
+
+    double power(double[] q, double[] data, int off, double limit) {
+      double sum = 0.0;
+      for (int j = 0; j < q.length; j++) {
+        sum += Math.pow(Math.abs(q[j] - data[off + j]), p);
+        if ((j & 15) == 15 && sum > limit) {
+          return Double.POSITIVE_INFINITY;
+        }
+      }
+      return sum;
+    }
+
+    @Override
+    public String toString() {
+      return "Minkowski distance (p = " + p + ")";
+    }
+  }
+}
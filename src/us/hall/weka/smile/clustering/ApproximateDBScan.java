@@ -0,0 +1,622 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import smile.clustering.PartitionClustering;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.UnrolledDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
+
+/**
+ * rho-approximate DBSCAN (Gan and Tao 2015) over a grid, in near linear
+ * expected time for low dimensional data. Cells are as wide as a cube of
+ * diameter the radius, eps/sqrt(d) under the Euclidean distance, so the
+ * points of a cell are all neighbors: a cell holding more than minPts
+ * points is all core points, and the points of other cells count their
+ * neighbors over the cells within the radius. Core points are exact, and the core
+ * points of a cell are one cluster.
+ * <p/>
+ * Two cells with core points join when some pair of their core points may
+ * lie within the radius, which is where the approximation comes in. Each
+ * cell summarizes its core points by the occupied boxes of a finer grid,
+ * of diameter rho eps / 2, and cells join when two of their boxes come
+ * within the radius. Core points within the radius always join; those
+ * further apart than (1 + rho) eps never do; in between they may. Clusters
+ * are therefore those of exact DBSCAN, or unions of them, and the boxes a
+ * cell pair compares are bounded whatever the points in the cells.
+ * <p/>
+ * Clusters are numbered as smile.clustering.DBScan numbers them, in the
+ * order of their first core point, and a border point takes the least
+ * cluster with a core point within the radius, exactly. New points go to
+ * the cluster of the nearest core point within the radius, through a
+ * {@link CoreIndex} built on the first prediction.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class ApproximateDBScan extends PartitionClustering<double[]> {
+
+  /** Above this many dimensions the cells within the radius cost too much */
+  public static final int MAX_DIMENSION = 3;
+
+  /** Rows from which passes over them run in parallel */
+  static final int PARALLEL_THRESHOLD = 1024;
+
+  /**
+   * Relative narrowing of the cells, which keeps the points of a cell
+   * within the radius of each other however the distances round
+   */
+  static final double WIDEN = 1e-6;
+
+  /** Cells, and finer boxes, along a coordinate, so the keys fit a long */
+  static final double MAX_CELLS = 1 << 20;
+
+  /** Largest coordinate in cells for which the cells are keyed exactly */
+  static final double MAX_MAGNITUDE = 1e8;
+
+  /** Least neighbors of a core point */
+  final int minPts;
+
+  /** Neighborhood radius */
+  final double radius;
+
+  /** Approximation of the radius joining cells */
+  final double rho;
+
+  /** The distance */
+  final SmileDistance distance;
+
+  /** Its kernel */
+  final UnrolledDistance kernel;
+
+  /** The rows by row number */
+  final double[] values;
+
+  /** Number of rows */
+  final int n;
+
+  /** Dimension */
+  final int d;
+
+  /** Width of a cell */
+  final double side;
+
+  /** Width of a box summarizing core points */
+  final double boxSide;
+
+  /** Boxes along each coordinate of a cell */
+  final int boxes;
+
+  /** Least value of each coordinate, the corner of cell zero */
+  final double[] origin;
+
+  /** Cells along each coordinate */
+  final long[] counts;
+
+  /** Key step of each coordinate */
+  final long[] stride;
+
+  /** Keys of the occupied cells in ascending order */
+  final long[] cellKey;
+
+  /** First position of each occupied cell, and n at the end */
+  final int[] cellStart;
+
+  /** Row number of each position, the rows grouped by cell */
+  final int[] ids;
+
+  /** Occupied cell of each row */
+  final int[] cellOf;
+
+  /** Offsets to the cells that may hold neighbors, d to an offset */
+  final int[] reach;
+
+  /** Whether each row is a core point */
+  final boolean[] core;
+
+  /** First box of each cell, and the total at the end */
+  int[] boxStart;
+
+  /** Least corner of each box, box b at b * d */
+  double[] boxLo;
+
+  /** The core points for prediction, built on demand */
+  volatile CoreIndex cores;
+
+  /**
+   * Clusters the rows of a matrix, see
+   * {@link #suits(SmileDistance, InstancesMatrix, double, double)}.
+   *
+   * @param matrix the points
+   * @param distance the distance
+   * @param minPts least neighbors of a core point, not counting itself
+   * @param radius the neighborhood radius
+   * @param rho the approximation, cells joining when core points may lie
+   *        within (1 + rho) times the radius
+   */
+  public ApproximateDBScan(InstancesMatrix matrix, SmileDistance distance, int minPts, double radius, double rho) {
+    if (minPts < 1) {
+      throw new IllegalArgumentException("Invalid minPts: " + minPts);
+    }
+    if (!suits(distance, matrix, radius, rho)) {
+      throw new IllegalArgumentException("No grid for radius " + radius + " and rho " + rho);
+    }
+    this.minPts = minPts;
+    this.radius = radius;
+    this.rho = rho;
+    this.distance = distance;
+    kernel = (UnrolledDistance)distance.getSmileDistance();
+    values = matrix.values();
+    n = matrix.numRows();
+    d = matrix.numColumns();
+    side = side(kernel, d, radius);
+    boxes = (int)Math.min(MAX_CELLS, Math.ceil(2.0 / rho));
+    boxSide = side / boxes;
+
+    origin = new double[d];
+    counts = new long[d];
+    stride = new long[d];
+    double[] max = new double[d];
+    Arrays.fill(origin, Double.POSITIVE_INFINITY);
+    Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    for (int i = 0, off = 0; i < n; i++, off += d) {
+      for (int j = 0; j < d; j++) {
+        origin[j] = Math.min(origin[j], values[off + j]);
+        max[j] = Math.max(max[j], values[off + j]);
+      }
+    }
+    long step = 1;
+    for (int j = 0; j < d; j++) {
+      counts[j] = n > 0 ? (long)Math.floor((max[j] - origin[j]) / side) + 1 : 1;
+      stride[j] = step;
+      step *= counts[j];
+    }
+
+    // occupied cells, the rows grouped by them
+    long[] key = new long[n];
+    for (int i = 0; i < n; i++) {
+      key[i] = key(i);
+    }
+    long[] sorted = key.clone();
+    Arrays.sort(sorted);
+    int m = 0;
+    for (int i = 0; i < n; i++) {
+      if (m == 0 || sorted[i] != sorted[m - 1]) {
+        sorted[m++] = sorted[i];
+      }
+    }
+    cellKey = Arrays.copyOf(sorted, m);
+    cellStart = new int[m + 1];
+    cellOf = new int[n];
+    for (int i = 0; i < n; i++) {
+      cellOf[i] = Arrays.binarySearch(cellKey, key[i]);
+      cellStart[cellOf[i] + 1]++;
+    }
+    for (int c = 0; c < m; c++) {
+      cellStart[c + 1] += cellStart[c];
+    }
+    ids = new int[n];
+    int[] next = Arrays.copyOf(cellStart, m);
+    for (int i = 0; i < n; i++) {
+      ids[next[cellOf[i]]++] = i;
+    }
+    reach = reach();
+
+    core = new boolean[n];
+    markCores(m);
+    summarize(m);
+    ConcurrentUnionFind sets = new ConcurrentUnionFind(m);
+    join(m, sets);
+
+    // clusters numbered in the order of their first core point
+    y = new int[n];
+    k = 0;
+    int[] label = new int[m];
+    Arrays.fill(label, -1);
+    for (int i = 0; i < n; i++) {
+      if (core[i]) {
+        int root = sets.find(cellOf[i]);
+        if (label[root] < 0) {
+          label[root] = k++;
+        }
+        y[i] = label[root];
+      }
+    }
+    labelBorders(m);
+    size = new int[k + 1];
+    for (int i = 0; i < n; i++) {
+      size[y[i] == OUTLIER ? k : y[i]]++;
+    }
+  }
+
+  /**
+   * Whether the rows of a matrix can be clustered on a grid for a radius:
+   * the distance must be one of the Minkowski family, the data low
+   * dimensional and without missing values, and the cells and boxes of a
+   * number to key.
+   *
+   * @param distance the distance
+   * @param matrix the points
+   * @param radius the neighborhood radius
+   * @param rho the approximation
+   * @return true when the approximation can run
+   */
+  public static boolean suits(SmileDistance distance, InstancesMatrix matrix, double radius, double rho) {
+    int d = matrix.numColumns();
+    if (!(distance.getSmileDistance() instanceof UnrolledDistance)
+        || d == 0 || d > MAX_DIMENSION || !(radius > 0.0) || Double.isInfinite(radius)
+        || !(rho > 0.0) || Double.isInfinite(rho)) {
+      return false;
+    }
+    double side = side((UnrolledDistance)distance.getSmileDistance(), d, radius);
+    double[] values = matrix.values();
+    for (int j = 0; j < d; j++) {
+      double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+      for (int off = j; off < values.length; off += d) {
+        double v = values[off];
+        if (Double.isNaN(v)) {
+          return false;
+        }
+        lo = Math.min(lo, v);
+        hi = Math.max(hi, v);
+      }
+      if ((hi - lo) / side >= MAX_CELLS
+          || Math.max(Math.abs(lo), Math.abs(hi)) / side >= MAX_MAGNITUDE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the width of a cube whose diameter is a little under the radius
+   */
+  static double side(UnrolledDistance kernel, int d, double radius) {
+    double[] ones = new double[d];
+    Arrays.fill(ones, 1.0);
+    return radius / (kernel.d(new double[d], ones) * (1.0 + WIDEN));
+  }
+
+  /**
+   * @return the cell key of a row
+   */
+  long key(int i) {
+    long key = 0;
+    for (int j = 0; j < d; j++) {
+      long c = Math.min(counts[j] - 1, (long)Math.floor((values[i * d + j] - origin[j]) / side));
+      key += c * stride[j];
+    }
+    return key;
+  }
+
+  /**
+   * The offsets of the cells other than its own that may hold neighbors
+   * of a point in a cell: those whose nearest corners are within the
+   * radius, widened for rounding.
+   */
+  int[] reach() {
+    int r = (int)Math.floor(radius / side) + 1;
+    int w = 2 * r + 1;
+    int total = 1;
+    for (int j = 0; j < d; j++) {
+      total *= w;
+    }
+    int[] offsets = new int[total * d];
+    double[] gap = new double[d];
+    double[] zero = new double[d];
+    int count = 0;
+    for (int t = 0; t < total; t++) {
+      boolean self = true;
+      for (int j = 0, u = t; j < d; j++, u /= w) {
+        int o = u % w - r;
+        offsets[count * d + j] = o;
+        gap[j] = Math.max(0, Math.abs(o) - 1) * side;
+        self &= o == 0;
+      }
+      if (!self && kernel.d(gap, zero) <= radius * (1.0 + WIDEN)) {
+        count++;
+      }
+    }
+    return Arrays.copyOf(offsets, count * d);
+  }
+
+  /**
+   * @return the occupied cell at an offset from a cell, or -1
+   */
+  int neighbor(int c, int o) {
+    long key = cellKey[c], target = 0;
+    for (int j = 0; j < d; j++) {
+      long cj = (key / stride[j]) % counts[j] + reach[o * d + j];
+      if (cj < 0 || cj >= counts[j]) {
+        return -1;
+      }
+      target += cj * stride[j];
+    }
+    int i = Arrays.binarySearch(cellKey, target);
+    return i >= 0 ? i : -1;
+  }
+
+  /**
+   * @return the occupied cells, in parallel when there are enough rows
+   */
+  IntStream cells(int m) {
+    IntStream all = IntStream.range(0, m);
+    return n >= PARALLEL_THRESHOLD ? all.parallel() : all;
+  }
+
+  /**
+   * Marks the core points, exactly: all of a cell with more than minPts
+   * points, otherwise by counting neighbors over the cells in reach until
+   * there are enough.
+   */
+  void markCores(int m) {
+    int offsets = reach.length / Math.max(1, d);
+    cells(m).forEach(c -> {
+      int from = cellStart[c], to = cellStart[c + 1];
+      if (to - from - 1 >= minPts) {
+        for (int p = from; p < to; p++) {
+          core[ids[p]] = true;
+        }
+        return;
+      }
+      double[] x = new double[d];
+      for (int p = from; p < to; p++) {
+        int row = ids[p];
+        System.arraycopy(values, row * d, x, 0, d);
+        int count = to - from - 1;
+        for (int o = 0; o < offsets && count < minPts; o++) {
+          int b = neighbor(c, o);
+          if (b < 0) {
+            continue;
+          }
+          for (int q = cellStart[b]; q < cellStart[b + 1] && count < minPts; q++) {
+            if (kernel.d(x, values, ids[q] * d, radius) <= radius) {
+              count++;
+            }
+          }
+        }
+        core[row] = count >= minPts;
+      }
+    });
+  }
+
+  /**
+   * Summarizes the core points of each cell by the occupied boxes of a
+   * finer grid within it.
+   */
+  void summarize(int m) {
+    long[][] codes = new long[m][];
+    cells(m).forEach(c -> {
+      int from = cellStart[c], to = cellStart[c + 1];
+      long[] code = new long[to - from];
+      int count = 0;
+      for (int p = from; p < to; p++) {
+        int row = ids[p];
+        if (core[row]) {
+          long b = 0;
+          for (int j = 0; j < d; j++) {
+            double lo = cellLo(c, j);
+            long s = Math.max(0, Math.min(boxes - 1, (long)Math.floor((values[row * d + j] - lo) / boxSide)));
+            b = b << 21 | s;
+          }
+          code[count++] = b;
+        }
+      }
+      Arrays.sort(code, 0, count);
+      int distinct = 0;
+      for (int i = 0; i < count; i++) {
+        if (distinct == 0 || code[i] != code[distinct - 1]) {
+          code[distinct++] = code[i];
+        }
+      }
+      codes[c] = Arrays.copyOf(code, distinct);
+    });
+    boxStart = new int[m + 1];
+    for (int c = 0; c < m; c++) {
+      boxStart[c + 1] = boxStart[c] + codes[c].length;
+    }
+    boxLo = new double[boxStart[m] * d];
+    cells(m).forEach(c -> {
+      for (int b = 0; b < codes[c].length; b++) {
+        long code = codes[c][b];
+        for (int j = d - 1; j >= 0; j--, code >>>= 21) {
+          boxLo[(boxStart[c] + b) * d + j] = cellLo(c, j) + (code & ((1L << 21) - 1)) * boxSide;
+        }
+      }
+      codes[c] = null;
+    });
+  }
+
+  /**
+   * @return the least value of coordinate j in a cell
+   */
+  double cellLo(int c, int j) {
+    return origin[j] + ((cellKey[c] / stride[j]) % counts[j]) * side;
+  }
+
+  /**
+   * Joins each cell with core points to those in reach with a pair of
+   * boxes within the radius, each pair of cells from the one with the
+   * lesser key.
+   */
+  void join(int m, ConcurrentUnionFind sets) {
+    int offsets = reach.length / Math.max(1, d);
+    double bound = radius * (1.0 + WIDEN);
+    cells(m).forEach(a -> {
+      if (boxStart[a] == boxStart[a + 1]) {
+        return;
+      }
+      double[] gap = new double[d];
+      double[] zero = new double[d];
+      for (int o = 0; o < offsets; o++) {
+        int b = neighbor(a, o);
+        if (b < a || boxStart[b] == boxStart[b + 1] || sets.find(a) == sets.find(b)) {
+          continue;
+        }
+        boolean near = false;
+        for (int u = boxStart[a]; u < boxStart[a + 1] && !near; u++) {
+          for (int v = boxStart[b]; v < boxStart[b + 1] && !near; v++) {
+            for (int j = 0; j < d; j++) {
+              double lo = boxLo[u * d + j], other = boxLo[v * d + j];
+              gap[j] = Math.max(0.0, Math.max(other - (lo + boxSide), lo - (other + boxSide)));
+            }
+            near = kernel.d(gap, zero) <= bound;
+          }
+        }
+        if (near) {
+          sets.union(a, b);
+        }
+      }
+    });
+  }
+
+  /**
+   * Gives each point that is not a core point the least cluster with a
+   * core point within the radius, or OUTLIER.
+   */
+  void labelBorders(int m) {
+    int offsets = reach.length / Math.max(1, d);
+    cells(m).forEach(c -> {
+      int from = cellStart[c], to = cellStart[c + 1];
+      // the core points of its own cell are all within the radius
+      int own = OUTLIER;
+      for (int p = from; p < to; p++) {
+        if (core[ids[p]]) {
+          own = Math.min(own, y[ids[p]]);
+        }
+      }
+      double[] x = new double[d];
+      for (int p = from; p < to; p++) {
+        int row = ids[p];
+        if (core[row]) {
+          continue;
+        }
+        System.arraycopy(values, row * d, x, 0, d);
+        int label = own;
+        for (int o = 0; o < offsets; o++) {
+          int b = neighbor(c, o);
+          if (b < 0) {
+            continue;
+          }
+          for (int q = cellStart[b]; q < cellStart[b + 1]; q++) {
+            int other = ids[q];
+            if (core[other] && y[other] < label && kernel.d(x, values, other * d, radius) <= radius) {
+              label = y[other];
+            }
+          }
+        }
+        y[row] = label;
+      }
+    });
+  }
+
+  /**
+   * @return whether each row is a core point
+   */
+  public boolean[] cores() {
+    return core;
+  }
+
+  /**
+   * @param x the point
+   * @return the cluster of the nearest core point within the radius, or
+   *         OUTLIER when there is none
+   */
+  @Override
+  public int predict(double[] x) {
+    CoreIndex index = cores;
+    if (index == null) {
+      synchronized (this) {
+        if (cores == null) {
+          cores = new CoreIndex(values, d, core, y, distance, radius);
+        }
+        index = cores;
+      }
+    }
+    return index.predict(x);
+  }
+
+  /**
+   * @return the number of occupied cells
+   */
+  public int numCells() {
+    return cellKey.length;
+  }
+
+  /**
+   * The rows in a box around a random row, grown until it holds a number
+   * of rows, for comparing with exact DBSCAN on data of the same density.
+   *
+   * @param size rows wanted, the box holding at least as many unless
+   *        there are fewer
+   * @param random picks the row
+   * @return the rows in the box, ascending
+   */
+  public int[] window(int size, Random random) {
+    if (size >= n) {
+      int[] all = new int[n];
+      for (int i = 0; i < n; i++) {
+        all[i] = i;
+      }
+      return all;
+    }
+    int center = random.nextInt(n);
+    double half = radius;
+    int count;
+    while ((count = inside(center, half, null)) < size) {
+      half *= 2.0;
+    }
+    int[] rows = new int[count];
+    inside(center, half, rows);
+    return rows;
+  }
+
+  /**
+   * @return the number of rows within half a box width of a row along
+   *         every coordinate, copied into rows when given
+   */
+  int inside(int center, double half, int[] rows) {
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      boolean in = true;
+      for (int j = 0; j < d && in; j++) {
+        in = Math.abs(values[i * d + j] - values[center * d + j]) <= half;
+      }
+      if (in) {
+        if (rows != null) {
+          rows[count] = i;
+        }
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Counts the points that change cluster from one labeling to another:
+   * each cluster of the second, outliers included, is matched with the
+   * cluster of the first most of its points have, and the rest change.
+   *
+   * @param exact the labels of exact DBSCAN
+   * @param approximate the labels of the approximation, for the same points
+   * @return the number of points whose cluster changed
+   */
+  public static int changes(int[] exact, int[] approximate) {
+    Map<Long, Integer> pairs = new HashMap<>();
+    for (int i = 0; i < exact.length; i++) {
+      pairs.merge((long)approximate[i] << 32 | (exact[i] & 0xFFFFFFFFL), 1, Integer::sum);
+    }
+    Map<Integer, Integer> kept = new HashMap<>();
+    for (Map.Entry<Long, Integer> pair : pairs.entrySet()) {
+      kept.merge((int)(pair.getKey() >> 32), pair.getValue(), Math::max);
+    }
+    int same = 0;
+    for (int count : kept.values()) {
+      same += count;
+    }
+    return exact.length - same;
+  }
+}
@@ -0,0 +1,227 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import smile.clustering.PartitionClustering;
+import us.hall.weka.smile.data.InstancesMatrix;
+import us.hall.weka.smile.neighbor.RangeList;
+import us.hall.weka.smile.neighbor.RowSearch;
+
+/**
+ * DBSCAN with the labels of smile.clustering.DBScan in memory bounded by
+ * the neighbor pairs at about a byte each. smile expands a cluster through
+ * lists of boxed neighbors, which on dense data hold O(n^2) objects; here
+ * every neighborhood is queried once, in parallel, by row number into a
+ * primitive list, and only those of core points, the ones a cluster
+ * expands through, are kept.
+ * <p/>
+ * The neighborhoods are held compressed sparse row fashion in blocks of
+ * CHUNK rows: the neighbor ids of a row, ascending, are written as the
+ * gaps between them in variable length bytes, seven bits to a byte, and
+ * an int offset gives where a row starts in its block. Neighbors on dense
+ * data are close in row order as often as not, so most gaps take a byte,
+ * and no block comes near the two gigabytes an array can hold.
+ * <p/>
+ * Clusters are then grown in row order with an int work queue, each core
+ * point's neighborhood decoded once, and labeled in an int array. A
+ * cluster is grown from its least core point before any later one starts,
+ * so a border point takes the least cluster near it, as in smile.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class CompactDBScan extends PartitionClustering<double[]> {
+
+  /** Rows queried per task and held per block */
+  static final int CHUNK = 256;
+
+  /** Marks a row no cluster has reached */
+  static final int UNCLASSIFIED = -1;
+
+  /** Least neighbors of a core point */
+  final int minPts;
+
+  /** Neighborhood radius */
+  final double radius;
+
+  /** Range search over the rows, for prediction */
+  final RowSearch search;
+
+  /** Whether each row is a core point */
+  final boolean[] core;
+
+  /** Encoded neighborhoods of the core points, a block per CHUNK rows */
+  final byte[][] blocks;
+
+  /** Where each row's neighborhood starts in its block */
+  final int[] offsets;
+
+  /**
+   * Clusters the rows of a matrix.
+   *
+   * @param matrix the points
+   * @param search range search over the rows
+   * @param minPts least neighbors of a core point, not counting itself
+   * @param radius the neighborhood radius
+   */
+  public CompactDBScan(InstancesMatrix matrix, RowSearch search, int minPts, double radius) {
+    if (minPts < 1) {
+      throw new IllegalArgumentException("Invalid minPts: " + minPts);
+    }
+    if (radius <= 0.0) {
+      throw new IllegalArgumentException("Invalid radius: " + radius);
+    }
+    this.minPts = minPts;
+    this.radius = radius;
+    this.search = search;
+    int n = matrix.numRows();
+    core = new boolean[n];
+    offsets = new int[n];
+    blocks = new byte[(n + CHUNK - 1) / CHUNK][];
+    IntStream chunks = IntStream.range(0, blocks.length);
+    if (blocks.length > 1) {
+      chunks = chunks.parallel();
+    }
+    chunks.forEach(c -> encode(n, c));
+    grow(n);
+    size = new int[k + 1];
+    for (int i = 0; i < n; i++) {
+      size[y[i] == OUTLIER ? k : y[i]]++;
+    }
+  }
+
+  /**
+   * Queries the neighborhoods of a block of rows, marks the core points
+   * and writes theirs.
+   */
+  void encode(int n, int c) {
+    RangeList found = new RangeList();
+    int[] ids = new int[16];
+    byte[] block = new byte[64];
+    int length = 0;
+    int end = Math.min(n, (c + 1) * CHUNK);
+    for (int i = c * CHUNK; i < end; i++) {
+      offsets[i] = length;
+      found.clear();
+      search.range(i, radius, found);
+      int m = found.size();
+      if (m < minPts) {
+        continue;
+      }
+      core[i] = true;
+      if (ids.length < m) {
+        ids = new int[Math.max(m, 2 * ids.length)];
+      }
+      boolean sorted = true;
+      for (int p = 0; p < m; p++) {
+        ids[p] = found.index(p);
+        sorted &= p == 0 || ids[p] > ids[p - 1];
+      }
+      if (!sorted) {
+        Arrays.sort(ids, 0, m);
+      }
+      if (block.length - length < 5 * m) {
+        block = Arrays.copyOf(block, Math.max(length + 5 * m, 2 * block.length));
+      }
+      for (int p = 0, prev = -1; p < m; p++) {
+        // gaps of at least one, less one, seven bits to a byte
+        int gap = ids[p] - prev - 1;
+        prev = ids[p];
+        while ((gap & ~0x7F) != 0) {
+          block[length++] = (byte)((gap & 0x7F) | 0x80);
+          gap >>>= 7;
+        }
+        block[length++] = (byte)gap;
+      }
+    }
+    blocks[c] = Arrays.copyOf(block, length);
+  }
+
+  /**
+   * Grows the clusters from the core points in row order.
+   */
+  void grow(int n) {
+    y = new int[n];
+    Arrays.fill(y, UNCLASSIFIED);
+    int[] queue = new int[n];
+    k = 0;
+    for (int i = 0; i < n; i++) {
+      if (!core[i] || y[i] != UNCLASSIFIED) {
+        continue;
+      }
+      int label = k++;
+      int head = 0, tail = 0;
+      y[i] = label;
+      queue[tail++] = i;
+      while (head < tail) {
+        int row = queue[head++];
+        byte[] block = blocks[row / CHUNK];
+        int p = offsets[row];
+        int end = (row + 1) % CHUNK == 0 || row + 1 == n ? block.length : offsets[row + 1];
+        int id = -1;
+        while (p < end) {
+          int gap = 0, shift = 0, b;
+          do {
+            b = block[p++];
+            gap |= (b & 0x7F) << shift;
+            shift += 7;
+          } while (b < 0);
+          id += gap + 1;
+          if (y[id] == UNCLASSIFIED) {
+            y[id] = label;
+            if (core[id]) {
+              queue[tail++] = id;
+            }
+          }
+        }
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      if (y[i] == UNCLASSIFIED) {
+        y[i] = OUTLIER;
+      }
+    }
+  }
+
+  /**
+   * @return whether each row is a core point
+   */
+  public boolean[] cores() {
+    return core;
+  }
+
+  /**
+   * @return the bytes the neighborhoods take
+   */
+  public long bytes() {
+    long bytes = 4L * offsets.length;
+    for (byte[] block : blocks) {
+      bytes += block.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * As smile.clustering.DBScan: outlier when the point has fewer than
+   * minPts neighbors in the training data, otherwise the cluster most of
+   * its neighbors belong to.
+   *
+   * @param x the point
+   * @return its cluster or OUTLIER
+   */
+  @Override
+  public int predict(double[] x) {
+    VoteBuffer vote = VoteBuffer.forThread(k);
+    RangeList found = vote.found;
+    search.range(x, radius, found);
+    if (found.size() < minPts) {
+      return OUTLIER;
+    }
+    for (int r = 0; r < found.size(); r++) {
+      int label = y[found.index(r)];
+      vote.count[label == OUTLIER ? k : label]++;
+    }
+    int best = vote.best(k);
+    return best == k ? OUTLIER : best;
+  }
+}
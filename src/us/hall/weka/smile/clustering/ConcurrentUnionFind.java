@@ -0,0 +1,70 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock free union-find over the integers [0, n), safe to call from many
+ * threads at once. A root is only ever linked under a smaller root, by
+ * compare-and-set while it is still a root, so each set ends up rooted at
+ * its least member whatever order the unions came in. Finds halve their
+ * paths as they go.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+class ConcurrentUnionFind {
+
+  /** Parent of each element, itself at a root */
+  final AtomicIntegerArray parent;
+
+  /**
+   * @param n number of elements, each in a set of its own
+   */
+  ConcurrentUnionFind(int n) {
+    parent = new AtomicIntegerArray(n);
+    for (int i = 0; i < n; i++) {
+      parent.set(i, i);
+    }
+  }
+
+  /**
+   * @param x an element
+   * @return the root of its set
+   */
+  int find(int x) {
+    while (true) {
+      int p = parent.get(x);
+      if (p == x) {
+        return x;
+      }
+      int g = parent.get(p);
+      if (g != p) {
+        parent.compareAndSet(x, p, g);
+      }
+      x = p;
+    }
+  }
+
+  /**
+   * Merges the sets of two elements.
+   *
+   * @param a an element
+   * @param b another element
+   */
+  void union(int a, int b) {
+    while (true) {
+      a = find(a);
+      b = find(b);
+      if (a == b) {
+        return;
+      }
+      if (a < b) {
+        int t = a;
+        a = b;
+        b = t;
+      }
+      if (parent.compareAndSet(a, a, b)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.Arrays;
+
+import smile.clustering.Clustering;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.neighbor.GridIndex;
+import us.hall.weka.smile.neighbor.VPTree;
+
+/**
+ * The core points of a density clustering and their clusters, for
+ * assigning new points: a point belongs to the cluster of the nearest core
+ * point within the radius, and is an outlier when there is none. Only core
+ * points decide membership, so queries cost what the core points do,
+ * whatever the border and noise around them.
+ * <p/>
+ * The core points are copied out and indexed on their own: on a
+ * {@link GridIndex} when low dimensional, in a {@link VPTree} otherwise,
+ * or scanned a block of bounded distances at a time when missing values
+ * rule both out. Core points added later, as an incremental clustering
+ * makes them, are scanned from a tail after the indexed ones until the
+ * owner builds the index again. Queries may run concurrently, though not
+ * with adding, and do not allocate.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class CoreIndex {
+
+  /** Neighborhood radius */
+  final double radius;
+
+  /** The distance */
+  final SmileDistance distance;
+
+  /** Cluster of each core point, the indexed ones then the tail */
+  int[] labels;
+
+  /** Grid over the core points, or null */
+  final GridIndex grid;
+
+  /** Tree over the core points, or null */
+  final VPTree tree;
+
+  /** The core points row major */
+  final double[] values;
+
+  /** Dimension */
+  final int d;
+
+  /** Number of core points indexed */
+  final int indexed;
+
+  /** Core points added since, row major */
+  double[] tail = new double[0];
+
+  /** Number of core points added since */
+  int tailSize;
+
+  /** Per thread distances of a block of core points, for the scan */
+  private static final ThreadLocal<double[]> BLOCK = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[256];
+    }
+  };
+
+  /**
+   * Indexes the core points among some rows.
+   *
+   * @param rows the points
+   * @param core whether each row is a core point, at least rows.length long
+   * @param clusters the cluster of each row
+   * @param distance the distance
+   * @param radius the neighborhood radius
+   */
+  public CoreIndex(double[][] rows, boolean[] core, int[] clusters, SmileDistance distance, double radius) {
+    this(core(rows, core, rows.length > 0 ? rows[0].length : 0), rows.length > 0 ? rows[0].length : 0,
+        select(core, clusters, rows.length), distance, radius);
+  }
+
+  /**
+   * Indexes the core points among row major values.
+   *
+   * @param values the points, row i at i * d
+   * @param d dimension
+   * @param core whether each row is a core point, at least as long as the rows
+   * @param clusters the cluster of each row
+   * @param distance the distance
+   * @param radius the neighborhood radius
+   */
+  public CoreIndex(double[] values, int d, boolean[] core, int[] clusters, SmileDistance distance, double radius) {
+    this(core(values, d, core), d, select(core, clusters, d == 0 ? 0 : values.length / d), distance, radius);
+  }
+
+  CoreIndex(double[] values, int d, int[] labels, SmileDistance distance, double radius) {
+    this.values = values;
+    this.d = d;
+    this.labels = labels;
+    this.distance = distance;
+    indexed = labels.length;
+    this.radius = radius;
+    boolean gridded = GridIndex.suits(distance, values, d, radius);
+    grid = gridded ? new GridIndex(values, d, distance, radius) : null;
+    tree = !gridded && VPTree.suits(distance, values, d) ? new VPTree(values, d, distance) : null;
+  }
+
+  /**
+   * @return the core points among rows, row major
+   */
+  static double[] core(double[][] rows, boolean[] core, int d) {
+    double[] values = new double[count(core, rows.length) * d];
+    for (int i = 0, c = 0; i < rows.length; i++) {
+      if (core[i]) {
+        System.arraycopy(rows[i], 0, values, c++ * d, d);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * @return the core points among row major values
+   */
+  static double[] core(double[] values, int d, boolean[] core) {
+    int n = d == 0 ? 0 : values.length / d;
+    double[] selected = new double[count(core, n) * d];
+    for (int i = 0, c = 0; i < n; i++) {
+      if (core[i]) {
+        System.arraycopy(values, i * d, selected, c++ * d, d);
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * @return the clusters of the core points
+   */
+  static int[] select(boolean[] core, int[] clusters, int n) {
+    int[] labels = new int[count(core, n)];
+    for (int i = 0, c = 0; i < n; i++) {
+      if (core[i]) {
+        labels[c++] = clusters[i];
+      }
+    }
+    return labels;
+  }
+
+  static int count(boolean[] core, int n) {
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      if (core[i]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of core points
+   */
+  public int size() {
+    return indexed + tailSize;
+  }
+
+  /**
+   * @return the number of core points added since the index was built
+   */
+  public int tailSize() {
+    return tailSize;
+  }
+
+  /**
+   * Adds a core point to the tail.
+   *
+   * @param x the point, copied
+   * @param label its cluster
+   */
+  public void add(double[] x, int label) {
+    if ((tailSize + 1) * d > tail.length) {
+      tail = Arrays.copyOf(tail, Math.max(16 * d, 2 * tail.length));
+    }
+    if (indexed + tailSize == labels.length) {
+      labels = Arrays.copyOf(labels, Math.max(16, 2 * labels.length));
+    }
+    System.arraycopy(x, 0, tail, tailSize * d, d);
+    labels[indexed + tailSize++] = label;
+  }
+
+  /**
+   * @param x a point
+   * @return the cluster of the nearest core point within the radius, or
+   *         OUTLIER when there is none
+   */
+  public int predict(double[] x) {
+    int c = nearest(x);
+    return c < 0 ? Clustering.OUTLIER : labels[c];
+  }
+
+  /**
+   * @return the nearest core point within the radius, or -1
+   */
+  int nearest(double[] x) {
+    double[] buf = BLOCK.get();
+    int best;
+    if (grid != null) {
+      best = grid.nearest(x, radius);
+    } else if (tree != null) {
+      best = tree.nearest(x, radius);
+    } else {
+      return scan(x, values, indexed, -1, radius, 0, buf);
+    }
+    if (tailSize == 0) {
+      return best;
+    }
+    double bound = radius;
+    if (best >= 0) {
+      distance.distances(x, values, d, best, best + 1, buf);
+      bound = buf[0];
+    }
+    return scan(x, tail, tailSize, best, bound, indexed, buf);
+  }
+
+  /**
+   * Scans the core points of block for one nearer than the best so far,
+   * and then the tail when block is the indexed points.
+   *
+   * @param block row major core points
+   * @param n number of them
+   * @param best nearest core point so far, or -1
+   * @param bound its distance, or the radius
+   * @param base number of the first point of block
+   * @return the nearest core point within the radius, or -1
+   */
+  int scan(double[] x, double[] block, int n, int best, double bound, int base, double[] buf) {
+    for (int lo = 0; lo < n; lo += buf.length) {
+      int hi = Math.min(n, lo + buf.length);
+      distance.distances(x, block, d, lo, hi, bound, buf);
+      for (int c = lo; c < hi; c++) {
+        if (buf[c - lo] < bound || (buf[c - lo] == bound && best < 0)) {
+          best = base + c;
+          bound = buf[c - lo];
+        }
+      }
+    }
+    if (block == values && tailSize > 0) {
+      return scan(x, tail, tailSize, best, bound, indexed, buf);
+    }
+    return best;
+  }
+}
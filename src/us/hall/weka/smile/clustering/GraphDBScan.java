@@ -0,0 +1,153 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.stream.IntStream;
+
+import smile.clustering.PartitionClustering;
+
+/**
+ * A DBSCAN clustering read off a {@link NeighborhoodGraph}, with the labels
+ * smile.clustering.DBScan gives for its radius and minPts. The passes of
+ * {@link ParallelDBScan} run over the prefixes of the graph's neighbor
+ * lists within the radius instead of over range queries: one marks the
+ * core points, one joins neighboring core points in a concurrent
+ * union-find and one gives each border point the least cluster near it.
+ * <p/>
+ * New points go to the cluster of the nearest core point within the
+ * radius, through a {@link CoreIndex} built on the first prediction.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class GraphDBScan extends PartitionClustering<double[]> {
+
+  /** Rows from which passes over them run in parallel */
+  static final int PARALLEL_THRESHOLD = 1024;
+
+  /** The graph */
+  final NeighborhoodGraph graph;
+
+  /** Neighborhood radius */
+  final double radius;
+
+  /** Least neighbors of a core point */
+  final int minPts;
+
+  /** Whether each row is a core point */
+  final boolean[] core;
+
+  /** The core points for prediction, built on demand */
+  volatile CoreIndex cores;
+
+  /**
+   * @param graph the neighborhoods
+   * @param radius the neighborhood radius, at most the graph's largest
+   * @param minPts least neighbors of a core point, not counting itself
+   */
+  public GraphDBScan(NeighborhoodGraph graph, double radius, int minPts) {
+    if (minPts < 1) {
+      throw new IllegalArgumentException("Invalid minPts: " + minPts);
+    }
+    if (!(radius > 0.0) || radius > graph.maxRadius) {
+      throw new IllegalArgumentException("Invalid radius: " + radius + ", the graph reaches " + graph.maxRadius);
+    }
+    this.graph = graph;
+    this.radius = radius;
+    this.minPts = minPts;
+    int n = graph.size();
+    int[] offsets = graph.offsets;
+    int[] ids = graph.ids;
+    double[] dists = graph.dists;
+
+    core = new boolean[n];
+    rows(n).forEach(i -> {
+      int p = offsets[i] + minPts - 1;
+      core[i] = p < offsets[i + 1] && dists[p] <= radius;
+    });
+
+    // each pair of core points is seen from both ends, join it from one
+    ConcurrentUnionFind sets = new ConcurrentUnionFind(n);
+    rows(n).forEach(i -> {
+      if (core[i]) {
+        for (int p = offsets[i]; p < offsets[i + 1] && dists[p] <= radius; p++) {
+          if (ids[p] < i && core[ids[p]]) {
+            sets.union(i, ids[p]);
+          }
+        }
+      }
+    });
+
+    // sets are rooted at their least row, which comes before the rest
+    y = new int[n];
+    k = 0;
+    for (int i = 0; i < n; i++) {
+      if (core[i]) {
+        int root = sets.find(i);
+        y[i] = root == i ? k++ : y[root];
+      }
+    }
+
+    rows(n).forEach(i -> {
+      if (!core[i]) {
+        int label = OUTLIER;
+        for (int p = offsets[i]; p < offsets[i + 1] && dists[p] <= radius; p++) {
+          if (core[ids[p]]) {
+            label = Math.min(label, y[ids[p]]);
+          }
+        }
+        y[i] = label;
+      }
+    });
+
+    size = new int[k + 1];
+    for (int i = 0; i < n; i++) {
+      size[y[i] == OUTLIER ? k : y[i]]++;
+    }
+  }
+
+  /**
+   * @return the rows, in parallel when there are enough
+   */
+  static IntStream rows(int n) {
+    IntStream all = IntStream.range(0, n);
+    return n >= PARALLEL_THRESHOLD ? all.parallel() : all;
+  }
+
+  /**
+   * @return the neighborhood radius
+   */
+  public double radius() {
+    return radius;
+  }
+
+  /**
+   * @return least neighbors of a core point
+   */
+  public int minPts() {
+    return minPts;
+  }
+
+  /**
+   * @return whether each row is a core point
+   */
+  public boolean[] cores() {
+    return core;
+  }
+
+  /**
+   * @param x the point
+   * @return the cluster of the nearest core point within the radius, or
+   *         OUTLIER when there is none
+   */
+  @Override
+  public int predict(double[] x) {
+    CoreIndex index = cores;
+    if (index == null) {
+      synchronized (this) {
+        if (cores == null) {
+          cores = new CoreIndex(graph.values, graph.d, core, y, graph.distance, radius);
+        }
+        index = cores;
+      }
+    }
+    return index.predict(x);
+  }
+}
@@ -0,0 +1,457 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import smile.clustering.PartitionClustering;
+import smile.neighbor.Neighbor;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
+import us.hall.weka.smile.neighbor.DynamicRangeIndex;
+
+/**
+ * DBSCAN that takes points one at a time (Ester et al. 1998). Inserting
+ * never takes a neighbor away, so core points stay core and linked core
+ * points stay linked: the clusters only grow and merge, which a union-find
+ * over the core points follows exactly. Each insert queries the new point's
+ * neighborhood, counts it into its neighbors' and queries again only
+ * around neighbors it makes core, to join their clusters and take in the
+ * points near them.
+ * <p/>
+ * Clusters are numbered as smile.clustering.DBScan numbers them, in the
+ * order of their first point, so numbers shift when clusters merge. A
+ * border point takes the cluster of a core point near it, the least one
+ * at the time it was reached. The initial build settles every border
+ * point on the least cluster near it and matches the batch algorithm
+ * label for label; later a border point near two clusters may keep one
+ * the batch algorithm would not give it. An insert that only grows
+ * clusters, or starts one with the new point, updates the labels of the
+ * points it touches; one that merges clusters or starts one at an older
+ * point shifts the numbers, and the labels are renumbered on demand, in
+ * time linear in the points without queries.
+ * <p/>
+ * The {@link CoreIndex} for prediction is built once and kept up: core
+ * points an insert makes are added to it, and renumbering relabels it.
+ * It is built again once its tail reaches an eighth of it.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class IncrementalDBScan extends PartitionClustering<double[]> {
+
+  /** Least neighbors of a core point */
+  final int minPts;
+
+  /** Neighborhood radius */
+  final double radius;
+
+  /** The distance */
+  final SmileDistance distance;
+
+  /** The points */
+  final DynamicRangeIndex index;
+
+  /** Number of points */
+  int n;
+
+  /** Neighbors of each point, not counting itself */
+  int[] count;
+
+  /** Whether each point is a core point */
+  boolean[] core;
+
+  /** Union-find over the core points, each set rooted at its least point */
+  int[] parent;
+
+  /** Core point a non-core point takes its cluster from, -1 for noise */
+  int[] anchor;
+
+  /** Whether the labels and sizes are behind the inserts */
+  volatile boolean stale;
+
+  /** Points the insert under way made core, the new point included */
+  int[] fresh = new int[16];
+
+  int freshCount;
+
+  /** Non-core points the insert under way gave another anchor */
+  int[] moved = new int[16];
+
+  int movedCount;
+
+  /** Whether the insert under way shifted the cluster numbers */
+  boolean renumbered;
+
+  /** Core points for prediction, or null until asked for */
+  CoreIndex cores;
+
+  /** Point number of each core point of cores */
+  int[] coreIds;
+
+  /** Tail length of cores that never triggers a rebuild */
+  static final int MIN_TAIL = 1024;
+
+  /**
+   * Clusters the rows of a matrix, each copied as it is inserted.
+   *
+   * @param matrix the points
+   * @param distance the distance
+   * @param minPts least neighbors of a core point, not counting itself
+   * @param radius the neighborhood radius
+   */
+  public IncrementalDBScan(InstancesMatrix matrix, SmileDistance distance, int minPts, double radius) {
+    if (minPts < 1) {
+      throw new IllegalArgumentException("Invalid minPts: " + minPts);
+    }
+    if (radius <= 0.0) {
+      throw new IllegalArgumentException("Invalid radius: " + radius);
+    }
+    this.minPts = minPts;
+    this.radius = radius;
+    this.distance = distance;
+    index = new DynamicRangeIndex(distance, matrix.numColumns(), radius);
+    int capacity = Math.max(16, matrix.numRows());
+    count = new int[capacity];
+    core = new boolean[capacity];
+    parent = new int[capacity];
+    anchor = new int[capacity];
+    double[] values = matrix.values();
+    int d = matrix.numColumns();
+    for (int i = 0; i < matrix.numRows(); i++) {
+      insert(Arrays.copyOfRange(values, i * d, (i + 1) * d));
+    }
+    settleBorders();
+    relabel();
+  }
+
+  /**
+   * Adds a point and updates the clusters around it.
+   *
+   * @param x the point, kept, not copied
+   * @return its number
+   */
+  public int insert(double[] x) {
+    List<Neighbor<double[], double[]>> found = new ArrayList<>();
+    index.range(x, radius, found);
+    int id = index.add(x);
+    if (id == count.length) {
+      int capacity = 2 * id;
+      count = Arrays.copyOf(count, capacity);
+      core = Arrays.copyOf(core, capacity);
+      parent = Arrays.copyOf(parent, capacity);
+      anchor = Arrays.copyOf(anchor, capacity);
+    }
+    n = id + 1;
+    count[id] = found.size();
+    parent[id] = id;
+    anchor[id] = -1;
+    freshCount = 0;
+    movedCount = 0;
+    renumbered = false;
+
+    // the neighbors gain a neighbor, some enough to be core
+    int[] promoted = new int[found.size()];
+    int promotions = 0;
+    for (Neighbor<double[], double[]> neighbor : found) {
+      int q = neighbor.index;
+      if (++count[q] == minPts) {
+        promote(q);
+        promoted[promotions++] = q;
+      }
+    }
+    if (count[id] >= minPts) {
+      promote(id);
+      link(id, found);
+    } else {
+      for (Neighbor<double[], double[]> neighbor : found) {
+        if (core[neighbor.index]) {
+          offer(id, neighbor.index);
+        }
+      }
+    }
+    for (int p = 0; p < promotions; p++) {
+      int q = promoted[p];
+      found.clear();
+      index.range(index.get(q), radius, found);
+      link(q, found);
+    }
+    for (int f = 0; f < freshCount; f++) {
+      // a new cluster from an older point comes before later ones
+      if (fresh[f] != id && find(fresh[f]) == fresh[f]) {
+        renumbered = true;
+      }
+    }
+    if (stale || y == null || renumbered) {
+      stale = true;
+    } else {
+      label(id);
+    }
+    if (cores != null) {
+      for (int f = 0; f < freshCount; f++) {
+        addCore(fresh[f]);
+      }
+      if (cores.tailSize() > Math.max(MIN_TAIL, cores.size() / 8)) {
+        cores = null;
+      }
+    }
+    return id;
+  }
+
+  void promote(int q) {
+    core[q] = true;
+    anchor[q] = -1;
+    k++;
+    if (freshCount == fresh.length) {
+      fresh = Arrays.copyOf(fresh, 2 * freshCount);
+    }
+    fresh[freshCount++] = q;
+  }
+
+  boolean fresh(int q) {
+    for (int f = 0; f < freshCount; f++) {
+      if (fresh[f] == q) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Brings the labels and sizes up to date after an insert that kept the
+   * cluster numbers: the new point, the points it made core and the
+   * points it gave another anchor are labelled again, and a cluster the
+   * new point started goes last.
+   */
+  void label(int id) {
+    int clusters = size.length - 1;
+    if (core[id] && find(id) == id) {
+      size = Arrays.copyOf(size, clusters + 2);
+      size[clusters + 1] = size[clusters];
+      size[clusters] = 0;
+    }
+    if (y.length < count.length) {
+      y = Arrays.copyOf(y, count.length);
+    }
+    update(id, -1, clusters);
+    for (int f = 0; f < freshCount; f++) {
+      if (fresh[f] != id) {
+        update(fresh[f], y[fresh[f]], clusters);
+      }
+    }
+    for (int m = 0; m < movedCount; m++) {
+      if (moved[m] != id) {
+        update(moved[m], y[moved[m]], clusters);
+      }
+    }
+  }
+
+  /**
+   * Labels one point again and moves it between the sizes.
+   *
+   * @param old its label before the insert, -1 for the new point
+   * @param clusters number of clusters before the insert
+   */
+  void update(int p, int old, int clusters) {
+    int c = core[p] ? p : anchor[p];
+    int label = OUTLIER;
+    if (c >= 0) {
+      int root = find(c);
+      // the new point as a root starts the one cluster without a label
+      label = root == p && old < 0 ? clusters : y[root];
+    }
+    if (old >= 0) {
+      size[old == OUTLIER ? size.length - 1 : old]--;
+    }
+    size[label == OUTLIER ? size.length - 1 : label]++;
+    y[p] = label;
+  }
+
+  /**
+   * Joins a core point with the core points among its neighbors and offers
+   * it to the rest.
+   */
+  void link(int c, List<Neighbor<double[], double[]>> neighbors) {
+    for (Neighbor<double[], double[]> neighbor : neighbors) {
+      if (core[neighbor.index]) {
+        union(c, neighbor.index);
+      }
+    }
+    for (Neighbor<double[], double[]> neighbor : neighbors) {
+      if (!core[neighbor.index]) {
+        offer(neighbor.index, c);
+      }
+    }
+  }
+
+  /**
+   * Gives a non-core point the cluster of a core point near it when that
+   * comes first of those it has.
+   */
+  void offer(int b, int c) {
+    if (anchor[b] < 0 || find(c) < find(anchor[b])) {
+      anchor[b] = c;
+      if (movedCount == moved.length) {
+        moved = Arrays.copyOf(moved, 2 * movedCount);
+      }
+      moved[movedCount++] = b;
+    }
+  }
+
+  int find(int x) {
+    while (parent[x] != x) {
+      parent[x] = parent[parent[x]];
+      x = parent[x];
+    }
+    return x;
+  }
+
+  void union(int a, int b) {
+    a = find(a);
+    b = find(b);
+    if (a != b) {
+      // the cluster of an older root loses its number
+      if (!fresh(Math.max(a, b))) {
+        renumbered = true;
+      }
+      parent[Math.max(a, b)] = Math.min(a, b);
+      k--;
+    }
+  }
+
+  /**
+   * Gives every non-core point the least cluster near it, as the batch
+   * algorithm does.
+   */
+  void settleBorders() {
+    List<Neighbor<double[], double[]>> found = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      if (!core[i]) {
+        anchor[i] = -1;
+        found.clear();
+        index.range(index.get(i), radius, found);
+        for (Neighbor<double[], double[]> neighbor : found) {
+          if (core[neighbor.index]) {
+            offer(i, neighbor.index);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Numbers the clusters by their least point and labels every point, if
+   * inserts have come since. Done on demand otherwise.
+   */
+  public synchronized void relabel() {
+    if (!stale && y != null) {
+      return;
+    }
+    int[] labels = new int[n];
+    int clusters = 0;
+    for (int i = 0; i < n; i++) {
+      if (core[i]) {
+        int root = find(i);
+        labels[i] = root == i ? clusters++ : labels[root];
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      if (!core[i]) {
+        labels[i] = anchor[i] < 0 ? OUTLIER : labels[anchor[i]];
+      }
+    }
+    int[] sizes = new int[clusters + 1];
+    for (int i = 0; i < n; i++) {
+      sizes[labels[i] == OUTLIER ? clusters : labels[i]]++;
+    }
+    y = labels;
+    size = sizes;
+    stale = false;
+    if (cores != null) {
+      for (int c = 0; c < cores.size(); c++) {
+        cores.labels[c] = y[coreIds[c]];
+      }
+    }
+  }
+
+  /**
+   * @return the number of points
+   */
+  public int size() {
+    return n;
+  }
+
+  /**
+   * @return the core points and their clusters as they stand, for
+   *         assigning new points
+   */
+  public synchronized CoreIndex coreIndex() {
+    relabel();
+    if (cores == null) {
+      double[][] rows = new double[n][];
+      for (int i = 0; i < n; i++) {
+        rows[i] = index.get(i);
+      }
+      cores = new CoreIndex(rows, core, y, distance, radius);
+      coreIds = new int[Math.max(16, cores.size())];
+      for (int i = 0, c = 0; i < n; i++) {
+        if (core[i]) {
+          coreIds[c++] = i;
+        }
+      }
+    }
+    return cores;
+  }
+
+  /**
+   * Adds a point the insert made core to the core index, labelled when
+   * the labels are up to date and otherwise when they are brought up.
+   */
+  void addCore(int q) {
+    int c = cores.size();
+    if (c == coreIds.length) {
+      coreIds = Arrays.copyOf(coreIds, 2 * c);
+    }
+    coreIds[c] = q;
+    cores.add(index.get(q), stale ? OUTLIER : y[q]);
+  }
+
+  @Override
+  public int[] getClusterLabel() {
+    relabel();
+    if (y.length != n) {
+      y = Arrays.copyOf(y, n);
+    }
+    return y;
+  }
+
+  @Override
+  public int[] getClusterSize() {
+    relabel();
+    return size;
+  }
+
+  /**
+   * As the batch algorithm: outlier when the point has fewer than minPts
+   * neighbors among the points, otherwise the cluster most of its
+   * neighbors belong to.
+   *
+   * @param x the point
+   * @return its cluster or OUTLIER
+   */
+  @Override
+  public int predict(double[] x) {
+    relabel();
+    List<Neighbor<double[], double[]>> found = new ArrayList<>();
+    index.range(x, radius, found);
+    if (found.size() < minPts) {
+      return OUTLIER;
+    }
+    int[] votes = new int[k + 1];
+    for (Neighbor<double[], double[]> neighbor : found) {
+      int label = y[neighbor.index];
+      votes[label == OUTLIER ? k : label]++;
+    }
+    int best = smile.math.Math.whichMax(votes);
+    return best == k ? OUTLIER : best;
+  }
+}
@@ -0,0 +1,215 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import smile.sort.QuickSort;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
+import us.hall.weka.smile.neighbor.RangeList;
+import us.hall.weka.smile.neighbor.RowSearch;
+
+/**
+ * The neighbors of every row within a largest radius, each row's sorted by
+ * distance, from which DBSCAN clusterings for any smaller radius and any
+ * minPts are read without another distance. A row is core for a radius
+ * and minPts when its minPts-th neighbor lies within the radius, and its
+ * neighbors within the radius are a prefix of its list, so a clustering
+ * costs one pass over those prefixes. The minPts-th neighbor distances are
+ * the k-distance graph, whose knee suggests a radius.
+ * <p/>
+ * The graph is held compressed sparse row fashion: the neighbors of row i
+ * are at positions [offsets[i], offsets[i + 1]) of a row number and a
+ * distance array. It takes twelve bytes a pair of neighbors, so the
+ * largest radius bounds the memory as well as the radii that can be read.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class NeighborhoodGraph {
+
+  /** Rows queried per task */
+  static final int CHUNK = 1024;
+
+  /** The rows, row i at i * d */
+  final double[] values;
+
+  /** Number of rows */
+  final int n;
+
+  /** Dimension */
+  final int d;
+
+  /** The distance */
+  final SmileDistance distance;
+
+  /** Largest radius */
+  final double maxRadius;
+
+  /** First position of the neighbors of each row, and the total at the end */
+  final int[] offsets;
+
+  /** Row number of each neighbor */
+  final int[] ids;
+
+  /** Distance of each neighbor, ascending within a row */
+  final double[] dists;
+
+  /**
+   * Queries the neighborhood of every row, chunks of rows in parallel.
+   *
+   * @param matrix the points, whose values are kept, not copied
+   * @param search range search over the rows, answering for maxRadius
+   * @param distance the distance of the search
+   * @param maxRadius the largest radius of interest
+   */
+  public NeighborhoodGraph(InstancesMatrix matrix, RowSearch search, SmileDistance distance, double maxRadius) {
+    if (!(maxRadius > 0.0) || Double.isInfinite(maxRadius)) {
+      throw new IllegalArgumentException("Invalid radius: " + maxRadius);
+    }
+    values = matrix.values();
+    n = matrix.numRows();
+    d = matrix.numColumns();
+    this.distance = distance;
+    this.maxRadius = maxRadius;
+    int[][] rowIds = new int[n][];
+    double[][] rowDists = new double[n][];
+    IntStream chunks = IntStream.range(0, (n + CHUNK - 1) / CHUNK);
+    if (n > CHUNK) {
+      chunks = chunks.parallel();
+    }
+    chunks.forEach(c -> {
+      RangeList found = new RangeList();
+      int end = Math.min(n, (c + 1) * CHUNK);
+      for (int i = c * CHUNK; i < end; i++) {
+        found.clear();
+        search.range(i, maxRadius, found);
+        int m = found.size();
+        int[] id = new int[m];
+        double[] dist = new double[m];
+        for (int p = 0; p < m; p++) {
+          id[p] = found.index(p);
+          dist[p] = found.distance(p);
+        }
+        QuickSort.sort(dist, id, m);
+        rowIds[i] = id;
+        rowDists[i] = dist;
+      }
+    });
+    offsets = new int[n + 1];
+    long total = 0;
+    for (int i = 0; i < n; i++) {
+      total += rowIds[i].length;
+      if (total > Integer.MAX_VALUE - 8) {
+        throw new IllegalArgumentException("Too many neighbors within " + maxRadius + ", use a smaller radius");
+      }
+      offsets[i + 1] = (int)total;
+    }
+    ids = new int[(int)total];
+    dists = new double[(int)total];
+    for (int i = 0; i < n; i++) {
+      System.arraycopy(rowIds[i], 0, ids, offsets[i], rowIds[i].length);
+      System.arraycopy(rowDists[i], 0, dists, offsets[i], rowDists[i].length);
+      rowIds[i] = null;
+      rowDists[i] = null;
+    }
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int size() {
+    return n;
+  }
+
+  /**
+   * @return the number of neighbor pairs, each counted from both ends
+   */
+  public int edges() {
+    return ids.length;
+  }
+
+  /**
+   * @return the largest radius clusterings can be read for
+   */
+  public double maxRadius() {
+    return maxRadius;
+  }
+
+  /**
+   * @param i a row
+   * @param k a neighbor count, at least 1
+   * @return the distance of the k-th nearest neighbor of the row, not
+   *         counting itself, or infinity when it lies beyond the largest
+   *         radius
+   */
+  public double kDistance(int i, int k) {
+    int p = offsets[i] + k - 1;
+    return p < offsets[i + 1] ? dists[p] : Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * @param k a neighbor count, at least 1
+   * @return the k-distance of every row
+   */
+  public double[] kDistances(int k) {
+    double[] kd = new double[n];
+    for (int i = 0; i < kd.length; i++) {
+      kd[i] = kDistance(i, k);
+    }
+    return kd;
+  }
+
+  /**
+   * A radius for minPts at the knee of the sorted k-distance graph, where
+   * the distances of the rows inside clusters give way to those of the
+   * noise: the point of the ascending curve furthest below the chord from
+   * its first point to its last, both axes scaled to one. Rows with fewer
+   * than minPts neighbors within the largest radius are left out, so the
+   * largest radius should reach past the knee.
+   *
+   * @param minPts least neighbors of a core point, not counting itself
+   * @return the suggested radius, the largest radius when no row has
+   *         minPts neighbors within it
+   */
+  public double suggestRadius(int minPts) {
+    if (minPts < 1) {
+      throw new IllegalArgumentException("Invalid minPts: " + minPts);
+    }
+    double[] kd = kDistances(minPts);
+    int m = 0;
+    for (double v : kd) {
+      if (!Double.isInfinite(v)) {
+        kd[m++] = v;
+      }
+    }
+    if (m == 0) {
+      return maxRadius;
+    }
+    Arrays.sort(kd, 0, m);
+    double lo = kd[0], span = kd[m - 1] - lo;
+    if (m < 3 || span == 0.0) {
+      return kd[m - 1];
+    }
+    int knee = 0;
+    double gap = 0.0;
+    for (int i = 1; i < m - 1; i++) {
+      double g = (double)i / (m - 1) - (kd[i] - lo) / span;
+      if (g > gap) {
+        gap = g;
+        knee = i;
+      }
+    }
+    return kd[knee];
+  }
+
+  /**
+   * Reads the DBSCAN clustering of a radius and minPts off the graph.
+   *
+   * @param radius the neighborhood radius, at most the largest radius
+   * @param minPts least neighbors of a core point, not counting itself
+   * @return the clustering, labeled as smile.clustering.DBScan labels it
+   */
+  public GraphDBScan cluster(double radius, int minPts) {
+    return new GraphDBScan(this, radius, minPts);
+  }
+}
@@ -0,0 +1,415 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import smile.clustering.PartitionClustering;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.UnrolledDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
+import us.hall.weka.smile.neighbor.RangeList;
+import us.hall.weka.smile.neighbor.RowSearch;
+
+/**
+ * DBSCAN run on the fork-join common pool, partition by partition, with the
+ * labels smile.clustering.DBScan gives sequentially.
+ * <p/>
+ * The data is cut into slabs along its widest coordinate, each holding
+ * about as many rows. A partition indexes the rows of its slab and a halo
+ * of those within the radius of it, so the neighbors of every row it owns
+ * are found locally: under the Euclidean, Manhattan, Chebyshev and
+ * Minkowski distances no coordinate of a neighbor differs by more than the
+ * radius. Other distances and missing values leave one partition, whose
+ * rows are still queried in parallel.
+ * <p/>
+ * The sequential algorithm makes each set of core points linked by the
+ * radius a cluster, numbered in the order of its first row, and gives a
+ * border point the first of the clusters with a core point near it. Here
+ * a first pass over the partitions marks the core points, a second joins
+ * neighboring core points in a concurrent union-find, across partitions
+ * through the halos, and a last gives the border points the least cluster
+ * near them. Neighborhoods are queried again in each pass rather than
+ * held, so memory stays linear in the rows.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class ParallelDBScan extends PartitionClustering<double[]> {
+
+  /** Rows a partition owns at least when the number is chosen */
+  static final int MIN_PARTITION = 4096;
+
+  /** Rows of a partition per task */
+  static final int CHUNK = 1024;
+
+  /**
+   * Relative widening of the halo over the radius, which covers rounding in
+   * the distances and the slab bounds
+   */
+  static final double WIDEN = 1e-6;
+
+  /** Largest coordinate in radii for which the widening covers rounding */
+  static final double MAX_MAGNITUDE = 1e8;
+
+  /** Least neighbors of a core point */
+  final int minPts;
+
+  /** Neighborhood radius */
+  final double radius;
+
+  /** Coordinate the slabs cut, -1 for a single partition */
+  final int axis;
+
+  /** Least axis value of each slab after the first */
+  final double[] bounds;
+
+  /** The partitions, one per slab */
+  final Partition[] parts;
+
+  /** Whether each row is a core point */
+  boolean[] core;
+
+  /**
+   * Clusters the rows of a matrix.
+   *
+   * @param matrix the points
+   * @param distance the distance
+   * @param minPts least neighbors of a core point, not counting itself
+   * @param radius the neighborhood radius
+   * @param search builds the range search over the rows of a partition
+   * @param partitions number of slabs wanted, or 0 to choose from the
+   *        rows and the pool parallelism; fewer are cut when slabs would
+   *        be narrower than the halos
+   */
+  public ParallelDBScan(InstancesMatrix matrix, SmileDistance distance, int minPts, double radius,
+      Function<InstancesMatrix, RowSearch> search, int partitions) {
+    if (minPts < 1) {
+      throw new IllegalArgumentException("Invalid minPts: " + minPts);
+    }
+    if (radius <= 0.0) {
+      throw new IllegalArgumentException("Invalid radius: " + radius);
+    }
+    this.minPts = minPts;
+    this.radius = radius;
+    int n = matrix.numRows();
+    if (partitions <= 0) {
+      partitions = Math.min(n / MIN_PARTITION, 4 * ForkJoinPool.getCommonPoolParallelism());
+    }
+    axis = partitions > 1 ? axis(matrix, distance, radius) : -1;
+    bounds = axis < 0 ? new double[0] : bounds(matrix, axis, partitions, 2.0 * halo());
+    parts = partition(matrix, search);
+    cluster(n);
+  }
+
+  double halo() {
+    return radius * (1.0 + WIDEN);
+  }
+
+  /**
+   * @return the coordinate of widest spread, or -1 when slabs with halos
+   *         would not find every neighbor
+   */
+  static int axis(InstancesMatrix matrix, SmileDistance distance, double radius) {
+    if (!(distance.getSmileDistance() instanceof UnrolledDistance)) {
+      return -1;
+    }
+    int d = matrix.numColumns();
+    double[] values = matrix.values();
+    int best = -1;
+    double spread = 0.0;
+    for (int j = 0; j < d; j++) {
+      double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+      for (int off = j; off < values.length; off += d) {
+        double v = values[off];
+        if (Double.isNaN(v)) {
+          return -1;
+        }
+        lo = Math.min(lo, v);
+        hi = Math.max(hi, v);
+      }
+      if (Math.max(Math.abs(lo), Math.abs(hi)) / radius >= MAX_MAGNITUDE) {
+        return -1;
+      }
+      if (hi - lo > spread) {
+        spread = hi - lo;
+        best = j;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Cuts the axis at quantiles into at most the given number of slabs, none
+   * narrower than a minimum width.
+   */
+  static double[] bounds(InstancesMatrix matrix, int axis, int partitions, double width) {
+    int n = matrix.numRows();
+    int d = matrix.numColumns();
+    double[] values = matrix.values();
+    double[] sorted = new double[n];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = values[i * d + axis];
+    }
+    Arrays.sort(sorted);
+    double[] bounds = new double[partitions - 1];
+    int count = 0;
+    double last = sorted[0];
+    for (int s = 1; s < partitions; s++) {
+      double b = sorted[(int)((long)s * n / partitions)];
+      if (b - last >= width) {
+        bounds[count++] = b;
+        last = b;
+      }
+    }
+    return Arrays.copyOf(bounds, count);
+  }
+
+  /**
+   * @param v an axis value
+   * @return the slab holding it
+   */
+  int slab(double v) {
+    int lo = 0, hi = bounds.length;
+    while (lo < hi) {
+      int m = (lo + hi) >>> 1;
+      if (bounds[m] <= v) {
+        lo = m + 1;
+      } else {
+        hi = m;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Gathers the rows of each slab and its halo, in row order, and indexes
+   * them, the partitions in parallel.
+   */
+  Partition[] partition(InstancesMatrix matrix, Function<InstancesMatrix, RowSearch> search) {
+    int n = matrix.numRows();
+    int d = matrix.numColumns();
+    double[] values = matrix.values();
+    int p = bounds.length + 1;
+    double h = halo();
+    int[] start = new int[p + 1];
+    for (int i = 0; i < n; i++) {
+      if (axis < 0) {
+        start[1]++;
+      } else {
+        double v = values[i * d + axis];
+        for (int s = slab(v - h), last = slab(v + h); s <= last; s++) {
+          start[s + 1]++;
+        }
+      }
+    }
+    for (int s = 0; s < p; s++) {
+      start[s + 1] += start[s];
+    }
+    int[] members = new int[start[p]];
+    int[] next = Arrays.copyOf(start, p);
+    for (int i = 0; i < n; i++) {
+      if (axis < 0) {
+        members[next[0]++] = i;
+      } else {
+        double v = values[i * d + axis];
+        for (int s = slab(v - h), last = slab(v + h); s <= last; s++) {
+          members[next[s]++] = i;
+        }
+      }
+    }
+    Partition[] parts = new Partition[p];
+    IntStream slabs = IntStream.range(0, p);
+    if (p > 1) {
+      slabs = slabs.parallel();
+    }
+    slabs.forEach(s -> {
+      InstancesMatrix local = matrix.select(members, start[s], start[s + 1]);
+      int[] rows = Arrays.copyOfRange(members, start[s], start[s + 1]);
+      boolean[] owned = new boolean[rows.length];
+      for (int l = 0; l < rows.length; l++) {
+        owned[l] = axis < 0 || slab(values[rows[l] * d + axis]) == s;
+      }
+      parts[s] = new Partition(rows, owned, search.apply(local));
+    });
+    return parts;
+  }
+
+  /**
+   * Labels the rows: marks the core points, joins neighboring core points
+   * and numbers the sets by their least row, then gives each border point
+   * the least cluster near it.
+   */
+  void cluster(int n) {
+    core = new boolean[n];
+    forEachOwned(null, false, (part, row, found) -> core[row] = found.size() >= minPts);
+
+    // each pair of core points is seen from both ends, join it from one
+    ConcurrentUnionFind sets = new ConcurrentUnionFind(n);
+    forEachOwned(core, true, (part, row, found) -> {
+      for (int r = 0; r < found.size(); r++) {
+        int other = part.members[found.index(r)];
+        if (other < row && core[other]) {
+          sets.union(row, other);
+        }
+      }
+    });
+
+    // sets are rooted at their least row, which comes before the rest
+    y = new int[n];
+    k = 0;
+    for (int i = 0; i < n; i++) {
+      if (core[i]) {
+        int root = sets.find(i);
+        y[i] = root == i ? k++ : y[root];
+      }
+    }
+
+    forEachOwned(core, false, (part, row, found) -> {
+      int label = OUTLIER;
+      for (int r = 0; r < found.size(); r++) {
+        int other = part.members[found.index(r)];
+        if (core[other]) {
+          label = Math.min(label, y[other]);
+        }
+      }
+      y[row] = label;
+    });
+
+    size = new int[k + 1];
+    for (int i = 0; i < n; i++) {
+      size[y[i] == OUTLIER ? k : y[i]]++;
+    }
+  }
+
+  /**
+   * Queries the neighborhood of every row in the partition that owns it,
+   * chunks of rows in parallel.
+   *
+   * @param core core flags to select rows by, or null for all
+   * @param which the flag of the rows selected
+   * @param visitor receives each row and its neighbors
+   */
+  void forEachOwned(boolean[] core, boolean which, RowVisitor visitor) {
+    int tasks = 0;
+    for (Partition part : parts) {
+      tasks += (part.members.length + CHUNK - 1) / CHUNK;
+    }
+    int[] taskPart = new int[tasks];
+    int[] taskFrom = new int[tasks];
+    for (int s = 0, t = 0; s < parts.length; s++) {
+      for (int from = 0; from < parts[s].members.length; from += CHUNK, t++) {
+        taskPart[t] = s;
+        taskFrom[t] = from;
+      }
+    }
+    IntStream chunks = IntStream.range(0, tasks);
+    if (tasks > 1) {
+      chunks = chunks.parallel();
+    }
+    chunks.forEach(t -> {
+      Partition part = parts[taskPart[t]];
+      RangeList found = new RangeList();
+      int end = Math.min(part.members.length, taskFrom[t] + CHUNK);
+      for (int l = taskFrom[t]; l < end; l++) {
+        int row = part.members[l];
+        if (!part.owned[l] || (core != null && core[row] != which)) {
+          continue;
+        }
+        found.clear();
+        part.search.range(l, radius, found);
+        visitor.visit(part, row, found);
+      }
+    });
+  }
+
+  /**
+   * As the sequential algorithm: outlier when the point has fewer than
+   * minPts neighbors in the training data, otherwise the cluster most of
+   * its neighbors belong to.
+   *
+   * @param x the point
+   * @return its cluster or OUTLIER
+   */
+  @Override
+  public int predict(double[] x) {
+    // one slab's partition holds every neighbor, without an axis value all
+    // are asked and each row taken from its owner
+    int from = 0, to = parts.length - 1;
+    if (axis >= 0 && !Double.isNaN(x[axis])) {
+      from = to = slab(x[axis]);
+    }
+    VoteBuffer vote = VoteBuffer.forThread(k);
+    RangeList found = vote.found;
+    int total = 0;
+    for (int s = from; s <= to; s++) {
+      Partition part = parts[s];
+      found.clear();
+      part.search.range(x, radius, found);
+      for (int r = 0; r < found.size(); r++) {
+        int l = found.index(r);
+        if (from == to || part.owned[l]) {
+          int label = y[part.members[l]];
+          vote.count[label == OUTLIER ? k : label]++;
+          total++;
+        }
+      }
+    }
+    if (total < minPts) {
+      return OUTLIER;
+    }
+    int best = vote.best(k);
+    return best == k ? OUTLIER : best;
+  }
+
+  /**
+   * @return whether each row is a core point
+   */
+  public boolean[] cores() {
+    return core;
+  }
+
+  /**
+   * @return the number of partitions
+   */
+  public int numPartitions() {
+    return parts.length;
+  }
+
+  /**
+   * Receives the neighborhoods of {@link ParallelDBScan#forEachOwned}.
+   */
+  interface RowVisitor {
+
+    /**
+     * Called from several threads at once for different rows. The list is
+     * reused after the call returns.
+     *
+     * @param part the partition owning the row
+     * @param row the row
+     * @param found its neighbors, indexed within the partition
+     */
+    void visit(Partition part, int row, RangeList found);
+  }
+
+  /**
+   * The rows of a slab and its halo.
+   */
+  static class Partition {
+
+    /** Row of each member, ascending */
+    final int[] members;
+
+    /** Whether each member lies in the slab rather than the halo */
+    final boolean[] owned;
+
+    /** Range search over the members, asked about them by position */
+    final RowSearch search;
+
+    Partition(int[] members, boolean[] owned, RowSearch search) {
+      this.members = members;
+      this.owned = owned;
+      this.search = search;
+    }
+  }
+}
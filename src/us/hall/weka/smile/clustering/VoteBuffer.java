@@ -0,0 +1,62 @@
+package us.hall.weka.smile.clustering;
+
+import java.util.Arrays;
+
+import us.hall.weka.smile.neighbor.RangeList;
+
+/**
+ * One thread's buffers for predicting by the vote of the training
+ * neighbors, as smile.clustering.DBScan does: the neighbors found and a
+ * count per cluster, kept between predictions so a vote does not allocate.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+final class VoteBuffer {
+
+  /** one buffer per thread, see forThread */
+  private static final ThreadLocal<VoteBuffer> LOCAL = new ThreadLocal<VoteBuffer>() {
+    @Override
+    protected VoteBuffer initialValue() {
+      return new VoteBuffer();
+    }
+  };
+
+  /** Neighbors found */
+  final RangeList found = new RangeList();
+
+  /** Votes per cluster, outliers last */
+  int[] count = new int[16];
+
+  /**
+   * Returns the calling thread's buffer, cleared for a vote among k
+   * clusters and the outliers.
+   *
+   * @param k number of clusters
+   * @return the buffer
+   */
+  static VoteBuffer forThread(int k) {
+    VoteBuffer v = LOCAL.get();
+    v.found.clear();
+    if (v.count.length <= k) {
+      v.count = new int[k + 1];
+    } else {
+      Arrays.fill(v.count, 0, k + 1, 0);
+    }
+    return v;
+  }
+
+  /**
+   * @param k number of clusters
+   * @return the cluster with the most votes, the lower on a tie, k for the
+   *         outliers
+   */
+  int best(int k) {
+    int best = 0;
+    for (int c = 1; c <= k; c++) {
+      if (count[c] > count[best]) {
+        best = c;
+      }
+    }
+    return best;
+  }
+}
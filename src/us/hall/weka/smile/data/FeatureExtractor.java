@@ -0,0 +1,163 @@
+package us.hall.weka.smile.data;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Turns a single Weka Instance into the double[] a Smile model predicts on,
+ * using the attribute map and imputation values of the training matrix.
+ * <p/>
+ * Each thread writes into its own reused buffer, so once a thread has made
+ * its first call extraction does not allocate. The returned array is only
+ * valid until the same thread extracts the next instance.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class FeatureExtractor implements Serializable {
+
+  /** for serialization */
+  private static final long serialVersionUID = -5166439425838153478L;
+
+  /** Attribute index read for each column */
+  final int[] attributes;
+
+  /** Replacement for missing values per column, null to leave them NaN */
+  final double[] means;
+
+  /** Row count from which batches are predicted in parallel */
+  static final int PARALLEL_THRESHOLD = 1000;
+
+  /** Per thread output buffer */
+  private transient ThreadLocal<double[]> buffer;
+
+  /**
+   * Extractor matching the columns and imputation of a training matrix.
+   *
+   * @param matrix the training matrix
+   */
+  public FeatureExtractor(InstancesMatrix matrix) {
+    this(matrix.attributes(), matrix.means());
+  }
+
+  /**
+   * @param attributes attribute index read for each column
+   * @param means replacement for missing values per column, or null
+   */
+  public FeatureExtractor(int[] attributes, double[] means) {
+    this.attributes = attributes;
+    this.means = means;
+    initBuffer();
+  }
+
+  /**
+   * @return the attribute index of each extracted column
+   */
+  public int[] attributes() {
+    return attributes;
+  }
+
+  /**
+   * @return the number of columns extracted
+   */
+  public int numColumns() {
+    return attributes.length;
+  }
+
+  /**
+   * Extracts the instance into the calling thread's buffer.
+   *
+   * @param inst the instance
+   * @return the thread's buffer holding the features
+   */
+  public double[] extract(Instance inst) {
+    double[] x = buffer.get();
+    extract(inst, x, 0);
+    return x;
+  }
+
+  /**
+   * Extracts the instance into a caller supplied array.
+   *
+   * @param inst the instance
+   * @param x destination
+   * @param offset position of the first column in x
+   */
+  public void extract(Instance inst, double[] x, int offset) {
+    for (int j = 0; j < attributes.length; j++) {
+      double v = inst.value(attributes[j]);
+      if (means != null && Double.isNaN(v)) {
+        v = means[j];
+      }
+      x[offset + j] = v;
+    }
+  }
+
+  /**
+   * Applies a model to every instance of a batch. Rows are extracted once
+   * each and the model is called from the common fork-join pool for larger
+   * batches, so it must be safe for concurrent reads.
+   *
+   * @param data the batch
+   * @param model maps extracted features to a result
+   * @return the result per instance
+   */
+  public int[] apply(final Instances data, final ToIntFunction<double[]> model) {
+    final int[] result = new int[data.numInstances()];
+    rows(data).forEach(i -> result[i] = model.applyAsInt(extract(data.instance(i))));
+    return result;
+  }
+
+  /**
+   * Applies a model to every instance of a batch, see
+   * {@link #apply(Instances, ToIntFunction)}.
+   *
+   * @param data the batch
+   * @param model maps extracted features to a result
+   * @return the result per instance
+   */
+  public double[] applyAsDouble(final Instances data, final ToDoubleFunction<double[]> model) {
+    final double[] result = new double[data.numInstances()];
+    rows(data).forEach(i -> result[i] = model.applyAsDouble(extract(data.instance(i))));
+    return result;
+  }
+
+  /**
+   * Passes the features of every instance of a batch, with its position, to
+   * an action, see {@link #apply(Instances, ToIntFunction)}. For results
+   * wider than one value, written by position.
+   *
+   * @param data the batch
+   * @param action called with the extracted features and the row number
+   */
+  public void forEach(final Instances data, final ObjIntConsumer<double[]> action) {
+    rows(data).forEach(i -> action.accept(extract(data.instance(i)), i));
+  }
+
+  private static IntStream rows(Instances data) {
+    IntStream rows = IntStream.range(0, data.numInstances());
+    return data.numInstances() >= PARALLEL_THRESHOLD ? rows.parallel() : rows;
+  }
+
+  private void initBuffer() {
+    final int d = attributes.length;
+    buffer = new ThreadLocal<double[]>() {
+      @Override
+      protected double[] initialValue() {
+        return new double[d];
+      }
+    };
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    initBuffer();
+  }
+}
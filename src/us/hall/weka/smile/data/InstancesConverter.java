@@ -0,0 +1,318 @@
+package us.hall.weka.smile.data;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Converts Weka Instances to the primitive {@link InstancesMatrix} used by the
+ * Smile wrappers. The matrix is filled in a single (parallel for large data)
+ * pass and cached per dataset, so repeated builds on the same Instances, as in
+ * parameter sweeps, skip the copy. Missing values can be imputed during the
+ * same pass, which replaces running ReplaceMissingValues over a copy of the
+ * data.
+ * <p/>
+ * A cached matrix is reused while the Instances object is the same object,
+ * holds the same Instance objects in the same order and the same attribute
+ * is excluded. Values changed in place through Instance.setValue are not
+ * detected, call {@link #clearCache()} after doing that.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class InstancesConverter {
+
+  /** Row count from which the matrix is filled in parallel */
+  static final int PARALLEL_THRESHOLD = 10000;
+
+  /** Number of converted datasets kept */
+  static final int CACHE_SIZE = 4;
+
+  /** Most recently used entries first */
+  private static final LinkedList<Entry> cache = new LinkedList<Entry>();
+
+  /**
+   * A cached conversion. The dataset is only weakly and the matrix only
+   * softly referenced so the cache never keeps large data alive by itself.
+   */
+  static class Entry {
+    WeakReference<Instances> data;
+    int excludeIndex;
+    boolean impute;
+    int numInstances;
+    long fingerprint;
+    SoftReference<InstancesMatrix> matrix;
+  }
+
+  private InstancesConverter() {
+  }
+
+  /**
+   * Returns the matrix for the given data, from the cache if the data has not
+   * changed since it was last converted. Missing values are left as NaN.
+   *
+   * @param data the instances
+   * @param excludeIndex attribute to keep out of the feature columns and
+   *          return as class values, -1 for none
+   * @return the matrix, shared and read only
+   */
+  public static InstancesMatrix convert(Instances data, int excludeIndex) {
+    return convert(data, excludeIndex, false);
+  }
+
+  /**
+   * Returns the matrix for the given data, from the cache if the data has not
+   * changed since it was last converted.
+   *
+   * @param data the instances
+   * @param excludeIndex attribute to keep out of the feature columns and
+   *          return as class values, -1 for none
+   * @param impute whether to replace missing values with the column mean
+   *          (mode for nominal attributes)
+   * @return the matrix, shared and read only
+   */
+  public static InstancesMatrix convert(Instances data, int excludeIndex, boolean impute) {
+    long fingerprint = fingerprint(data);
+    InstancesMatrix matrix = lookup(data, excludeIndex, impute, fingerprint);
+    if (matrix == null) {
+      matrix = toMatrix(data, excludeIndex, impute);
+      store(data, excludeIndex, impute, fingerprint, matrix);
+    }
+    return matrix;
+  }
+
+  /**
+   * Converts the data without consulting the cache.
+   * <p/>
+   * The rows are written in one pass, split into chunks for large data, while
+   * each chunk accumulates the weighted column sums and nominal value counts
+   * of what it has seen. When imputing, only the rows found to contain a
+   * missing value are revisited afterwards, so no filtered copy of the data
+   * is ever made.
+   *
+   * @param data the instances
+   * @param excludeIndex attribute to keep out of the feature columns, -1 for none
+   * @param impute whether to replace missing values with the column mean
+   *          (mode for nominal attributes)
+   * @return a new matrix
+   */
+  public static InstancesMatrix toMatrix(final Instances data, int excludeIndex,
+    boolean impute) {
+    final int n = data.numInstances();
+    final int[] attributes = columns(data.numAttributes(), excludeIndex);
+    final int d = attributes.length;
+    if ((long)n * d > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Dataset too large for a single matrix: "
+        + n + " x " + d);
+    }
+    final double[] values = new double[n * d];
+    final double[] classValues = excludeIndex >= 0 ? new double[n] : null;
+    final double[] weights = new double[n];
+    final boolean[] missingRows = impute ? new boolean[n] : null;
+    final int[] numValues = new int[d];
+    for (int j = 0; j < d; j++) {
+      if (data.attribute(attributes[j]).isNominal()) {
+        numValues[j] = data.attribute(attributes[j]).numValues();
+      }
+    }
+    final int exclude = excludeIndex;
+    final int chunks = n >= PARALLEL_THRESHOLD
+      ? Math.max(1, Math.min(n / (PARALLEL_THRESHOLD / 4),
+          4 * ForkJoinPool.getCommonPoolParallelism()))
+      : 1;
+    final ColumnStats[] stats = new ColumnStats[chunks];
+    IntStream parts = IntStream.range(0, chunks);
+    if (chunks > 1) {
+      parts = parts.parallel();
+    }
+    parts.forEach(c -> {
+      ColumnStats st = impute ? new ColumnStats(numValues) : null;
+      int to = (int)((long)n * (c + 1) / chunks);
+      for (int i = (int)((long)n * c / chunks); i < to; i++) {
+        Instance inst = data.instance(i);
+        int off = i * d;
+        double w = inst.weight();
+        for (int j = 0; j < d; j++) {
+          double v = inst.value(attributes[j]);
+          values[off + j] = v;
+          if (st != null) {
+            if (Double.isNaN(v)) {
+              missingRows[i] = true;
+            } else {
+              st.add(j, v, w);
+            }
+          }
+        }
+        if (classValues != null) {
+          classValues[i] = inst.value(exclude);
+        }
+        weights[i] = w;
+      }
+      stats[c] = st;
+    });
+    double[] means = null;
+    if (impute) {
+      for (int c = 1; c < chunks; c++) {
+        stats[0].merge(stats[c]);
+      }
+      means = stats[0].means();
+      for (int i = 0; i < n; i++) {
+        if (missingRows[i]) {
+          int off = i * d;
+          for (int j = 0; j < d; j++) {
+            if (Double.isNaN(values[off + j])) {
+              values[off + j] = means[j];
+            }
+          }
+        }
+      }
+    }
+    return new InstancesMatrix(values, n, d, attributes, classValues, weights, means);
+  }
+
+  /**
+   * Weighted column sums and nominal value counts over part of the rows.
+   */
+  static class ColumnStats {
+    final double[] sums;
+    final double[] weights;
+    final double[][] counts;
+
+    ColumnStats(int[] numValues) {
+      int d = numValues.length;
+      sums = new double[d];
+      weights = new double[d];
+      counts = new double[d][];
+      for (int j = 0; j < d; j++) {
+        if (numValues[j] > 0) {
+          counts[j] = new double[numValues[j]];
+        }
+      }
+    }
+
+    void add(int j, double v, double w) {
+      if (counts[j] != null) {
+        counts[j][(int)v] += w;
+      } else {
+        sums[j] += v * w;
+      }
+      weights[j] += w;
+    }
+
+    void merge(ColumnStats other) {
+      for (int j = 0; j < sums.length; j++) {
+        sums[j] += other.sums[j];
+        weights[j] += other.weights[j];
+        if (counts[j] != null) {
+          for (int v = 0; v < counts[j].length; v++) {
+            counts[j][v] += other.counts[j][v];
+          }
+        }
+      }
+    }
+
+    /**
+     * @return the mean of each numeric and the mode of each nominal column,
+     *         0 for columns without any observed value
+     */
+    double[] means() {
+      double[] means = new double[sums.length];
+      for (int j = 0; j < means.length; j++) {
+        if (weights[j] <= 0) {
+          continue;
+        }
+        if (counts[j] != null) {
+          means[j] = Utils.maxIndex(counts[j]);
+        } else {
+          means[j] = sums[j] / weights[j];
+        }
+      }
+      return means;
+    }
+  }
+
+  /**
+   * Drops all cached conversions.
+   */
+  public static synchronized void clearCache() {
+    cache.clear();
+  }
+
+  /**
+   * @param numAttributes number of attributes
+   * @param excludeIndex attribute to leave out, -1 for none
+   * @return the attribute index for each column
+   */
+  static int[] columns(int numAttributes, int excludeIndex) {
+    int d = (excludeIndex >= 0 && excludeIndex < numAttributes) ? numAttributes - 1 : numAttributes;
+    int[] attributes = new int[d];
+    int c = 0;
+    for (int j = 0; j < numAttributes; j++) {
+      if (j != excludeIndex) {
+        attributes[c++] = j;
+      }
+    }
+    return attributes;
+  }
+
+  /**
+   * Cheap modification check, O(n) over instance identities rather than
+   * O(n * d) over values.
+   */
+  static long fingerprint(Instances data) {
+    long h = data.numAttributes();
+    for (int i = 0; i < data.numInstances(); i++) {
+      h = 31 * h + System.identityHashCode(data.instance(i));
+    }
+    return h;
+  }
+
+  private static synchronized InstancesMatrix lookup(Instances data, int excludeIndex,
+    boolean impute, long fingerprint) {
+    Iterator<Entry> it = cache.iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      Instances cached = e.data.get();
+      InstancesMatrix matrix = e.matrix.get();
+      if (cached == null || matrix == null) {
+        it.remove();
+        continue;
+      }
+      if (cached == data && e.excludeIndex == excludeIndex && e.impute == impute
+        && e.numInstances == data.numInstances() && e.fingerprint == fingerprint) {
+        it.remove();
+        cache.addFirst(e);
+        return matrix;
+      }
+    }
+    return null;
+  }
+
+  private static synchronized void store(Instances data, int excludeIndex, boolean impute,
+    long fingerprint, InstancesMatrix matrix) {
+    Iterator<Entry> it = cache.iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      if (e.data.get() == data && e.excludeIndex == excludeIndex && e.impute == impute) {
+        it.remove();
+      }
+    }
+    Entry e = new Entry();
+    e.data = new WeakReference<Instances>(data);
+    e.excludeIndex = excludeIndex;
+    e.impute = impute;
+    e.numInstances = data.numInstances();
+    e.fingerprint = fingerprint;
+    e.matrix = new SoftReference<InstancesMatrix>(matrix);
+    cache.addFirst(e);
+    while (cache.size() > CACHE_SIZE) {
+      cache.removeLast();
+    }
+  }
+}
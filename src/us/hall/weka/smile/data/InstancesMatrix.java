@@ -0,0 +1,169 @@
+package us.hall.weka.smile.data;
+
+import java.io.Serializable;
+
+/**
+ * Primitive, row major copy of the numeric content of a Weka Instances
+ * object. All feature values are held in one contiguous double[] so the
+ * Smile wrappers can share a single conversion of a dataset.
+ * <p/>
+ * Matrices handed out by {@link InstancesConverter} may be shared between
+ * models built on the same data and must be treated as read only.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class InstancesMatrix implements Serializable {
+
+  /** for serialization */
+  private static final long serialVersionUID = 3605918734529914112L;
+
+  /** Feature values, row i starts at i * numColumns */
+  final double[] values;
+
+  /** Number of rows (instances) */
+  final int numRows;
+
+  /** Number of columns (attributes other than the excluded one) */
+  final int numColumns;
+
+  /** Maps each column to the index of the attribute it was read from */
+  final int[] attributes;
+
+  /** Value of the excluded attribute per row, null if none was excluded */
+  final double[] classValues;
+
+  /** Instance weights */
+  final double[] weights;
+
+  /** Values missing values were replaced with per column, null if not imputed */
+  final double[] means;
+
+  InstancesMatrix(double[] values, int numRows, int numColumns, int[] attributes,
+    double[] classValues, double[] weights, double[] means) {
+    this.values = values;
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+    this.attributes = attributes;
+    this.classValues = classValues;
+    this.weights = weights;
+    this.means = means;
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int numRows() {
+    return numRows;
+  }
+
+  /**
+   * @return the number of feature columns
+   */
+  public int numColumns() {
+    return numColumns;
+  }
+
+  /**
+   * The contiguous feature values, row i occupies
+   * [i * numColumns(), (i + 1) * numColumns()).
+   *
+   * @return the backing array, not a copy
+   */
+  public double[] values() {
+    return values;
+  }
+
+  /**
+   * @param row the row
+   * @param column the column
+   * @return the value at row, column
+   */
+  public double value(int row, int column) {
+    return values[row * numColumns + column];
+  }
+
+  /**
+   * @return the attribute index each column was read from
+   */
+  public int[] attributes() {
+    return attributes;
+  }
+
+  /**
+   * @return the excluded (class) attribute value per row or null
+   */
+  public double[] classValues() {
+    return classValues;
+  }
+
+  /**
+   * @return the excluded (class) attribute value per row as int labels
+   */
+  public int[] labels() {
+    int[] labels = new int[numRows];
+    if (classValues != null) {
+      for (int i = 0; i < numRows; i++) {
+        labels[i] = (int)classValues[i];
+      }
+    }
+    return labels;
+  }
+
+  /**
+   * @return the instance weights
+   */
+  public double[] weights() {
+    return weights;
+  }
+
+  /**
+   * @return the value used for missing values in each column (mean, or mode
+   *         for nominal attributes), null if missing values were not replaced
+   */
+  public double[] means() {
+    return means;
+  }
+
+  /**
+   * Copies some of the rows into a matrix of their own, with the same
+   * columns and missing value replacements.
+   *
+   * @param index holds the rows to copy, in the order wanted
+   * @param from first entry of index to take
+   * @param to end of the entries to take
+   * @return the new matrix
+   */
+  public InstancesMatrix select(int[] index, int from, int to) {
+    int n = to - from;
+    double[] v = new double[n * numColumns];
+    double[] c = classValues == null ? null : new double[n];
+    double[] w = weights == null ? null : new double[n];
+    for (int r = 0; r < n; r++) {
+      int i = index[from + r];
+      System.arraycopy(values, i * numColumns, v, r * numColumns, numColumns);
+      if (c != null) {
+        c[r] = classValues[i];
+      }
+      if (w != null) {
+        w[r] = weights[i];
+      }
+    }
+    return new InstancesMatrix(v, n, numColumns, attributes, c, w, means);
+  }
+
+  /**
+   * Copies the matrix into the double[][] form the Smile algorithms expect.
+   * The copy is not kept with the matrix, which may be shared and long
+   * lived, so each call makes a new one: the caller holds it only as long
+   * as it is needed, and code that can read values() should.
+   *
+   * @return the rows
+   */
+  public double[][] rows() {
+    double[][] r = new double[numRows][numColumns];
+    for (int i = 0; i < numRows; i++) {
+      System.arraycopy(values, i * numColumns, r[i], 0, numColumns);
+    }
+    return r;
+  }
+}
@@ -0,0 +1,294 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import smile.neighbor.Neighbor;
+import smile.neighbor.RNNSearch;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.UnrolledDistance;
+
+/**
+ * Range search over points added one at a time, for clustering that grows
+ * with its data. Low dimensional points under the Minkowski family of
+ * distances go on an unbounded grid of cells a little wider than the
+ * radius, as in {@link GridIndex}, so a query looks at 3^d cells. The
+ * occupied cells are found through an open addressing table keyed by
+ * their packed coordinates and chain their points through a next array,
+ * all primitive. Anything else is scanned, a block of distances at a time,
+ * and a point the grid cannot key, missing a value or too far out, turns
+ * the grid off for good.
+ * <p/>
+ * Range results come back as from {@link RangeSearch}: in the order the
+ * points were added, without the query when it is one of them. Queries may
+ * run concurrently with each other but not with add.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class DynamicRangeIndex implements RNNSearch<double[], double[]> {
+
+  /** Cells on each side of zero along a coordinate, so three pack a long */
+  static final long HALF = 1L << 20;
+
+  /** Marks an empty slot of the cell table */
+  static final long EMPTY = -1L;
+
+  /** The points in the order added, handed back as neighbor keys */
+  double[][] keys = new double[64][];
+
+  /** The same points, point i at i * d */
+  double[] points;
+
+  /** Number of points */
+  int n;
+
+  /** Dimension */
+  final int d;
+
+  /** The distance */
+  final SmileDistance distance;
+
+  /** Its kernel when the points are on the grid, otherwise null */
+  UnrolledDistance kernel;
+
+  /** Width of a cell */
+  final double cell;
+
+  /** Next point in the same cell, -1 at the end of the chain */
+  int[] next;
+
+  /** Packed coordinates of the occupied cells, EMPTY in free slots */
+  long[] cellKey;
+
+  /** Last point added to the cell of each slot, the head of its chain */
+  int[] cellHead;
+
+  /** Occupied cells */
+  int cells;
+
+  /** Per thread query buffers */
+  private final ThreadLocal<RangeBuffer> scratch = new ThreadLocal<RangeBuffer>() {
+    @Override
+    protected RangeBuffer initialValue() {
+      return new RangeBuffer();
+    }
+  };
+
+  /**
+   * An empty index.
+   *
+   * @param distance the distance
+   * @param d dimension of the points
+   * @param radius the radius the cells are sized for
+   */
+  public DynamicRangeIndex(SmileDistance distance, int d, double radius) {
+    this.distance = distance;
+    this.d = d;
+    points = new double[keys.length * d];
+    cell = radius * (1.0 + GridIndex.WIDEN);
+    if (distance.getSmileDistance() instanceof UnrolledDistance
+        && d > 0 && d <= GridIndex.MAX_DIMENSION && radius > 0.0 && !Double.isInfinite(radius)) {
+      kernel = (UnrolledDistance)distance.getSmileDistance();
+      next = new int[keys.length];
+      cellKey = new long[64];
+      cellHead = new int[64];
+      Arrays.fill(cellKey, EMPTY);
+    }
+  }
+
+  /**
+   * @return the number of points
+   */
+  public int size() {
+    return n;
+  }
+
+  /**
+   * @param i a point number
+   * @return the point
+   */
+  public double[] get(int i) {
+    return keys[i];
+  }
+
+  /**
+   * @return whether the points are on the grid rather than scanned
+   */
+  public boolean gridded() {
+    return kernel != null;
+  }
+
+  /**
+   * Adds a point, which is kept, not copied.
+   *
+   * @param x the point
+   * @return its number, the number of points before it
+   */
+  public int add(double[] x) {
+    if (n == keys.length) {
+      keys = Arrays.copyOf(keys, 2 * n);
+      points = Arrays.copyOf(points, 2 * n * d);
+      if (next != null) {
+        next = Arrays.copyOf(next, 2 * n);
+      }
+    }
+    int i = n++;
+    keys[i] = x;
+    System.arraycopy(x, 0, points, i * d, d);
+    if (kernel != null) {
+      long key = key(x);
+      if (key == EMPTY) {
+        // off the grid, every point is scanned from now on
+        kernel = null;
+        next = null;
+        cellKey = null;
+        cellHead = null;
+      } else {
+        int slot = slot(key);
+        if (cellKey[slot] == EMPTY) {
+          cellKey[slot] = key;
+          next[i] = -1;
+          cellHead[slot] = i;
+          if (++cells * 2 > cellKey.length) {
+            rehash();
+          }
+        } else {
+          next[i] = cellHead[slot];
+          cellHead[slot] = i;
+        }
+      }
+    }
+    return i;
+  }
+
+  /**
+   * @return the cell coordinate of a value, outside [-HALF, HALF) when it
+   *         cannot be keyed
+   */
+  long coordinate(double v) {
+    double c = Math.floor(v / cell);
+    return c >= -HALF && c < HALF ? (long)c : Long.MIN_VALUE;
+  }
+
+  /**
+   * @return the packed cell coordinates of a point, EMPTY when off the grid
+   */
+  long key(double[] x) {
+    long key = 0;
+    for (int j = 0; j < d; j++) {
+      long c = coordinate(x[j]);
+      if (c == Long.MIN_VALUE) {
+        return EMPTY;
+      }
+      key = key << 21 | (c + HALF);
+    }
+    return key;
+  }
+
+  /**
+   * @return the slot of a cell, or the free slot it would take
+   */
+  int slot(long key) {
+    int mask = cellKey.length - 1;
+    int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    while (cellKey[slot] != EMPTY && cellKey[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  void rehash() {
+    long[] oldKey = cellKey;
+    int[] oldHead = cellHead;
+    cellKey = new long[2 * oldKey.length];
+    cellHead = new int[cellKey.length];
+    Arrays.fill(cellKey, EMPTY);
+    for (int s = 0; s < oldKey.length; s++) {
+      if (oldKey[s] != EMPTY) {
+        int slot = slot(oldKey[s]);
+        cellKey[slot] = oldKey[s];
+        cellHead[slot] = oldHead[s];
+      }
+    }
+  }
+
+  @Override
+  public void range(double[] q, double radius, List<Neighbor<double[], double[]>> neighbors) {
+    if (radius <= 0.0) {
+      throw new IllegalArgumentException("Invalid radius: " + radius);
+    }
+    RangeBuffer s = scratch.get();
+    double[] x = q.length == d ? q : Arrays.copyOf(q, d);
+    if (kernel == null || !cells(x, q, radius, s)) {
+      scan(x, q, radius, s);
+    }
+    s.emit(keys, null, 0, n, neighbors);
+  }
+
+  /**
+   * Adds the points within the radius from the cells around the query.
+   *
+   * @return false, having added nothing, when a scan is called for: the
+   *         query has no cell or would visit more cells than there are
+   *         points
+   */
+  boolean cells(double[] x, double[] q, double radius, RangeBuffer s) {
+    double reach = Math.ceil(radius / cell);
+    if (Math.pow(2.0 * reach + 1.0, d) > n) {
+      return false;
+    }
+    long[] lo = new long[GridIndex.MAX_DIMENSION];
+    long[] hi = new long[GridIndex.MAX_DIMENSION];
+    for (int j = 0; j < d; j++) {
+      double c = Math.floor(x[j] / cell);
+      if (Double.isNaN(c)) {
+        return false;
+      }
+      lo[j] = (long)Math.max(-HALF, c - reach);
+      hi[j] = (long)Math.min(HALF - 1, c + reach);
+      if (lo[j] > hi[j]) {
+        return true;
+      }
+    }
+    for (long c0 = lo[0]; c0 <= hi[0]; c0++) {
+      for (long c1 = lo[1]; c1 <= hi[1]; c1++) {
+        for (long c2 = lo[2]; c2 <= hi[2]; c2++) {
+          long key = c0 + HALF;
+          if (d > 1) {
+            key = key << 21 | (c1 + HALF);
+          }
+          if (d > 2) {
+            key = key << 21 | (c2 + HALF);
+          }
+          int slot = slot(key);
+          if (cellKey[slot] == EMPTY) {
+            continue;
+          }
+          for (int p = cellHead[slot]; p >= 0; p = next[p]) {
+            double dv = kernel.d(x, points, p * d, radius);
+            if (dv <= radius && keys[p] != q) {
+              s.found.add(p, dv);
+            }
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the points within the radius, a block of distances at a time.
+   */
+  void scan(double[] x, double[] q, double radius, RangeBuffer s) {
+    double[] buf = s.block;
+    for (int lo = 0; lo < n; lo += buf.length) {
+      int hi = Math.min(n, lo + buf.length);
+      distance.distances(x, points, d, lo, hi, radius, buf);
+      for (int p = lo; p < hi; p++) {
+        if (buf[p - lo] <= radius && keys[p] != q) {
+          s.found.add(p, buf[p - lo]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package us.hall.weka.smile.neighbor;
+
+/**
+ * Point store that keeps the coordinates in single precision, halving the
+ * memory and the bandwidth of the distance loops. Queries stay double and
+ * distances are accumulated in double.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class FloatPointStore extends PointStore {
+
+  /** for serialization */
+  private static final long serialVersionUID = 4785542402981870123L;
+
+  /** Point coordinates, point i starts at i * d */
+  float[] floats;
+
+  /**
+   * Narrows the points of another store to single precision.
+   *
+   * @param source the points
+   */
+  public FloatPointStore(PointStore source) {
+    super(source);
+    floats = new float[Math.max(weights.length, 16) * d];
+    double[] x = new double[d];
+    for (int i = 0; i < size; i++) {
+      source.get(i, x);
+      narrow(x, i);
+    }
+    values = null;
+  }
+
+  void narrow(double[] x, int i) {
+    int off = i * d;
+    for (int j = 0; j < d; j++) {
+      floats[off + j] = (float)x[j];
+    }
+  }
+
+  @Override
+  public double coord(int i, int j) {
+    return floats[i * d + j];
+  }
+
+  @Override
+  public double squaredDistance(double[] q, int i) {
+    double sum = 0.0;
+    int off = i * d;
+    for (int j = 0; j < d; j++) {
+      double t = q[j] - floats[off + j];
+      sum += t * t;
+    }
+    return sum;
+  }
+
+  @Override
+  public double squaredDistance(double[] q, int i, double limit) {
+    double sum = 0.0;
+    int off = i * d;
+    for (int j = 0; j < d; j++) {
+      double t = q[j] - floats[off + j];
+      sum += t * t;
+      if ((j & 15) == 15 && sum > limit) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public void get(int i, double[] x) {
+    int off = i * d;
+    for (int j = 0; j < d; j++) {
+      x[j] = floats[off + j];
+    }
+  }
+
+  @Override
+  public void set(int i, double[] x, double classValue, double weight) {
+    super.set(i, x, classValue, weight);
+    narrow(x, i);
+  }
+
+  @Override
+  void grow(int capacity) {
+    super.grow(capacity);
+    if (floats != null && floats.length < capacity * d) {
+      float[] f = new float[capacity * d];
+      System.arraycopy(floats, 0, f, 0, size * d);
+      floats = f;
+    }
+  }
+}
@@ -0,0 +1,410 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import smile.neighbor.Neighbor;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.UnrolledDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
+
+/**
+ * Uniform grid over the rows of a low dimensional matrix, for range queries
+ * of a fixed radius such as DBScan's. Cells are a little wider than the
+ * radius. Under the Euclidean, Manhattan, Chebyshev and Minkowski distances
+ * no coordinate of a neighbor differs from the query's by more than the
+ * distance between them, so every neighbor lies in the query's cell or
+ * one next to it, and a query looks at 3^d cells whatever the size of the
+ * data.
+ * <p/>
+ * The grid is held in primitive arrays, compressed sparse row fashion: the
+ * rows are copied grouped by cell, and the occupied cells, sorted by key,
+ * give the start of their group. Cell keys run fastest along the first
+ * coordinate, so the cells of a query next to each other along it are one
+ * contiguous block of rows, scanned with the bounded block distances of the
+ * wrappers. Range results come back as from {@link RangeSearch}: in row
+ * order, without the query when it is one of the rows. Indexed from row
+ * major values, the rows are not held as arrays of their own, each
+ * neighbor is handed back with a copy of its row, and a row leaves itself
+ * out when asked about by number, see {@link RowSearch}.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class GridIndex implements RowSearch {
+
+  /** Above this many dimensions the 3^d cells per query cost too much */
+  public static final int MAX_DIMENSION = 3;
+
+  /**
+   * Relative widening of the cells over the radius, which keeps the cell of
+   * a point within one of its neighbors' however the cell coordinates round
+   */
+  static final double WIDEN = 1e-6;
+
+  /** Cells along a coordinate, so the keys of three fit a long */
+  static final double MAX_CELLS = 1 << 20;
+
+  /**
+   * Largest coordinate in cells, beyond which subtracting the origin
+   * loses too much to keep the rounding under the widening
+   */
+  static final double MAX_MAGNITUDE = 1e8;
+
+  /** The rows by row number, handed back as neighbor keys, or null */
+  final double[][] keys;
+
+  /** The rows row major, row i at i * d, when there are no keys */
+  final double[] values;
+
+  /** The rows grouped by cell, position p at p * d */
+  final double[] points;
+
+  /** Row number of each position */
+  final int[] ids;
+
+  /** Number of rows */
+  final int n;
+
+  /** Dimension */
+  final int d;
+
+  /** The distance */
+  final SmileDistance distance;
+
+  /** Width of a cell */
+  final double cell;
+
+  /** Least value of each coordinate, the corner of cell zero */
+  final double[] origin;
+
+  /** Cells along each coordinate */
+  final int[] counts;
+
+  /** Key step of each coordinate, padded to MAX_DIMENSION */
+  final long[] stride = new long[MAX_DIMENSION];
+
+  /** Keys of the occupied cells in ascending order */
+  final long[] cellKey;
+
+  /** First position of each occupied cell, and n at the end */
+  final int[] cellStart;
+
+  /** Per thread query buffers */
+  private final ThreadLocal<RangeBuffer> scratch = new ThreadLocal<RangeBuffer>() {
+    @Override
+    protected RangeBuffer initialValue() {
+      return new RangeBuffer();
+    }
+  };
+
+  /**
+   * Indexes the rows of a matrix for queries of a radius. Queries of other
+   * radii are answered exactly too, over more cells when wider.
+   *
+   * @param matrix the points, see {@link #suits(SmileDistance, InstancesMatrix, double)}
+   * @param distance the distance
+   * @param radius the radius the cells are sized for
+   */
+  public GridIndex(InstancesMatrix matrix, SmileDistance distance, double radius) {
+    this(null, matrix.values(), matrix.numRows(), matrix.numColumns(), distance, radius);
+  }
+
+  /**
+   * Indexes row major values for queries of a radius. The values are
+   * kept, not copied.
+   *
+   * @param values the points, row i at i * d, see {@link #suits(SmileDistance, double[], int, double)}
+   * @param d dimension
+   * @param distance the distance
+   * @param radius the radius the cells are sized for
+   */
+  public GridIndex(double[] values, int d, SmileDistance distance, double radius) {
+    this(null, values, d == 0 ? 0 : values.length / d, d, distance, radius);
+  }
+
+  /**
+   * Indexes rows of equal length for queries of a radius.
+   *
+   * @param rows the points, see {@link #suits(SmileDistance, double[], int, double)}
+   * @param distance the distance
+   * @param radius the radius the cells are sized for
+   */
+  public GridIndex(double[][] rows, SmileDistance distance, double radius) {
+    this(rows, VPTree.flatten(rows), rows.length, rows.length > 0 ? rows[0].length : 0, distance, radius);
+  }
+
+  GridIndex(double[][] keys, double[] values, int n, int d, SmileDistance distance, double radius) {
+    this.keys = keys;
+    this.values = keys == null ? values : null;
+    this.n = n;
+    this.d = d;
+    this.distance = distance;
+    cell = radius * (1.0 + WIDEN);
+    origin = new double[d];
+    counts = new int[d];
+    double[] max = new double[d];
+    Arrays.fill(origin, Double.POSITIVE_INFINITY);
+    Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    for (int i = 0, off = 0; i < n; i++, off += d) {
+      for (int j = 0; j < d; j++) {
+        origin[j] = Math.min(origin[j], values[off + j]);
+        max[j] = Math.max(max[j], values[off + j]);
+      }
+    }
+    long step = 1;
+    for (int j = 0; j < d; j++) {
+      counts[j] = n > 0 ? (int)Math.floor((max[j] - origin[j]) / cell) + 1 : 1;
+      stride[j] = step;
+      step *= counts[j];
+    }
+
+    // occupied cells and the number of rows in each
+    long[] key = new long[n];
+    for (int i = 0; i < n; i++) {
+      key[i] = key(values, i * d);
+    }
+    long[] sorted = key.clone();
+    Arrays.sort(sorted);
+    int m = 0;
+    for (int i = 0; i < n; i++) {
+      if (m == 0 || sorted[i] != sorted[m - 1]) {
+        sorted[m++] = sorted[i];
+      }
+    }
+    cellKey = Arrays.copyOf(sorted, m);
+    cellStart = new int[m + 1];
+    int[] cellOf = new int[n];
+    for (int i = 0; i < n; i++) {
+      cellOf[i] = Arrays.binarySearch(cellKey, key[i]);
+      cellStart[cellOf[i] + 1]++;
+    }
+    for (int c = 0; c < m; c++) {
+      cellStart[c + 1] += cellStart[c];
+    }
+
+    // rows grouped by cell, in row order within each
+    points = new double[n * d];
+    ids = new int[n];
+    int[] next = Arrays.copyOf(cellStart, m);
+    for (int i = 0; i < n; i++) {
+      int p = next[cellOf[i]]++;
+      ids[p] = i;
+      System.arraycopy(values, i * d, points, p * d, d);
+    }
+  }
+
+  /**
+   * Whether a grid answers exactly for a distance and radius over the rows
+   * of a matrix: the distance must be one of the Minkowski family, whose
+   * neighbors differ by no more than the radius in any coordinate, the
+   * data low dimensional and without missing values, and the grid of a
+   * size to key.
+   *
+   * @param distance the distance
+   * @param matrix the points
+   * @param radius the radius of the queries
+   * @return true to use a grid
+   */
+  public static boolean suits(SmileDistance distance, InstancesMatrix matrix, double radius) {
+    return suits(distance, matrix.values(), matrix.numColumns(), radius);
+  }
+
+  /**
+   * As {@link #suits(SmileDistance, InstancesMatrix, double)} for row major
+   * values.
+   *
+   * @param distance the distance
+   * @param values the points, row i at i * d
+   * @param d dimension
+   * @param radius the radius of the queries
+   * @return true to use a grid
+   */
+  public static boolean suits(SmileDistance distance, double[] values, int d, double radius) {
+    if (!(distance.getSmileDistance() instanceof UnrolledDistance)
+        || d == 0 || d > MAX_DIMENSION || !(radius > 0.0) || Double.isInfinite(radius)) {
+      return false;
+    }
+    double cell = radius * (1.0 + WIDEN);
+    for (int j = 0; j < d; j++) {
+      double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+      for (int off = j; off < values.length; off += d) {
+        double v = values[off];
+        if (Double.isNaN(v)) {
+          return false;
+        }
+        lo = Math.min(lo, v);
+        hi = Math.max(hi, v);
+      }
+      if ((hi - lo) / cell >= MAX_CELLS
+          || Math.max(Math.abs(lo), Math.abs(hi)) / cell >= MAX_MAGNITUDE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the cell of coordinate j of an indexed row
+   */
+  int coordinate(double v, int j) {
+    return Math.min(counts[j] - 1, (int)Math.floor((v - origin[j]) / cell));
+  }
+
+  long key(double[] values, int off) {
+    long k = 0;
+    for (int j = 0; j < d; j++) {
+      k += coordinate(values[off + j], j) * stride[j];
+    }
+    return k;
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int size() {
+    return n;
+  }
+
+  /**
+   * @return the number of occupied cells
+   */
+  public int cells() {
+    return cellKey.length;
+  }
+
+  @Override
+  public void range(double[] q, double radius, List<Neighbor<double[], double[]>> neighbors) {
+    RangeBuffer s = scratch.get();
+    range(q.length == d ? q : Arrays.copyOf(q, d), q, -1, radius, s, s.found);
+    s.emit(keys, values, d, n, neighbors);
+  }
+
+  @Override
+  public void range(int i, double radius, RangeList found) {
+    RangeBuffer s = scratch.get();
+    range(s.row(keys, values, d, i), null, i, radius, s, found);
+  }
+
+  @Override
+  public void range(double[] q, double radius, RangeList found) {
+    range(q.length == d ? q : Arrays.copyOf(q, d), q, -1, radius, scratch.get(), found);
+  }
+
+  /**
+   * Adds the rows within a radius of x to found, leaving out the row
+   * asked about, by number or as the query array.
+   */
+  void range(double[] x, double[] q, int exclude, double radius, RangeBuffer s, RangeList found) {
+    if (radius <= 0.0) {
+      throw new IllegalArgumentException("Invalid radius: " + radius);
+    }
+    int runs = runs(x, radius, s);
+    for (int r = 0; r < runs; r++) {
+      scan(x, q, exclude, radius, s.runs[2 * r], s.runs[2 * r + 1], s.block, found);
+    }
+  }
+
+  /**
+   * @return whether row i is the one asked about
+   */
+  boolean self(int i, double[] q, int exclude) {
+    return i == exclude || (keys != null && keys[i] == q);
+  }
+
+  /**
+   * The nearest row within a radius of a point, the question a density
+   * clustering asks of its core points. Distances are bounded by the
+   * nearest so far, which shrinks the work as rows are found.
+   *
+   * @param q the query
+   * @param radius the radius
+   * @return the row number of the nearest row, the first of equally near
+   *         ones, or -1 when none is within the radius
+   */
+  public int nearest(double[] q, double radius) {
+    RangeBuffer s = scratch.get();
+    double[] x = q.length == d ? q : Arrays.copyOf(q, d);
+    int runs = runs(x, radius, s);
+    int best = -1;
+    double bound = radius;
+    double[] buf = s.block;
+    for (int r = 0; r < runs; r++) {
+      int to = s.runs[2 * r + 1];
+      for (int lo = s.runs[2 * r]; lo < to; lo += buf.length) {
+        int hi = Math.min(to, lo + buf.length);
+        distance.distances(x, points, d, lo, hi, bound, buf);
+        for (int p = lo; p < hi; p++) {
+          double dv = buf[p - lo];
+          if ((dv < bound || (dv == bound && (best < 0 || ids[p] < best))) && !self(ids[p], q, -1)) {
+            best = ids[p];
+            bound = dv;
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Collects the blocks of positions in the cells within reach of a point
+   * into s.runs, start and end in turn. Cells next to each other along
+   * the first coordinate make one block.
+   *
+   * @return the number of blocks
+   */
+  int runs(double[] x, double radius, RangeBuffer s) {
+    double reach = Math.ceil(radius / cell);
+    // coordinates past d stay zero, the one cell a grid has along them
+    int[] lo = s.lo;
+    int[] hi = s.hi;
+    for (int j = 0; j < d; j++) {
+      double c = Math.floor((x[j] - origin[j]) / cell);
+      if (Double.isNaN(c)) {
+        // a missing coordinate could be anywhere, look everywhere
+        s.run(0, 0, n);
+        return 1;
+      }
+      lo[j] = (int)Math.max(0.0, c - reach);
+      hi[j] = (int)Math.min(counts[j] - 1, c + reach);
+      if (lo[j] > hi[j] || n == 0) {
+        return 0;
+      }
+    }
+    int runs = 0;
+    for (int c2 = lo[2]; c2 <= hi[2]; c2++) {
+      for (int c1 = lo[1]; c1 <= hi[1]; c1++) {
+        long base = c1 * stride[1] + c2 * stride[2];
+        int a = lowerBound(base + lo[0]);
+        int b = lowerBound(base + hi[0] + 1);
+        if (a < b) {
+          s.run(runs++, cellStart[a], cellStart[b]);
+        }
+      }
+    }
+    return runs;
+  }
+
+  /**
+   * @return the index of the first occupied cell with a key of at least k
+   */
+  int lowerBound(long k) {
+    int i = Arrays.binarySearch(cellKey, k);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  /**
+   * Adds the rows at positions [from, to) within the radius, a block of
+   * distances at a time.
+   */
+  void scan(double[] x, double[] q, int exclude, double radius, int from, int to, double[] buf, RangeList found) {
+    for (int lo = from; lo < to; lo += buf.length) {
+      int hi = Math.min(to, lo + buf.length);
+      distance.distances(x, points, d, lo, hi, radius, buf);
+      for (int p = lo; p < hi; p++) {
+        if (buf[p - lo] <= radius && !self(ids[p], q, exclude)) {
+          found.add(ids[p], buf[p - lo]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,309 @@
+package us.hall.weka.smile.neighbor;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * KD-tree over the points of a {@link PointStore} that accepts insertions
+ * and removals.
+ * <p/>
+ * Leaves hold small buckets of point numbers and split at the median of
+ * their widest dimension when they overflow. Every node counts the points
+ * below it; when an insertion or removal leaves a subtree lopsided that
+ * subtree is rebuilt, so streamed, even sorted, input keeps the depth
+ * logarithmic and an update costs O(log n) amortized. Each point keeps a
+ * pointer to its leaf and nodes to their parent, so a removal needs no
+ * search.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class KDTree implements NeighborIndex {
+
+  /** for serialization */
+  private static final long serialVersionUID = 2983469011720385526L;
+
+  /** Points per leaf when building, leaves split at twice this */
+  static final int LEAF_SIZE = 16;
+
+  /** Largest share of a subtree one child may hold before it is rebuilt */
+  static final double ALPHA = 0.75;
+
+  /** Subtrees smaller than this are never rebuilt */
+  static final int REBUILD_SIZE = 8 * LEAF_SIZE;
+
+  /**
+   * Internal node when dim >= 0, otherwise a leaf bucket.
+   */
+  static class Node implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = -2610564766767719219L;
+
+    /** Split dimension, -1 for a leaf */
+    int dim = -1;
+
+    /** Left holds coordinates <= split, right >= split */
+    double split;
+
+    Node left;
+
+    Node right;
+
+    /** Number of points in the subtree */
+    int count;
+
+    /** Leaf points, the first count are used */
+    int[] points;
+
+    /** Leaf splits when count exceeds this */
+    int limit;
+
+    /** null for the root */
+    final Node parent;
+
+    Node(Node parent) {
+      this.parent = parent;
+    }
+  }
+
+  /** The points */
+  final PointStore store;
+
+  Node root;
+
+  /** Leaf holding each point, by point number */
+  Node[] leafOf;
+
+  /**
+   * Builds the tree over all points of the store.
+   *
+   * @param store the points
+   */
+  public KDTree(PointStore store) {
+    this.store = store;
+    int n = store.size();
+    int[] idx = new int[n];
+    for (int i = 0; i < n; i++) {
+      idx[i] = i;
+    }
+    leafOf = new Node[Math.max(16, n)];
+    root = build(new Node(null), idx, 0, n);
+  }
+
+  @Override
+  public int size() {
+    return root.count;
+  }
+
+  @Override
+  public int knn(double[] q, int k, NeighborList result) {
+    result.reset(k);
+    if (k > 0) {
+      search(root, q, result);
+    }
+    result.sqrt();
+    return result.size();
+  }
+
+  void search(Node node, double[] q, NeighborList result) {
+    if (node.dim < 0) {
+      int[] points = node.points;
+      for (int i = 0; i < node.count; i++) {
+        result.offer(points[i], store.squaredDistance(q, points[i], result.bound()));
+      }
+      return;
+    }
+    double diff = q[node.dim] - node.split;
+    search(diff < 0 ? node.left : node.right, q, result);
+    if (diff * diff < result.bound()) {
+      search(diff < 0 ? node.right : node.left, q, result);
+    }
+  }
+
+  @Override
+  public void insert(int i) {
+    if (i >= leafOf.length) {
+      leafOf = Arrays.copyOf(leafOf, Math.max(i + 1, leafOf.length + (leafOf.length >> 1)));
+    }
+    Node node = root;
+    Node heavy = null;
+    while (node.dim >= 0) {
+      node.count++;
+      Node next = store.coord(i, node.dim) < node.split ? node.left : node.right;
+      if (heavy == null && node.count >= REBUILD_SIZE && next.count + 1 > ALPHA * node.count) {
+        heavy = node;
+      }
+      node = next;
+    }
+    if (node.count == node.points.length) {
+      node.points = Arrays.copyOf(node.points, 2 * node.points.length);
+    }
+    node.points[node.count++] = i;
+    leafOf[i] = node;
+    if (node.count > node.limit) {
+      splitLeaf(node);
+    }
+    if (heavy != null) {
+      rebuild(heavy);
+    }
+  }
+
+  @Override
+  public void remove(int i) {
+    Node leaf = leafOf[i];
+    leafOf[i] = null;
+    int[] points = leaf.points;
+    int last = --leaf.count;
+    for (int p = 0; p < last; p++) {
+      if (points[p] == i) {
+        points[p] = points[last];
+        break;
+      }
+    }
+    Node heavy = null;
+    for (Node node = leaf.parent; node != null; node = node.parent) {
+      node.count--;
+      if (node.count >= REBUILD_SIZE
+          && Math.max(node.left.count, node.right.count) > ALPHA * node.count) {
+        heavy = node;	// keep the topmost
+      }
+    }
+    if (heavy != null) {
+      rebuild(heavy);
+    }
+  }
+
+  /**
+   * Rebuilds a subtree balanced, in place.
+   */
+  void rebuild(Node node) {
+    int[] idx = new int[node.count];
+    collect(node, idx, 0);
+    build(node, idx, 0, idx.length);
+  }
+
+  int collect(Node node, int[] idx, int pos) {
+    if (node.dim < 0) {
+      System.arraycopy(node.points, 0, idx, pos, node.count);
+      return pos + node.count;
+    }
+    return collect(node.right, idx, collect(node.left, idx, pos));
+  }
+
+  void splitLeaf(Node leaf) {
+    int dim = widestDimension(leaf.points, 0, leaf.count);
+    if (dim < 0) {
+      // all points identical, let the bucket grow
+      leaf.limit *= 2;
+      return;
+    }
+    int mid = leaf.count >>> 1;
+    select(leaf.points, 0, leaf.count - 1, mid, dim);
+    int[] points = leaf.points;
+    leaf.dim = dim;
+    leaf.split = store.coord(points[mid], dim);
+    leaf.left = leaf(new Node(leaf), points, 0, mid);
+    leaf.right = leaf(new Node(leaf), points, mid, leaf.count);
+    leaf.points = null;
+  }
+
+  /**
+   * Fills node with a balanced subtree over idx[from, to).
+   */
+  Node build(Node node, int[] idx, int from, int to) {
+    int dim = to - from > LEAF_SIZE ? widestDimension(idx, from, to) : -1;
+    if (dim < 0) {
+      return leaf(node, idx, from, to);
+    }
+    int mid = (from + to) >>> 1;
+    select(idx, from, to - 1, mid, dim);
+    node.dim = dim;
+    node.split = store.coord(idx[mid], dim);
+    node.count = to - from;
+    node.points = null;
+    node.left = build(new Node(node), idx, from, mid);
+    node.right = build(new Node(node), idx, mid, to);
+    return node;
+  }
+
+  /**
+   * Makes node a leaf holding idx[from, to).
+   */
+  Node leaf(Node node, int[] idx, int from, int to) {
+    node.dim = -1;
+    node.left = null;
+    node.right = null;
+    node.count = to - from;
+    node.limit = Math.max(2 * LEAF_SIZE, node.count);
+    node.points = new int[Math.max(LEAF_SIZE, node.count)];
+    System.arraycopy(idx, from, node.points, 0, node.count);
+    for (int i = from; i < to; i++) {
+      leafOf[idx[i]] = node;
+    }
+    return node;
+  }
+
+  /**
+   * @return the dimension with the largest spread, -1 if all points are equal
+   */
+  int widestDimension(int[] idx, int from, int to) {
+    int best = -1;
+    double bestSpread = 0.0;
+    for (int j = 0; j < store.d; j++) {
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        double v = store.coord(idx[i], j);
+        if (v < min) {
+          min = v;
+        }
+        if (v > max) {
+          max = v;
+        }
+      }
+      if (max - min > bestSpread) {
+        bestSpread = max - min;
+        best = j;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Quickselect on coordinate dim: afterwards idx[k] holds the k-th smallest
+   * in [lo, hi], with nothing larger before and nothing smaller after it.
+   */
+  void select(int[] idx, int lo, int hi, int k, int dim) {
+    while (hi > lo) {
+      int mid = (lo + hi) >>> 1;
+      double a = store.coord(idx[lo], dim);
+      double b = store.coord(idx[mid], dim);
+      double c = store.coord(idx[hi], dim);
+      double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (store.coord(idx[i], dim) < pivot) {
+          i++;
+        }
+        while (store.coord(idx[j], dim) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int t = idx[i];
+          idx[i] = idx[j];
+          idx[j] = t;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+}
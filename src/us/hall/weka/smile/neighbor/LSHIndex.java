@@ -0,0 +1,539 @@
+package us.hall.weka.smile.neighbor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import smile.math.special.Erf;
+
+/**
+ * Approximate index for high dimensional data: multi-probe locality
+ * sensitive hashing with p-stable (Gaussian) projections, after Datar et
+ * al. (2004) and Lv et al. (2007).
+ * <p/>
+ * Each of the tables hashes a point to the cell of a random lattice given
+ * by hashes projections of width w. A query looks in its own cell of every
+ * table and in the probes neighboring cells, one step along the projection
+ * whose boundary it lies closest to, and ranks the points it finds exactly.
+ * <p/>
+ * The bucket width and hashes per table are estimated from a sample of
+ * points whose exact neighbors are found by a scan. The same sample then
+ * measures the recall and query time, and when a recall target is given the
+ * fewest probes that meet it are used.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class LSHIndex implements NeighborIndex {
+
+  /** for serialization */
+  private static final long serialVersionUID = 3367204154867627143L;
+
+  /** Default number of hash tables */
+  public static final int DEFAULT_TABLES = 10;
+
+  /** Default number of extra cells probed per table */
+  public static final int DEFAULT_PROBES = 4;
+
+  /** Points sampled to estimate the parameters and measure recall */
+  static final int SAMPLE_SIZE = 50;
+
+  /** Most hashes concatenated per table */
+  static final int MAX_HASHES = 24;
+
+  /**
+   * Open addressing map from cell key to the points in the cell.
+   */
+  static class Table implements Serializable {
+
+    /** for serialization */
+    private static final long serialVersionUID = -7000317218838045282L;
+
+    long[] keys = new long[16];
+
+    /** Points per slot, null for a free slot */
+    int[][] points = new int[16][];
+
+    int[] counts = new int[16];
+
+    /** Number of slots in use */
+    int used;
+
+    static int slot(long key, int mask) {
+      return ((int)(key >>> 32) ^ (int)key) & mask;
+    }
+
+    /**
+     * @return the slot holding key, or ~slot of the free slot it would take
+     */
+    int find(long key) {
+      int mask = keys.length - 1;
+      int s = slot(key, mask);
+      while (points[s] != null) {
+        if (keys[s] == key) {
+          return s;
+        }
+        s = (s + 1) & mask;
+      }
+      return ~s;
+    }
+
+    void add(long key, int p) {
+      int s = find(key);
+      if (s < 0) {
+        if (2 * (used + 1) > keys.length) {
+          rehash(2 * keys.length);
+          s = find(key);
+        }
+        s = ~s;
+        keys[s] = key;
+        points[s] = new int[4];
+        used++;
+      }
+      if (counts[s] == points[s].length) {
+        points[s] = Arrays.copyOf(points[s], 2 * counts[s]);
+      }
+      points[s][counts[s]++] = p;
+    }
+
+    void remove(long key, int p) {
+      int s = find(key);
+      int[] cell = points[s];
+      int last = --counts[s];
+      for (int i = 0; i < last; i++) {
+        if (cell[i] == p) {
+          cell[i] = cell[last];
+          break;
+        }
+      }
+      if (last > 0) {
+        return;
+      }
+      // free the slot, shifting back entries that probed past it
+      int mask = keys.length - 1;
+      int hole = s;
+      points[hole] = null;
+      used--;
+      for (int j = (hole + 1) & mask; points[j] != null; j = (j + 1) & mask) {
+        int home = slot(keys[j], mask);
+        boolean stays = hole <= j ? hole < home && home <= j : hole < home || home <= j;
+        if (!stays) {
+          keys[hole] = keys[j];
+          points[hole] = points[j];
+          counts[hole] = counts[j];
+          points[j] = null;
+          counts[j] = 0;
+          hole = j;
+        }
+      }
+    }
+
+    void rehash(int capacity) {
+      long[] oldKeys = keys;
+      int[][] oldPoints = points;
+      int[] oldCounts = counts;
+      keys = new long[capacity];
+      points = new int[capacity][];
+      counts = new int[capacity];
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldPoints[i] != null) {
+          int s = ~find(oldKeys[i]);
+          keys[s] = oldKeys[i];
+          points[s] = oldPoints[i];
+          counts[s] = oldCounts[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Per thread working arrays, so queries do not allocate.
+   */
+  static class Scratch {
+
+    /** Lattice coordinate per hash */
+    final int[] cell;
+
+    /** Position of the projection within its cell, in [0, 1) */
+    final double[] frac;
+
+    /** Candidate probe scores and moves, hash * 2 + (0 down, 1 up) */
+    final double[] score;
+
+    final int[] move;
+
+    /** Query stamp per point, to rank each point once */
+    int[] seen = new int[0];
+
+    int stamp;
+
+    /** Coordinates of a point being inserted or removed */
+    final double[] point;
+
+    Scratch(int hashes, int d) {
+      point = new double[d];
+      cell = new int[hashes];
+      frac = new double[hashes];
+      score = new double[2 * hashes];
+      move = new int[2 * hashes];
+    }
+  }
+
+  /** The points */
+  final PointStore store;
+
+  /** Number of hash tables */
+  final int tables;
+
+  /** Number of projections per table */
+  final int hashes;
+
+  /** Bucket width */
+  final double width;
+
+  /** Extra cells probed per table */
+  int probes;
+
+  /** Projection directions, hashes per table, d each */
+  final double[] directions;
+
+  /** Projection offsets in [0, width) */
+  final double[] offsets;
+
+  final Table[] hashTables;
+
+  /** Number of indexed points */
+  int size;
+
+  /** Recall on the sample, NaN if not measured */
+  double recall = Double.NaN;
+
+  /** Mean query time on the sample in microseconds, NaN if not measured */
+  double queryTime = Double.NaN;
+
+  transient ThreadLocal<Scratch> scratch;
+
+  /**
+   * Indexes all points of the store.
+   *
+   * @param store the points
+   * @param tables number of hash tables
+   * @param probes extra cells probed per table when there is no recall
+   *          target
+   * @param recallTarget recall on the sample to choose the probes for,
+   *          0 to keep the probes as given
+   * @param k number of neighbors the index will be asked for
+   * @param seed random seed for the projections and the sample
+   */
+  public LSHIndex(PointStore store, int tables, int probes, double recallTarget, int k, long seed) {
+    this.store = store;
+    this.tables = Math.max(1, tables);
+    this.probes = Math.max(0, probes);
+    int n = store.size();
+    int d = store.d;
+    k = Math.max(1, Math.min(k, n - 1));
+    Random random = new Random(seed);
+
+    // exact neighbors of a sample, which fix the scale of the lattice
+    int[] sample = new int[Math.min(SAMPLE_SIZE, n)];
+    for (int s = 0; s < sample.length; s++) {
+      sample[s] = random.nextInt(n);
+    }
+    final NeighborList[] exact = new NeighborList[sample.length];
+    // distances to a subsample, to estimate how many points share a cell
+    final int[] others = new int[Math.min(n, 1000)];
+    for (int i = 0; i < others.length; i++) {
+      others[i] = random.nextInt(n);
+    }
+    final double[][] spread = new double[sample.length][others.length];
+    final int kk = k;
+    IntStream.range(0, sample.length).parallel().forEach(s -> {
+      exact[s] = new NeighborList(kk + 1);
+      exact[s].reset(kk + 1);
+      double[] q = new double[d];
+      store.get(sample[s], q);
+      for (int i = 0; i < n; i++) {
+        exact[s].offer(i, store.squaredDistance(q, i));
+      }
+      exact[s].sqrt();
+      for (int i = 0; i < others.length; i++) {
+        spread[s][i] = Math.sqrt(store.squaredDistance(q, others[i]));
+      }
+    });
+    double near = 0;
+    for (int s = 0; s < sample.length; s++) {
+      near += exact[s].distance(exact[s].size() - 1);
+    }
+    near /= Math.max(1, sample.length);
+    if (!(near > 0)) {
+      near = 1.0;
+    }
+    width = 4 * near;
+
+    // fewest hashes for which a query's cell holds about sqrt(n) points
+    double target = Math.max(16, Math.sqrt(n));
+    double[] p = new double[others.length * sample.length];
+    for (int s = 0, j = 0; s < sample.length; s++) {
+      for (int i = 0; i < others.length; i++) {
+        p[j++] = collision(spread[s][i] / width);
+      }
+    }
+    double[] pk = p.clone();
+    int h = 1;
+    while (h < MAX_HASHES && expected(pk, n) > target) {
+      for (int j = 0; j < pk.length; j++) {
+        pk[j] *= p[j];
+      }
+      h++;
+    }
+    hashes = h;
+
+    directions = new double[this.tables * hashes * d];
+    offsets = new double[this.tables * hashes];
+    for (int i = 0; i < directions.length; i++) {
+      directions[i] = random.nextGaussian();
+    }
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = random.nextDouble() * width;
+    }
+    hashTables = new Table[this.tables];
+    for (int t = 0; t < this.tables; t++) {
+      hashTables[t] = new Table();
+    }
+    initScratch();
+    for (int i = 0; i < n; i++) {
+      insert(i);
+    }
+    if (sample.length > 0) {
+      if (recallTarget > 0) {
+        // fewest probes that reach the target
+        this.probes = 0;
+        measure(sample, exact, k);
+        while (recall < recallTarget && this.probes < 2 * hashes) {
+          this.probes++;
+          measure(sample, exact, k);
+        }
+      }
+      measure(sample, exact, k);
+    }
+  }
+
+  /**
+   * Expected number of n points sharing a query's cell, from the collision
+   * probabilities of a subsample.
+   */
+  static double expected(double[] p, int n) {
+    double sum = 0;
+    for (double v : p) {
+      sum += v;
+    }
+    return p.length > 0 ? sum * n / p.length : 0;
+  }
+
+  /**
+   * Probability that two points at distance c share a cell of one unit
+   * width projection.
+   */
+  static double collision(double c) {
+    if (c <= 0) {
+      return 1.0;
+    }
+    double t = 1.0 / c;
+    return Erf.erf(t / Math.sqrt(2)) - 2 / (Math.sqrt(2 * Math.PI) * t) * (1 - Math.exp(-t * t / 2));
+  }
+
+  /**
+   * Measures recall and query time on the sample, whose exact lists hold
+   * k + 1 neighbors including the sample point itself.
+   */
+  void measure(int[] sample, NeighborList[] exact, int k) {
+    double[] q = new double[store.d];
+    NeighborList approx = new NeighborList(k + 1);
+    long found = 0;
+    long wanted = 0;
+    long time = 0;
+    for (int s = 0; s < sample.length; s++) {
+      store.get(sample[s], q);
+      long start = System.nanoTime();
+      knn(q, k + 1, approx);
+      time += System.nanoTime() - start;
+      for (int i = 0; i < exact[s].size(); i++) {
+        int p = exact[s].index(i);
+        if (p == sample[s]) {
+          continue;
+        }
+        wanted++;
+        for (int j = 0; j < approx.size(); j++) {
+          if (approx.index(j) == p) {
+            found++;
+            break;
+          }
+        }
+      }
+    }
+    recall = wanted > 0 ? (double)found / wanted : 1.0;
+    queryTime = time / 1000.0 / sample.length;
+  }
+
+  /**
+   * @return the recall measured on the sample when the index was built
+   */
+  public double recall() {
+    return recall;
+  }
+
+  /**
+   * @return the mean query time on the sample in microseconds
+   */
+  public double queryTime() {
+    return queryTime;
+  }
+
+  /**
+   * @return the extra cells probed per table
+   */
+  public int probes() {
+    return probes;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public int knn(double[] q, int k, NeighborList result) {
+    result.reset(k);
+    Scratch s = scratch.get();
+    if (s.seen.length < store.size()) {
+      s.seen = new int[Math.max(store.size(), 2 * s.seen.length)];
+      s.stamp = 0;
+    }
+    if (++s.stamp == 0) {
+      Arrays.fill(s.seen, 0);
+      s.stamp = 1;
+    }
+    for (int t = 0; t < tables; t++) {
+      project(q, 0, t, s);
+      visit(q, hashTables[t], key(s.cell), s, result);
+      if (probes == 0) {
+        continue;
+      }
+      // the cells one step across the nearest boundaries
+      int m = 0;
+      for (int j = 0; j < hashes; j++) {
+        double down = s.frac[j];
+        double up = 1 - down;
+        s.score[m] = down * down;
+        s.move[m++] = 2 * j;
+        s.score[m] = up * up;
+        s.move[m++] = 2 * j + 1;
+      }
+      int count = Math.min(probes, m);
+      for (int p = 0; p < count; p++) {
+        int best = p;
+        for (int i = p + 1; i < m; i++) {
+          if (s.score[i] < s.score[best]) {
+            best = i;
+          }
+        }
+        double sc = s.score[best];
+        s.score[best] = s.score[p];
+        s.score[p] = sc;
+        int mv = s.move[best];
+        s.move[best] = s.move[p];
+        s.move[p] = mv;
+
+        int j = mv >> 1;
+        int delta = (mv & 1) == 0 ? -1 : 1;
+        s.cell[j] += delta;
+        visit(q, hashTables[t], key(s.cell), s, result);
+        s.cell[j] -= delta;
+      }
+    }
+    result.sqrt();
+    return result.size();
+  }
+
+  void visit(double[] q, Table table, long key, Scratch s, NeighborList result) {
+    int slot = table.find(key);
+    if (slot < 0) {
+      return;
+    }
+    int[] cell = table.points[slot];
+    for (int i = table.counts[slot] - 1; i >= 0; i--) {
+      int p = cell[i];
+      if (s.seen[p] != s.stamp) {
+        s.seen[p] = s.stamp;
+        result.offer(p, store.squaredDistance(q, p, result.bound()));
+      }
+    }
+  }
+
+  @Override
+  public void insert(int i) {
+    Scratch s = scratch.get();
+    store.get(i, s.point);
+    for (int t = 0; t < tables; t++) {
+      project(s.point, 0, t, s);
+      hashTables[t].add(key(s.cell), i);
+    }
+    size++;
+  }
+
+  @Override
+  public void remove(int i) {
+    Scratch s = scratch.get();
+    store.get(i, s.point);
+    for (int t = 0; t < tables; t++) {
+      project(s.point, 0, t, s);
+      hashTables[t].remove(key(s.cell), i);
+    }
+    size--;
+  }
+
+  /**
+   * Lattice cell of x[off, off + d) in table t, into s.cell and s.frac.
+   */
+  void project(double[] x, int off, int t, Scratch s) {
+    int d = store.d;
+    for (int j = 0; j < hashes; j++) {
+      int h = t * hashes + j;
+      double dot = offsets[h];
+      int base = h * d;
+      for (int c = 0; c < d; c++) {
+        dot += directions[base + c] * x[off + c];
+      }
+      double f = dot / width;
+      double fl = Math.floor(f);
+      s.cell[j] = (int)fl;
+      s.frac[j] = f - fl;
+    }
+  }
+
+  static long key(int[] cell) {
+    long key = 0;
+    for (int c : cell) {
+      key = (key ^ c) * 0x9E3779B97F4A7C15L;
+    }
+    return key;
+  }
+
+  private void initScratch() {
+    final int h = hashes;
+    final int d = store.d;
+    scratch = new ThreadLocal<Scratch>() {
+      @Override
+      protected Scratch initialValue() {
+        return new Scratch(h, d);
+      }
+    };
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    initScratch();
+  }
+}
@@ -0,0 +1,140 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+
+import us.hall.weka.smile.BlockedEuclidean;
+
+/**
+ * Brute force index, a scan over the indexed points. Used for small and
+ * very high dimensional data where trees do not pay off.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class LinearIndex implements NeighborIndex {
+
+  /** for serialization */
+  private static final long serialVersionUID = 6170931585245002047L;
+
+  /** The points */
+  final PointStore store;
+
+  /** Indexed point numbers */
+  int[] ids;
+
+  /** Number of indexed points */
+  int size;
+
+  /** Position in ids, by point number */
+  int[] position;
+
+  /**
+   * Indexes all points of the store.
+   *
+   * @param store the points
+   */
+  public LinearIndex(PointStore store) {
+    this.store = store;
+    size = store.size();
+    ids = new int[Math.max(16, size)];
+    position = new int[ids.length];
+    for (int i = 0; i < size; i++) {
+      ids[i] = i;
+      position[i] = i;
+    }
+  }
+
+  @Override
+  public int knn(double[] q, int k, NeighborList result) {
+    result.reset(k);
+    for (int i = 0; i < size; i++) {
+      result.offer(ids[i], store.squaredDistance(q, ids[i], result.bound()));
+    }
+    result.sqrt();
+    return result.size();
+  }
+
+  /**
+   * The blocked engine over the stored points, for answering many queries
+   * by stored points at once with {@link #knn(BlockedEuclidean, int, int, int, NeighborList[])}.
+   *
+   * @return the engine, or null unless the store keeps plain double
+   *         coordinates, every stored point is indexed, in order, and the
+   *         dimension is high enough for the tiles to pay
+   */
+  public BlockedEuclidean pairwise() {
+    if (store.getClass() != PointStore.class || store.values() == null || size != store.size()
+        || store.dimension() < BlockedEuclidean.MIN_DIMENSION) {
+      return null;
+    }
+    for (int i = 0; i < size; i++) {
+      if (ids[i] != i) {
+        return null;
+      }
+    }
+    return new BlockedEuclidean(store.values(), size, store.dimension());
+  }
+
+  /**
+   * Finds the k nearest indexed points of each of the stored points
+   * [from, to), with the same results as querying them one at a time.
+   * Distances come a tile at a time from the engine; a candidate is
+   * passed over when the engine's error bound shows it cannot enter the
+   * list, and otherwise offered at its direct distance.
+   *
+   * @param pairs the engine from {@link #pairwise()}
+   * @param from first query point
+   * @param to end of the query points
+   * @param k number of neighbors
+   * @param results receive the neighbors of point i at i - from
+   */
+  public void knn(BlockedEuclidean pairs, int from, int to, int k, NeighborList[] results) {
+    int d = store.dimension();
+    double[][] q = new double[to - from][d];
+    for (int i = from; i < to; i++) {
+      store.get(i, q[i - from]);
+      results[i - from].reset(k);
+    }
+    double[] sq = new double[(to - from) * BlockedEuclidean.TILE];
+    for (int b = 0; b < size; b += BlockedEuclidean.TILE) {
+      int bTo = Math.min(size, b + BlockedEuclidean.TILE);
+      pairs.squaredDistances(from, to, b, bTo, sq);
+      for (int i = from, o = 0; i < to; i++) {
+        NeighborList result = results[i - from];
+        double[] x = q[i - from];
+        for (int j = b; j < bTo; j++, o++) {
+          if (sq[o] - pairs.slack(i, j) >= result.bound()) {
+            continue;
+          }
+          result.offer(j, store.squaredDistance(x, j, result.bound()));
+        }
+      }
+    }
+    for (int i = from; i < to; i++) {
+      results[i - from].sqrt();
+    }
+  }
+
+  @Override
+  public void insert(int i) {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size + (size >> 1));
+    }
+    if (i >= position.length) {
+      position = Arrays.copyOf(position, Math.max(i + 1, position.length + (position.length >> 1)));
+    }
+    position[i] = size;
+    ids[size++] = i;
+  }
+
+  @Override
+  public void remove(int i) {
+    int last = ids[--size];
+    ids[position[i]] = last;
+    position[last] = position[i];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+}
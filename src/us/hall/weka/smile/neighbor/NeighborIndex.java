@@ -0,0 +1,48 @@
+package us.hall.weka.smile.neighbor;
+
+import java.io.Serializable;
+
+/**
+ * Nearest neighbor index over the points of a {@link PointStore}.
+ * Points are added to the store first and then inserted by number, so
+ * one store can back the index and everything else that needs the data.
+ * <p/>
+ * Queries may run concurrently with each other but not with insert or
+ * remove.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public interface NeighborIndex extends Serializable {
+
+  /**
+   * Finds the k nearest indexed points.
+   *
+   * @param q the query
+   * @param k number of neighbors
+   * @param result receives the neighbors, nearest first, with their
+   *          Euclidean distances
+   * @return the number of neighbors found, less than k only if the index
+   *         holds fewer points
+   */
+  public int knn(double[] q, int k, NeighborList result);
+
+  /**
+   * Indexes a point that has been added to the store.
+   *
+   * @param i the point number
+   */
+  public void insert(int i);
+
+  /**
+   * Stops indexing a point, after which its slot in the store may be
+   * reused and inserted again.
+   *
+   * @param i the point number, currently indexed
+   */
+  public void remove(int i);
+
+  /**
+   * @return the number of indexed points
+   */
+  public int size();
+}
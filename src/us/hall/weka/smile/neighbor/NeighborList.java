@@ -0,0 +1,159 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+
+/**
+ * Primitive result of a k-nearest neighbor query: point numbers and
+ * distances, kept sorted by increasing distance.
+ * <p/>
+ * Queries fill a caller supplied list so the search path does not allocate.
+ * {@link #forThread(int)} hands out one reused list per thread.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class NeighborList {
+
+  /** one list per thread, see forThread */
+  private static final ThreadLocal<NeighborList> LOCAL = new ThreadLocal<NeighborList>() {
+    @Override
+    protected NeighborList initialValue() {
+      return new NeighborList(16);
+    }
+  };
+
+  /** Point numbers */
+  int[] index;
+
+  /** Distances, squared while an index is searching */
+  double[] distance;
+
+  /** Number of neighbors wanted */
+  int k;
+
+  /** Number of neighbors found */
+  int size;
+
+  /** Reused vote accumulator */
+  double[] votes = new double[0];
+
+  /**
+   * @param capacity initial capacity
+   */
+  public NeighborList(int capacity) {
+    index = new int[capacity];
+    distance = new double[capacity];
+  }
+
+  /**
+   * Returns the calling thread's list. It is shared by every query the
+   * thread makes, so results must be used before the next query.
+   *
+   * @param k capacity needed
+   * @return the cleared list
+   */
+  public static NeighborList forThread(int k) {
+    NeighborList list = LOCAL.get();
+    list.reset(k);
+    return list;
+  }
+
+  /**
+   * Clears the list for a query of k neighbors.
+   *
+   * @param k number of neighbors wanted
+   */
+  public void reset(int k) {
+    if (index.length < k) {
+      index = new int[k];
+      distance = new double[k];
+    }
+    this.k = k;
+    size = 0;
+  }
+
+  /**
+   * @return the number of neighbors found
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param i rank of the neighbor, 0 is nearest
+   * @return its point number
+   */
+  public int index(int i) {
+    return index[i];
+  }
+
+  /**
+   * @param i rank of the neighbor, 0 is nearest
+   * @return its distance
+   */
+  public double distance(int i) {
+    return distance[i];
+  }
+
+  /**
+   * @return true once k neighbors have been collected
+   */
+  public boolean isFull() {
+    return size == k;
+  }
+
+  /**
+   * @return the distance a candidate has to beat, infinite until full
+   */
+  public double bound() {
+    return size == k ? distance[k - 1] : Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Offers a candidate, keeping the k nearest in order.
+   *
+   * @param i point number
+   * @param dist its distance
+   */
+  public void offer(int i, double dist) {
+    int pos;
+    if (size < k) {
+      pos = size++;
+    } else if (dist < distance[k - 1]) {
+      pos = k - 1;
+    } else {
+      return;
+    }
+    while (pos > 0 && distance[pos - 1] > dist) {
+      index[pos] = index[pos - 1];
+      distance[pos] = distance[pos - 1];
+      pos--;
+    }
+    index[pos] = i;
+    distance[pos] = dist;
+  }
+
+  /**
+   * Returns a zeroed array for accumulating votes over the neighbors,
+   * reused between queries like the list itself.
+   *
+   * @param numClasses length needed
+   * @return the cleared array, possibly longer than numClasses
+   */
+  public double[] votes(int numClasses) {
+    if (votes.length < numClasses) {
+      votes = new double[numClasses];
+    } else {
+      Arrays.fill(votes, 0, numClasses, 0.0);
+    }
+    return votes;
+  }
+
+  /**
+   * Turns squared distances into distances.
+   */
+  void sqrt() {
+    for (int i = 0; i < size; i++) {
+      distance[i] = Math.sqrt(distance[i]);
+    }
+  }
+}
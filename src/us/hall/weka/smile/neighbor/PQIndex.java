@@ -0,0 +1,144 @@
+package us.hall.weka.smile.neighbor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+
+/**
+ * Scan over the codes of a {@link QuantizedStore} by asymmetric distance
+ * computation: each query fills one table of distances to the centroids,
+ * after which a point costs a table lookup per subspace instead of a
+ * distance over all coordinates. When the store keeps the exact
+ * coordinates, the best candidates can be re-ranked exactly.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class PQIndex implements NeighborIndex {
+
+  /** for serialization */
+  private static final long serialVersionUID = -1826049245300781384L;
+
+  /**
+   * Per thread working arrays, so queries do not allocate.
+   */
+  static class Scratch {
+
+    /** Distance table of the query */
+    final double[] table;
+
+    /** Candidates for re-ranking */
+    final NeighborList candidates = new NeighborList(16);
+
+    Scratch(int length) {
+      table = new double[length];
+    }
+  }
+
+  /** The points */
+  final QuantizedStore store;
+
+  /** Candidates re-ranked exactly, 0 for none */
+  final int rerank;
+
+  /** Indexed point numbers */
+  int[] ids;
+
+  /** Number of indexed points */
+  int size;
+
+  /** Position in ids, by point number */
+  int[] position;
+
+  transient ThreadLocal<Scratch> scratch;
+
+  /**
+   * Indexes all points of the store.
+   *
+   * @param store the points
+   * @param rerank number of best candidates to re-rank by their exact
+   *          distance, 0 for none, ignored if the store does not keep
+   *          exact coordinates
+   */
+  public PQIndex(QuantizedStore store, int rerank) {
+    this.store = store;
+    this.rerank = store.keepsExact() ? Math.max(0, rerank) : 0;
+    size = store.size();
+    ids = new int[Math.max(16, size)];
+    position = new int[ids.length];
+    for (int i = 0; i < size; i++) {
+      ids[i] = i;
+      position[i] = i;
+    }
+    initScratch();
+  }
+
+  @Override
+  public int knn(double[] q, int k, NeighborList result) {
+    Scratch s = scratch.get();
+    store.distanceTable(q, s.table);
+    if (rerank == 0) {
+      result.reset(k);
+      scan(s.table, result);
+    } else {
+      NeighborList candidates = s.candidates;
+      candidates.reset(Math.max(k, rerank));
+      scan(s.table, candidates);
+      rankExactly(q, candidates, k, result);
+    }
+    result.sqrt();
+    return result.size();
+  }
+
+  void scan(double[] table, NeighborList result) {
+    for (int i = 0; i < size; i++) {
+      result.offer(ids[i], store.tableDistance(table, ids[i]));
+    }
+  }
+
+  void rankExactly(double[] q, NeighborList candidates, int k, NeighborList result) {
+    result.reset(k);
+    for (int i = 0; i < candidates.size; i++) {
+      int p = candidates.index[i];
+      result.offer(p, store.exactDistance(q, p));
+    }
+  }
+
+  @Override
+  public void insert(int i) {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size + (size >> 1));
+    }
+    if (i >= position.length) {
+      position = Arrays.copyOf(position, Math.max(i + 1, position.length + (position.length >> 1)));
+    }
+    position[i] = size;
+    ids[size++] = i;
+  }
+
+  @Override
+  public void remove(int i) {
+    int last = ids[--size];
+    ids[position[i]] = last;
+    position[last] = position[i];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  private void initScratch() {
+    final int length = store.subspaces() * store.numCentroids();
+    scratch = new ThreadLocal<Scratch>() {
+      @Override
+      protected Scratch initialValue() {
+        return new Scratch(length);
+      }
+    };
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    initScratch();
+  }
+}
@@ -0,0 +1,253 @@
+package us.hall.weka.smile.neighbor;
+
+import java.io.Serializable;
+
+import us.hall.weka.smile.UnrolledDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
+
+/**
+ * Growable primitive store of points with a class value and weight each.
+ * Points are kept row major in one double[] and referred to by their row
+ * number, which is what the neighbor indexes in this package hand back.
+ * <p/>
+ * A store created from an InstancesMatrix uses the matrix arrays directly
+ * and only copies them the first time it is written to, so building on a
+ * cached matrix costs no copy.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class PointStore implements Serializable {
+
+  /** for serialization */
+  private static final long serialVersionUID = -2297012813417838517L;
+
+  /** Point coordinates, point i starts at i * d */
+  double[] values;
+
+  /** Class value per point */
+  double[] classValues;
+
+  /** Weight per point */
+  double[] weights;
+
+  /** Dimension */
+  final int d;
+
+  /** Number of points */
+  int size;
+
+  /** Whether the arrays belong to someone else and must be copied before writing */
+  boolean shared;
+
+  /** Slot of the oldest point when used as a ring buffer */
+  int oldest;
+
+  /**
+   * Empty store.
+   *
+   * @param d dimension of the points
+   * @param capacity initial number of points
+   */
+  public PointStore(int d, int capacity) {
+    this.d = d;
+    capacity = Math.max(capacity, 16);
+    values = new double[capacity * d];
+    classValues = new double[capacity];
+    weights = new double[capacity];
+  }
+
+  /**
+   * Store over the rows of a matrix, sharing its arrays until first written.
+   *
+   * @param matrix the matrix, class values may be null
+   */
+  public PointStore(InstancesMatrix matrix) {
+    d = matrix.numColumns();
+    size = matrix.numRows();
+    values = matrix.values();
+    classValues = matrix.classValues() != null ? matrix.classValues() : new double[size];
+    weights = matrix.weights();
+    shared = true;
+  }
+
+  /**
+   * Store over the same points as another, sharing its arrays until first
+   * written.
+   *
+   * @param source the store
+   */
+  PointStore(PointStore source) {
+    d = source.d;
+    size = source.size;
+    values = source.values;
+    classValues = source.classValues;
+    weights = source.weights;
+    oldest = source.oldest;
+    shared = true;
+  }
+
+  /**
+   * @return the dimension of the points
+   */
+  public int dimension() {
+    return d;
+  }
+
+  /**
+   * @return the number of points
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The coordinates, point i occupying [i * dimension(), (i + 1) * dimension()).
+   *
+   * @return the backing array, null for a store that does not keep them
+   */
+  public double[] values() {
+    return values;
+  }
+
+  /**
+   * @param i the point
+   * @param j the dimension
+   * @return coordinate j of point i
+   */
+  public double coord(int i, int j) {
+    return values[i * d + j];
+  }
+
+  /**
+   * @param i the point
+   * @return the class value of point i
+   */
+  public double classValue(int i) {
+    return classValues[i];
+  }
+
+  /**
+   * @param i the point
+   * @return the weight of point i
+   */
+  public double weight(int i) {
+    return weights[i];
+  }
+
+  /**
+   * @param q the query
+   * @param i the point
+   * @return the squared Euclidean distance between q and point i
+   */
+  public double squaredDistance(double[] q, int i) {
+    return UnrolledDistance.squaredEuclidean(q, values, i * d);
+  }
+
+  /**
+   * Bounded form of {@link #squaredDistance(double[], int)} for scans that
+   * only keep points nearer than the current k-th: the sum is given up
+   * once it has passed limit.
+   *
+   * @param q the query
+   * @param i the point
+   * @param limit the squared distance past which the point is not wanted
+   * @return the squared Euclidean distance, or infinity once it exceeds
+   *         limit
+   */
+  public double squaredDistance(double[] q, int i, double limit) {
+    return UnrolledDistance.squaredEuclidean(q, values, i * d, limit);
+  }
+
+  /**
+   * Copies point i into x.
+   *
+   * @param i the point
+   * @param x destination of length dimension()
+   */
+  public void get(int i, double[] x) {
+    System.arraycopy(values, i * d, x, 0, d);
+  }
+
+  /**
+   * Appends a point.
+   *
+   * @param x the coordinates
+   * @param classValue its class value
+   * @param weight its weight
+   * @return the number of the new point
+   */
+  public int add(double[] x, double classValue, double weight) {
+    if (shared || size == weights.length) {
+      grow(Math.max(16, size + (size >> 1)));
+    }
+    set(size, x, classValue, weight);
+    return size++;
+  }
+
+  /**
+   * Ring buffer use of the store, for points added in arrival order. Once
+   * the store holds window points this returns the slot of the oldest and
+   * moves on to the next, and the caller removes the point from its index
+   * and overwrites the slot with {@link #set}.
+   *
+   * @param window maximum number of points, at least size()
+   * @return the slot to overwrite, -1 while the store is still filling
+   */
+  public int evict(int window) {
+    if (size < window) {
+      return -1;
+    }
+    int slot = oldest;
+    oldest = (oldest + 1) % window;
+    return slot;
+  }
+
+  /**
+   * Point numbers in arrival order, which the ring buffer use of the store
+   * rotates.
+   *
+   * @param j position in arrival order, 0 for the oldest point held
+   * @return the number of that point
+   */
+  public int arrival(int j) {
+    return (oldest + j) % size;
+  }
+
+  /**
+   * Overwrites point i.
+   *
+   * @param i the point, less than size()
+   * @param x the coordinates
+   * @param classValue its class value
+   * @param weight its weight
+   */
+  public void set(int i, double[] x, double classValue, double weight) {
+    if (shared) {
+      grow(weights.length);
+    }
+    if (values != null) {
+      System.arraycopy(x, 0, values, i * d, d);
+    }
+    classValues[i] = classValue;
+    weights[i] = weight;
+  }
+
+  /**
+   * Reallocates the arrays for the given number of points, which also ends
+   * any sharing.
+   */
+  void grow(int capacity) {
+    if (values != null) {
+      double[] v = new double[capacity * d];
+      System.arraycopy(values, 0, v, 0, size * d);
+      values = v;
+    }
+    double[] c = new double[capacity];
+    System.arraycopy(classValues, 0, c, 0, size);
+    double[] w = new double[capacity];
+    System.arraycopy(weights, 0, w, 0, size);
+    classValues = c;
+    weights = w;
+    shared = false;
+  }
+}
@@ -0,0 +1,310 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Point store that keeps each point as a product quantization code (Jegou
+ * et al. 2011): the coordinates are cut into subspaces, and each subspace
+ * is replaced by the byte number of its nearest of up to 256 centroids
+ * learned by k-means. A point then costs one byte per subspace instead of
+ * eight per coordinate.
+ * <p/>
+ * Coordinates and distances read through the PointStore methods are those
+ * of the decoded point, so every index works on a quantized store. The
+ * exact coordinates can be kept as well, for re-ranking candidates, at the
+ * cost of the memory saving.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class QuantizedStore extends PointStore {
+
+  /** for serialization */
+  private static final long serialVersionUID = 6016262519711062335L;
+
+  /** Centroids per subspace, the most one byte numbers */
+  static final int CENTROIDS = 256;
+
+  /** Most points sampled to learn the centroids */
+  static final int TRAINING_SIZE = CENTROIDS * 16;
+
+  /** Lloyd iterations when learning the centroids */
+  static final int ITERATIONS = 10;
+
+  /** Rows from which points are encoded in parallel */
+  static final int PARALLEL_THRESHOLD = 10000;
+
+  /** Number of subspaces, bytes per code */
+  final int subspaces;
+
+  /** First coordinate of each subspace, subspaces + 1 entries */
+  final int[] start;
+
+  /** Centroids of subspace m, centroid c at c * (start[m + 1] - start[m]) */
+  final double[][] centroids;
+
+  /** Number of centroids per subspace */
+  final int numCentroids;
+
+  /** Code of point i at i * subspaces */
+  byte[] codes;
+
+  /**
+   * Quantizes the points of another store, learning the centroids from a
+   * sample of them.
+   *
+   * @param source the points
+   * @param subspaces number of subspaces, at most the dimension
+   * @param keepExact whether to keep the exact coordinates too
+   * @param seed random seed for the sample and the k-means starts
+   */
+  public QuantizedStore(PointStore source, int subspaces, boolean keepExact, long seed) {
+    super(source);
+    this.subspaces = Math.max(1, Math.min(subspaces, d));
+    start = new int[this.subspaces + 1];
+    for (int m = 0; m <= this.subspaces; m++) {
+      start[m] = m * d / this.subspaces;
+    }
+    numCentroids = Math.max(1, Math.min(CENTROIDS, size));
+    centroids = new double[this.subspaces][];
+
+    final Random random = new Random(seed);
+    final int[] sample = new int[Math.min(size, TRAINING_SIZE)];
+    if (sample.length == size) {
+      for (int i = 0; i < size; i++) {
+        sample[i] = i;
+      }
+    } else {
+      for (int i = 0; i < sample.length; i++) {
+        sample[i] = random.nextInt(size);
+      }
+    }
+    final long[] seeds = new long[this.subspaces];
+    for (int m = 0; m < seeds.length; m++) {
+      seeds[m] = random.nextLong();
+    }
+    IntStream.range(0, this.subspaces).parallel()
+      .forEach(m -> centroids[m] = learn(source, sample, m, new Random(seeds[m])));
+
+    codes = new byte[Math.max(weights.length, 16) * this.subspaces];
+    final int n = size;
+    IntStream rows = IntStream.range(0, n);
+    if (n >= PARALLEL_THRESHOLD) {
+      rows = rows.parallel();
+    }
+    rows.forEach(i -> encode(source.values, i * d, i));
+    if (!keepExact) {
+      values = null;
+    }
+  }
+
+  /**
+   * k-means over the sampled points restricted to subspace m.
+   */
+  double[] learn(PointStore source, int[] sample, int m, Random random) {
+    int from = start[m];
+    int len = start[m + 1] - from;
+    int k = numCentroids;
+    double[] c = new double[k * len];
+    if (sample.length == 0) {
+      return c;
+    }
+    int[] perm = new int[sample.length];
+    for (int i = 0; i < perm.length; i++) {
+      perm[i] = i;
+    }
+    for (int i = 0; i < k; i++) {
+      int j = i + random.nextInt(perm.length - i);
+      int t = perm[i];
+      perm[i] = perm[j];
+      perm[j] = t;
+      System.arraycopy(source.values, sample[perm[i]] * d + from, c, i * len, len);
+    }
+    int[] assign = new int[sample.length];
+    double[] sum = new double[k * len];
+    int[] count = new int[k];
+    for (int iter = 0; iter < ITERATIONS; iter++) {
+      boolean changed = false;
+      for (int s = 0; s < sample.length; s++) {
+        int a = nearest(c, len, source.values, sample[s] * d + from);
+        if (a != assign[s] || iter == 0) {
+          changed = true;
+          assign[s] = a;
+        }
+      }
+      if (!changed) {
+        break;
+      }
+      Arrays.fill(sum, 0);
+      Arrays.fill(count, 0);
+      for (int s = 0; s < sample.length; s++) {
+        int off = sample[s] * d + from;
+        int a = assign[s];
+        count[a]++;
+        for (int j = 0; j < len; j++) {
+          sum[a * len + j] += source.values[off + j];
+        }
+      }
+      for (int a = 0; a < k; a++) {
+        if (count[a] == 0) {
+          // restart an empty cluster on a random sample point
+          System.arraycopy(source.values, sample[random.nextInt(sample.length)] * d + from, c, a * len, len);
+          continue;
+        }
+        for (int j = 0; j < len; j++) {
+          c[a * len + j] = sum[a * len + j] / count[a];
+        }
+      }
+    }
+    return c;
+  }
+
+  /**
+   * @return the centroid of c nearest to x[off, off + len)
+   */
+  int nearest(double[] c, int len, double[] x, int off) {
+    int best = 0;
+    double bestDist = Double.POSITIVE_INFINITY;
+    for (int a = 0, base = 0; a < numCentroids; a++, base += len) {
+      double dist = 0;
+      for (int j = 0; j < len && dist < bestDist; j++) {
+        double t = x[off + j] - c[base + j];
+        dist += t * t;
+      }
+      if (dist < bestDist) {
+        bestDist = dist;
+        best = a;
+      }
+    }
+    return best;
+  }
+
+  void encode(double[] x, int off, int i) {
+    for (int m = 0; m < subspaces; m++) {
+      int len = start[m + 1] - start[m];
+      codes[i * subspaces + m] = (byte)nearest(centroids[m], len, x, off + start[m]);
+    }
+  }
+
+  /**
+   * @return the number of subspaces, the bytes per point
+   */
+  public int subspaces() {
+    return subspaces;
+  }
+
+  /**
+   * @return the number of centroids per subspace
+   */
+  public int numCentroids() {
+    return numCentroids;
+  }
+
+  /**
+   * @return whether the exact coordinates are kept
+   */
+  public boolean keepsExact() {
+    return values != null;
+  }
+
+  /**
+   * Fills the asymmetric distance table of a query: the squared distance
+   * from each subspace of q to each centroid of that subspace, centroid c
+   * of subspace m at m * numCentroids() + c.
+   *
+   * @param q the query
+   * @param table destination of length subspaces() * numCentroids()
+   */
+  public void distanceTable(double[] q, double[] table) {
+    for (int m = 0; m < subspaces; m++) {
+      int from = start[m];
+      int len = start[m + 1] - from;
+      double[] c = centroids[m];
+      for (int a = 0, base = 0; a < numCentroids; a++, base += len) {
+        double dist = 0;
+        for (int j = 0; j < len; j++) {
+          double t = q[from + j] - c[base + j];
+          dist += t * t;
+        }
+        table[m * numCentroids + a] = dist;
+      }
+    }
+  }
+
+  /**
+   * @param table distance table of the query
+   * @param i the point
+   * @return the squared distance from the query to the decoded point i
+   */
+  public double tableDistance(double[] table, int i) {
+    double sum = 0.0;
+    int off = i * subspaces;
+    for (int m = 0, base = 0; m < subspaces; m++, base += numCentroids) {
+      sum += table[base + (codes[off + m] & 0xff)];
+    }
+    return sum;
+  }
+
+  /**
+   * @param q the query
+   * @param i the point
+   * @return the squared distance from q to the exact point i
+   */
+  public double exactDistance(double[] q, int i) {
+    return super.squaredDistance(q, i);
+  }
+
+  @Override
+  public double coord(int i, int j) {
+    int m = subspaces - 1;
+    while (start[m] > j) {
+      m--;
+    }
+    int len = start[m + 1] - start[m];
+    return centroids[m][(codes[i * subspaces + m] & 0xff) * len + j - start[m]];
+  }
+
+  @Override
+  public double squaredDistance(double[] q, int i) {
+    double sum = 0.0;
+    for (int m = 0; m < subspaces; m++) {
+      int from = start[m];
+      int len = start[m + 1] - from;
+      double[] c = centroids[m];
+      int base = (codes[i * subspaces + m] & 0xff) * len;
+      for (int j = 0; j < len; j++) {
+        double t = q[from + j] - c[base + j];
+        sum += t * t;
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public double squaredDistance(double[] q, int i, double limit) {
+    return squaredDistance(q, i);
+  }
+
+  @Override
+  public void get(int i, double[] x) {
+    for (int m = 0; m < subspaces; m++) {
+      int len = start[m + 1] - start[m];
+      System.arraycopy(centroids[m], (codes[i * subspaces + m] & 0xff) * len, x, start[m], len);
+    }
+  }
+
+  @Override
+  public void set(int i, double[] x, double classValue, double weight) {
+    super.set(i, x, classValue, weight);
+    encode(x, 0, i);
+  }
+
+  @Override
+  void grow(int capacity) {
+    super.grow(capacity);
+    if (codes != null && codes.length < capacity * subspaces) {
+      codes = Arrays.copyOf(codes, capacity * subspaces);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import smile.neighbor.Neighbor;
+import smile.neighbor.SimpleNeighbor;
+
+/**
+ * Buffers of one thread's range queries over an index that visits rows out
+ * of row order, such as {@link VPTree} or {@link GridIndex}. Rows found are
+ * collected with their distances, then handed on in row order, the order
+ * of a linear scan.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+class RangeBuffer {
+
+  /** Distances of a block of rows */
+  final double[] block = new double[RangeSearch.BLOCK];
+
+  /** Rows found and their distances */
+  final RangeList found = new RangeList();
+
+  long[] order = new long[64];
+
+  /** Position in found plus one by row, zero between queries */
+  int[] slots = new int[0];
+
+  /** Blocks of positions to visit, start and end in turn */
+  int[] runs = new int[18];
+
+  /** First and last cell of a grid query along each coordinate */
+  final int[] lo = new int[GridIndex.MAX_DIMENSION], hi = new int[GridIndex.MAX_DIMENSION];
+
+  /** A row asked about by number */
+  double[] row = new double[0];
+
+  /** The nearest row of a point */
+  final NeighborList nearest = new NeighborList(1);
+
+  /**
+   * Adds the rows found to neighbors in row order and clears the buffer:
+   * sorted when few were found, marked by row and swept when many.
+   *
+   * @param keys the rows by row number, or null to hand back a copy of
+   *          each row found from values
+   * @param values the rows, row i at i * d
+   * @param d dimension
+   * @param n number of rows
+   * @param neighbors receives the rows found
+   */
+  void emit(double[][] keys, double[] values, int d, int n, List<Neighbor<double[], double[]>> neighbors) {
+    int count = found.size;
+    int[] index = found.index;
+    double[] dist = found.distance;
+    if (count > n >>> 4) {
+      int[] slot = slots(n);
+      for (int f = 0; f < count; f++) {
+        slot[index[f]] = f + 1;
+      }
+      for (int i = 0; i < n; i++) {
+        if (slot[i] > 0) {
+          neighbors.add(new SimpleNeighbor<double[]>(key(keys, values, d, i), i, dist[slot[i] - 1]));
+          slot[i] = 0;
+        }
+      }
+    } else {
+      long[] order = order(count);
+      for (int f = 0; f < count; f++) {
+        order[f] = (long)index[f] << 32 | f;
+      }
+      Arrays.sort(order, 0, count);
+      for (int f = 0; f < count; f++) {
+        int i = (int)(order[f] >>> 32);
+        neighbors.add(new SimpleNeighbor<double[]>(key(keys, values, d, i), i, dist[(int)order[f]]));
+      }
+    }
+    found.clear();
+  }
+
+  static double[] key(double[][] keys, double[] values, int d, int i) {
+    return keys != null ? keys[i] : Arrays.copyOfRange(values, i * d, (i + 1) * d);
+  }
+
+  /**
+   * @return row i of row major values, in this buffer or the key itself
+   */
+  double[] row(double[][] keys, double[] values, int d, int i) {
+    if (keys != null) {
+      return keys[i];
+    }
+    if (row.length != d) {
+      row = new double[d];
+    }
+    System.arraycopy(values, i * d, row, 0, d);
+    return row;
+  }
+
+  void run(int r, int from, int to) {
+    if (2 * r + 1 >= runs.length) {
+      runs = Arrays.copyOf(runs, 2 * runs.length);
+    }
+    runs[2 * r] = from;
+    runs[2 * r + 1] = to;
+  }
+
+  long[] order(int size) {
+    if (order.length < size) {
+      order = new long[found.index.length];
+    }
+    return order;
+  }
+
+  int[] slots(int n) {
+    if (slots.length < n) {
+      slots = new int[n];
+    }
+    return slots;
+  }
+}
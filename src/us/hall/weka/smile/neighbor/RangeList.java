@@ -0,0 +1,64 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+
+/**
+ * Primitive result of a range query: row numbers and distances, in no
+ * particular order.
+ * <p/>
+ * A density clustering asks for the neighborhood of every row, often
+ * thousands of rows each, so queries fill a caller supplied list that keeps
+ * its arrays between queries rather than allocate a Neighbor per row found.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class RangeList {
+
+  /** Row numbers */
+  int[] index = new int[64];
+
+  /** Distances */
+  double[] distance = new double[64];
+
+  /** Number of rows found */
+  int size;
+
+  /**
+   * @return the number of rows found
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param r a position below size()
+   * @return the row number at position r
+   */
+  public int index(int r) {
+    return index[r];
+  }
+
+  /**
+   * @param r a position below size()
+   * @return the distance at position r
+   */
+  public double distance(int r) {
+    return distance[r];
+  }
+
+  /**
+   * Empties the list for the next query.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  void add(int i, double dist) {
+    if (size == index.length) {
+      index = Arrays.copyOf(index, 2 * size);
+      distance = Arrays.copyOf(distance, 2 * size);
+    }
+    index[size] = i;
+    distance[size++] = dist;
+  }
+}
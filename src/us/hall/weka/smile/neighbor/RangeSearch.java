@@ -0,0 +1,160 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import smile.neighbor.Neighbor;
+import smile.neighbor.SimpleNeighbor;
+import us.hall.weka.smile.BlockedEuclidean;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.SmileEuclideanDistance;
+import us.hall.weka.smile.UnrolledDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
+
+/**
+ * Brute force range search over the rows of a matrix that computes
+ * distances a block of rows at a time through
+ * {@link SmileDistance#distances(double[], double[], int, int, int, double, double[])},
+ * instead of a virtual call per pair as Smile's LinearSearch does, and
+ * leaves off each distance once it has passed the radius. Results
+ * are the same: rows in order, those within the radius. The rows are not
+ * held as arrays of their own: each neighbor is handed back with a copy of
+ * its row, and a row leaves itself out when asked about by number, see
+ * {@link RowSearch}.
+ * <p/>
+ * Under the Euclidean distance the blocks come from the dot products of
+ * {@link BlockedEuclidean} against precomputed row norms. Rows whose
+ * distance lies within the error bound of the radius are recomputed
+ * directly, so the neighbors found are the same; the distances reported
+ * with them may differ in the last bits.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class RangeSearch implements RowSearch {
+
+  /** Rows per distance block */
+  static final int BLOCK = 256;
+
+  /** The rows, row major */
+  final double[] values;
+
+  /** Number of rows */
+  final int n;
+
+  /** Dimension */
+  final int d;
+
+  /** The distance */
+  final SmileDistance distance;
+
+  /** Norm based engine for the Euclidean distance, otherwise null */
+  final BlockedEuclidean pairs;
+
+  /** Direct kernel for the rows near the radius, with pairs */
+  final UnrolledDistance exact;
+
+  /** Per thread query buffers */
+  private final ThreadLocal<RangeBuffer> scratch = new ThreadLocal<RangeBuffer>() {
+    @Override
+    protected RangeBuffer initialValue() {
+      return new RangeBuffer();
+    }
+  };
+
+  /**
+   * Searches the rows of a matrix.
+   *
+   * @param matrix the points
+   * @param distance the distance
+   */
+  public RangeSearch(InstancesMatrix matrix, SmileDistance distance) {
+    values = matrix.values();
+    n = matrix.numRows();
+    d = matrix.numColumns();
+    this.distance = distance;
+    if (distance instanceof SmileEuclideanDistance && distance.getSmileDistance() instanceof UnrolledDistance) {
+      pairs = ((SmileEuclideanDistance)distance).pairwise(matrix);
+      exact = (UnrolledDistance)distance.getSmileDistance();
+    } else {
+      pairs = null;
+      exact = null;
+    }
+  }
+
+  @Override
+  public void range(double[] q, double radius, List<Neighbor<double[], double[]>> neighbors) {
+    RangeBuffer s = scratch.get();
+    range(q, -1, radius, s, s.found);
+    // found in row order, as the scan goes
+    RangeList found = s.found;
+    for (int r = 0; r < found.size; r++) {
+      int i = found.index[r];
+      neighbors.add(new SimpleNeighbor<double[]>(Arrays.copyOfRange(values, i * d, (i + 1) * d), i, found.distance[r]));
+    }
+    found.clear();
+  }
+
+  @Override
+  public void range(int i, double radius, RangeList found) {
+    RangeBuffer s = scratch.get();
+    range(s.row(null, values, d, i), i, radius, s, found);
+  }
+
+  @Override
+  public void range(double[] q, double radius, RangeList found) {
+    range(q, -1, radius, scratch.get(), found);
+  }
+
+  /**
+   * Adds the rows within a radius of q to found, leaving out row exclude.
+   */
+  void range(double[] q, int exclude, double radius, RangeBuffer s, RangeList found) {
+    if (radius <= 0.0) {
+      throw new IllegalArgumentException("Invalid radius: " + radius);
+    }
+    if (pairs != null) {
+      blockedRange(q, exclude, radius, s.block, found);
+      return;
+    }
+    double[] dist = s.block;
+    for (int from = 0; from < n; from += BLOCK) {
+      int to = Math.min(n, from + BLOCK);
+      distance.distances(q, values, d, from, to, radius, dist);
+      for (int i = from; i < to; i++) {
+        if (dist[i - from] <= radius && i != exclude) {
+          found.add(i, dist[i - from]);
+        }
+      }
+    }
+  }
+
+  void blockedRange(double[] q, int exclude, double radius, double[] sq, RangeList found) {
+    double[] x = q.length == d ? q : Arrays.copyOf(q, d);
+    double qNorm = BlockedEuclidean.squaredNorm(x, 0, d);
+    double r2 = radius * radius;
+    // covers rounding r2 and the square root of the direct distance
+    double margin = r2 * 0x1p-50;
+    for (int from = 0; from < n; from += BLOCK) {
+      int to = Math.min(n, from + BLOCK);
+      pairs.squaredDistances(x, qNorm, from, to, sq);
+      for (int i = from; i < to; i++) {
+        double s = sq[i - from];
+        double slack = pairs.slack(qNorm, i) + margin;
+        if (s - slack > r2 || i == exclude) {
+          continue;
+        }
+        double dist;
+        if (s + slack < r2) {
+          dist = Math.sqrt(s);
+        } else {
+          // near the radius or missing coordinates, decide exactly
+          dist = exact.d(x, values, i * d, radius);
+          if (!(dist <= radius)) {
+            continue;
+          }
+        }
+        found.add(i, dist);
+      }
+    }
+  }
+}
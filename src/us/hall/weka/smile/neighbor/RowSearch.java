@@ -0,0 +1,36 @@
+package us.hall.weka.smile.neighbor;
+
+import smile.neighbor.RNNSearch;
+
+/**
+ * Range search over the rows of a matrix that can be asked about one of
+ * its own rows by number. Smile's searches leave a query out of its own
+ * neighborhood when it is the very array a row was indexed as, which
+ * holds the rows as a double[][] beside the row major values; asking by
+ * number leaves the row out without either side holding such arrays.
+ * <p/>
+ * Rows found are added to a {@link RangeList}. Queries may run
+ * concurrently, each with its own list.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public interface RowSearch extends RNNSearch<double[], double[]> {
+
+  /**
+   * Finds the rows within a radius of one of the rows, leaving it out.
+   *
+   * @param i the row
+   * @param radius the radius
+   * @param found receives the rows found
+   */
+  public void range(int i, double radius, RangeList found);
+
+  /**
+   * Finds the rows within a radius of a point.
+   *
+   * @param q the point
+   * @param radius the radius
+   * @param found receives the rows found
+   */
+  public void range(double[] q, double radius, RangeList found);
+}
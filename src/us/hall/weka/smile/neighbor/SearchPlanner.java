@@ -0,0 +1,101 @@
+package us.hall.weka.smile.neighbor;
+
+import weka.core.Tag;
+
+/**
+ * Picks and builds the nearest neighbor index for a dataset.
+ * <p/>
+ * A KD-tree only prunes well while the data is much larger than 2^d, a
+ * metric tree handles higher dimensions for any metric, and for small or
+ * very high dimensional data a linear scan beats both. The vantage point
+ * tree builds and queries faster than the Smile cover tree, so it is the
+ * metric tree chosen. The approximate LSH index
+ * is only used when asked for.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class SearchPlanner {
+
+  /** choose from the size and dimension of the data */
+  public static final int SEARCH_AUTO = 0;
+  /** brute force scan */
+  public static final int SEARCH_LINEAR = 1;
+  /** insertable KD-tree */
+  public static final int SEARCH_KDTREE = 2;
+  /** smile CoverTree */
+  public static final int SEARCH_COVERTREE = 3;
+  /** approximate, multi-probe LSH */
+  public static final int SEARCH_LSH = 4;
+  /** vantage point tree */
+  public static final int SEARCH_VPTREE = 5;
+  /** possible search structures */
+  public static final Tag[] TAGS_SEARCH = {
+    new Tag(SEARCH_AUTO, "auto", "Chosen from data size and dimension"),
+    new Tag(SEARCH_LINEAR, "linear", "Linear scan"),
+    new Tag(SEARCH_KDTREE, "kdtree", "KD-tree"),
+    new Tag(SEARCH_COVERTREE, "covertree", "Cover tree"),
+    new Tag(SEARCH_LSH, "lsh", "Multi-probe LSH (approximate)"),
+    new Tag(SEARCH_VPTREE, "vptree", "Vantage point tree")
+  };
+
+  /** Below this many points a linear scan is used */
+  static final int MIN_TREE_SIZE = 1000;
+
+  /** Above this many dimensions a linear scan is used */
+  static final int MAX_TREE_DIMENSION = 100;
+
+  private SearchPlanner() {
+  }
+
+  /**
+   * Chooses the search structure for n points of dimension d.
+   *
+   * @param n number of points
+   * @param d dimension
+   * @return one of SEARCH_LINEAR, SEARCH_KDTREE or SEARCH_VPTREE
+   */
+  public static int choose(int n, int d) {
+    if (n < MIN_TREE_SIZE || d > MAX_TREE_DIMENSION) {
+      return SEARCH_LINEAR;
+    }
+    // KD-tree pruning needs n >> 2^d
+    if (d + 2 <= 31 - Integer.numberOfLeadingZeros(n)) {
+      return SEARCH_KDTREE;
+    }
+    return SEARCH_VPTREE;
+  }
+
+  /**
+   * Resolves SEARCH_AUTO to a concrete structure.
+   *
+   * @param type requested structure
+   * @param n number of points
+   * @param d dimension
+   * @return the structure to build
+   */
+  public static int resolve(int type, int n, int d) {
+    return type == SEARCH_AUTO ? choose(n, d) : type;
+  }
+
+  /**
+   * Builds a Euclidean k-nearest neighbor index over all points of a store.
+   *
+   * @param store the points
+   * @param type one of the SEARCH_ constants
+   * @return the index
+   */
+  public static NeighborIndex build(PointStore store, int type) {
+    switch (resolve(type, store.size(), store.dimension())) {
+    case SEARCH_KDTREE:
+      return new KDTree(store);
+    case SEARCH_COVERTREE:
+      return new SnapshotIndex(store);
+    case SEARCH_VPTREE:
+      return new SnapshotIndex(store, true);
+    case SEARCH_LSH:
+      return new LSHIndex(store, LSHIndex.DEFAULT_TABLES, LSHIndex.DEFAULT_PROBES, 0, 1, 1);
+    default:
+      return new LinearIndex(store);
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package us.hall.weka.smile.neighbor;
+
+import java.util.Arrays;
+
+import smile.math.distance.EuclideanDistance;
+import smile.neighbor.CoverTree;
+import smile.neighbor.KNNSearch;
+import smile.neighbor.Neighbor;
+import us.hall.weka.smile.SmileEuclideanDistance;
+
+/**
+ * Makes a static tree, the Smile CoverTree or a {@link VPTree},
+ * updateable. The tree covers a snapshot
+ * of the points, newer points are scanned linearly from a tail, and points
+ * removed from the snapshot are tombstoned and skipped. The snapshot is
+ * rebuilt once the tail and tombstones reach an eighth of it, which keeps
+ * the rebuild cost per update at O(log n) amortized. The vantage point
+ * tree skips tombstones in its search, so it is asked for just k; the
+ * cover tree cannot, and is asked again for twice as many while
+ * tombstones crowd live points out of its answer.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class SnapshotIndex implements NeighborIndex {
+
+  /** for serialization */
+  private static final long serialVersionUID = -4417384051993961460L;
+
+  /** Per thread neighbors of the vantage point tree, which the tree fills without allocating */
+  private static final ThreadLocal<NeighborList> TREE = new ThreadLocal<NeighborList>() {
+    @Override
+    protected NeighborList initialValue() {
+      return new NeighborList(16);
+    }
+  };
+
+  /** Tail length that never triggers a rebuild */
+  static final int MIN_TAIL = 1024;
+
+  /** The points */
+  final PointStore store;
+
+  /** Whether the snapshot is a vantage point tree rather than a cover tree */
+  final boolean vantage;
+
+  /** Point number of each snapshot position, -1 once removed */
+  int[] ids;
+
+  /** Number of positions in the snapshot */
+  int snapshotSize;
+
+  /** Number of removed snapshot positions */
+  int removed;
+
+  /** Snapshot position by point number, -1 for tail points */
+  int[] position;
+
+  /** Points inserted since the snapshot */
+  int[] tail = new int[16];
+
+  int tailSize;
+
+  /** Smile tree over the snapshot, rebuilt after deserialization */
+  transient volatile KNNSearch<double[], double[]> search;
+
+  /**
+   * Indexes all points of the store with a cover tree.
+   *
+   * @param store the points
+   */
+  public SnapshotIndex(PointStore store) {
+    this(store, false);
+  }
+
+  /**
+   * Indexes all points of the store.
+   *
+   * @param store the points
+   * @param vantage whether to use a vantage point tree instead of a cover
+   *        tree
+   */
+  public SnapshotIndex(PointStore store, boolean vantage) {
+    this.store = store;
+    this.vantage = vantage;
+    snapshotSize = store.size();
+    ids = new int[snapshotSize];
+    for (int i = 0; i < snapshotSize; i++) {
+      ids[i] = i;
+    }
+    snapshot();
+  }
+
+  @Override
+  public int size() {
+    return snapshotSize - removed + tailSize;
+  }
+
+  @Override
+  public int knn(double[] q, int k, NeighborList result) {
+    result.reset(k);
+    KNNSearch<double[], double[]> s = k > 0 && snapshotSize > 0 ? search() : null;
+    if (s instanceof VPTree) {
+      NeighborList found = TREE.get();
+      ((VPTree)s).knn(q, k, found);
+      for (int r = 0; r < found.size(); r++) {
+        result.offer(ids[found.index(r)], found.distance(r) * found.distance(r));
+      }
+    } else if (s != null) {
+      int kk = Math.min(k, snapshotSize);
+      Neighbor<double[], double[]>[] neighbors = s.knn(q, kk);
+      while (kk < snapshotSize && live(neighbors) < k) {
+        kk = Math.min(2 * kk, snapshotSize);
+        neighbors = s.knn(q, kk);
+      }
+      for (Neighbor<double[], double[]> n : neighbors) {
+        if (ids[n.index] >= 0) {
+          result.offer(ids[n.index], n.distance * n.distance);
+        }
+      }
+    }
+    for (int t = 0; t < tailSize; t++) {
+      result.offer(tail[t], store.squaredDistance(q, tail[t], result.bound()));
+    }
+    result.sqrt();
+    return result.size();
+  }
+
+  /**
+   * @return how many of the neighbors the tree found are not tombstoned
+   */
+  int live(Neighbor<double[], double[]>[] neighbors) {
+    int live = 0;
+    for (Neighbor<double[], double[]> n : neighbors) {
+      if (ids[n.index] >= 0) {
+        live++;
+      }
+    }
+    return live;
+  }
+
+  @Override
+  public void insert(int i) {
+    if (tailSize == tail.length) {
+      tail = Arrays.copyOf(tail, 2 * tailSize);
+    }
+    tail[tailSize++] = i;
+    if (i < position.length) {
+      position[i] = -1;
+    }
+    compactIfNeeded();
+  }
+
+  @Override
+  public void remove(int i) {
+    int pos = i < position.length ? position[i] : -1;
+    if (pos >= 0) {
+      ids[pos] = -1;
+      position[i] = -1;
+      removed++;
+      KNNSearch<double[], double[]> s = search;
+      if (s instanceof VPTree) {
+        ((VPTree)s).remove(pos);
+      }
+    } else {
+      for (int t = 0; t < tailSize; t++) {
+        if (tail[t] == i) {
+          tail[t] = tail[--tailSize];
+          break;
+        }
+      }
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Folds the tail into a new snapshot and drops tombstones once they are
+   * an eighth of the snapshot.
+   */
+  void compactIfNeeded() {
+    if (tailSize + removed <= Math.max(MIN_TAIL, snapshotSize / 8)) {
+      return;
+    }
+    int[] live = new int[snapshotSize - removed + tailSize];
+    int n = 0;
+    for (int p = 0; p < snapshotSize; p++) {
+      if (ids[p] >= 0) {
+        live[n++] = ids[p];
+      }
+    }
+    System.arraycopy(tail, 0, live, n, tailSize);
+    ids = live;
+    snapshotSize = live.length;
+    removed = 0;
+    tailSize = 0;
+    snapshot();
+  }
+
+  KNNSearch<double[], double[]> search() {
+    KNNSearch<double[], double[]> s = search;
+    if (s == null) {
+      synchronized (this) {
+        if (search == null) {
+          snapshot();
+        }
+        s = search;
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Rebuilds the tree over the snapshot positions, dropping tombstones. The
+   * vantage point tree is built over one gathered copy of the points, which
+   * it reorders in place, and the positions are renumbered to its order.
+   */
+  void snapshot() {
+    if (removed > 0) {
+      int n = 0;
+      for (int p = 0; p < snapshotSize; p++) {
+        if (ids[p] >= 0) {
+          ids[n++] = ids[p];
+        }
+      }
+      ids = Arrays.copyOf(ids, n);
+      snapshotSize = n;
+      removed = 0;
+    }
+    int d = store.d;
+    KNNSearch<double[], double[]> s = null;
+    if (vantage && snapshotSize > 0) {
+      double[] values = new double[snapshotSize * d];
+      double[] row = new double[d];
+      for (int p = 0; p < snapshotSize; p++) {
+        store.get(ids[p], row);
+        System.arraycopy(row, 0, values, p * d, d);
+      }
+      int[] order = new int[snapshotSize];
+      VPTree tree = VPTree.reorder(values, d, new SmileEuclideanDistance(), order);
+      int[] byTree = new int[snapshotSize];
+      for (int p = 0; p < snapshotSize; p++) {
+        byTree[p] = ids[order[p]];
+      }
+      ids = byTree;
+      s = tree;
+    } else if (snapshotSize > 0) {
+      double[][] rows = new double[snapshotSize][d];
+      for (int p = 0; p < snapshotSize; p++) {
+        store.get(ids[p], rows[p]);
+      }
+      s = new CoverTree<double[]>(rows, new EuclideanDistance());
+    }
+    position = new int[Math.max(store.size(), 16)];
+    Arrays.fill(position, -1);
+    for (int p = 0; p < snapshotSize; p++) {
+      position[ids[p]] = p;
+    }
+    search = s;
+  }
+}
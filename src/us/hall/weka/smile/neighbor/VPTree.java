@@ -0,0 +1,492 @@
+package us.hall.weka.smile.neighbor;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import smile.math.distance.Metric;
+import smile.neighbor.KNNSearch;
+import smile.neighbor.Neighbor;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.data.InstancesMatrix;
+
+/**
+ * Vantage point tree (Yianilos 1993) over the rows of a matrix, for any
+ * {@link SmileDistance} that is a true metric. Each node picks a vantage
+ * row at random and splits the rest at their median distance from it; a
+ * query then skips every subtree the triangle inequality puts beyond its
+ * radius, or beyond its current k-th neighbor. Unlike the KD-tree it needs
+ * nothing from the distance but the metric axioms, so it serves the
+ * Manhattan, Chebyshev and Minkowski distances as well as the Euclidean.
+ * <p/>
+ * The rows are copied in tree order, so every subtree is a contiguous
+ * block and the leaves are scanned with the bounded block distances of the
+ * wrappers. Range results come back as from {@link RangeSearch}: in row
+ * order, without the query when it is one of the rows. Indexed from row
+ * major values, the rows are not held as arrays of their own, each
+ * neighbor is handed back with a copy of its row, and a row leaves itself
+ * out when asked about by number, see {@link RowSearch}.
+ * <p/>
+ * Missing values break the triangle inequality, as the distances rescale
+ * over the coordinates present; see {@link #suits(SmileDistance, InstancesMatrix)}.
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class VPTree implements RowSearch, KNNSearch<double[], double[]> {
+
+  /** Rows from which a node is split */
+  static final int LEAF = 16;
+
+  /** Seed of the vantage point choices, fixed so builds repeat */
+  static final long SEED = 1;
+
+  /**
+   * Relative allowance for rounding in the distances when pruning by the
+   * triangle inequality, far above the error of any of the kernels
+   */
+  static final double ROUNDING = 1e-9;
+
+  /** Below this many rows a linear scan is as fast */
+  static final int MIN_SIZE = 1000;
+
+  /** Above this many dimensions pruning no longer pays */
+  static final int MAX_DIMENSION = 100;
+
+  /** The rows by row number, handed back as neighbor keys, or null */
+  final double[][] keys;
+
+  /** The rows row major, row i at i * d, when there are no keys */
+  final double[] values;
+
+  /** The rows in tree order, position p at p * d */
+  final double[] points;
+
+  /** Row number of each tree position */
+  final int[] ids;
+
+  /** Number of rows */
+  final int n;
+
+  /** Dimension */
+  final int d;
+
+  /** The distance */
+  final SmileDistance distance;
+
+  /** First position of the outer subtree, by the position of its node */
+  final int[] mid;
+
+  /** Greatest distance from the vantage into the inner subtree */
+  final double[] innerMax;
+
+  /** Least distance from the vantage into the outer subtree */
+  final double[] outerMin;
+
+  /** Greatest distance from the vantage into the outer subtree */
+  final double[] outerMax;
+
+  /** Bit per row number of the rows removed, null while none are */
+  long[] removed;
+
+  /** Per thread query buffers */
+  private final ThreadLocal<RangeBuffer> scratch = new ThreadLocal<RangeBuffer>() {
+    @Override
+    protected RangeBuffer initialValue() {
+      return new RangeBuffer();
+    }
+  };
+
+  /**
+   * Indexes the rows of a matrix.
+   *
+   * @param matrix the points
+   * @param distance a true metric
+   */
+  public VPTree(InstancesMatrix matrix, SmileDistance distance) {
+    this(null, matrix.values(), matrix.numRows(), matrix.numColumns(), distance);
+  }
+
+  /**
+   * Indexes row major values. The values are kept, not copied.
+   *
+   * @param values the points, row i at i * d
+   * @param d dimension
+   * @param distance a true metric
+   */
+  public VPTree(double[] values, int d, SmileDistance distance) {
+    this(null, values, d == 0 ? 0 : values.length / d, d, distance);
+  }
+
+  /**
+   * Indexes rows of equal length.
+   *
+   * @param rows the points
+   * @param distance a true metric
+   */
+  public VPTree(double[][] rows, SmileDistance distance) {
+    this(rows, flatten(rows), rows.length, rows.length > 0 ? rows[0].length : 0, distance);
+  }
+
+  VPTree(double[][] keys, double[] values, int n, int d, SmileDistance distance) {
+    this(keys, values, Arrays.copyOf(values, n * d), n, d, distance);
+  }
+
+  VPTree(double[][] keys, double[] values, double[] points, int n, int d, SmileDistance distance) {
+    this.keys = keys;
+    this.values = keys == null ? values : null;
+    this.n = n;
+    this.d = d;
+    this.distance = distance;
+    this.points = points;
+    ids = new int[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = i;
+    }
+    mid = new int[n];
+    innerMax = new double[n];
+    outerMin = new double[n];
+    outerMax = new double[n];
+    build(0, n, new Random(SEED), new double[n], new double[d]);
+  }
+
+  /**
+   * Indexes row major values the tree takes over: they are reordered in
+   * place into tree order and the rows renumbered by tree position, so the
+   * tree holds the only copy of them.
+   *
+   * @param values the points, row i at i * d, reordered
+   * @param d dimension
+   * @param distance a true metric
+   * @param order receives the former row number of each row of the tree
+   * @return the tree
+   */
+  static VPTree reorder(double[] values, int d, SmileDistance distance, int[] order) {
+    int n = d == 0 ? 0 : values.length / d;
+    VPTree tree = new VPTree(null, values, values, n, d, distance);
+    System.arraycopy(tree.ids, 0, order, 0, n);
+    for (int p = 0; p < n; p++) {
+      tree.ids[p] = p;
+    }
+    return tree;
+  }
+
+  static double[] flatten(double[][] rows) {
+    int d = rows.length > 0 ? rows[0].length : 0;
+    double[] values = new double[rows.length * d];
+    for (int i = 0; i < rows.length; i++) {
+      System.arraycopy(rows[i], 0, values, i * d, d);
+    }
+    return values;
+  }
+
+  /**
+   * Whether a tree pays off and answers exactly for a distance over the
+   * rows of a matrix: the distance must be a true metric, the data large
+   * enough, not too high dimensional, and without missing values.
+   *
+   * @param distance the distance
+   * @param matrix the points
+   * @return true to use a tree
+   */
+  public static boolean suits(SmileDistance distance, InstancesMatrix matrix) {
+    return suits(distance, matrix.values(), matrix.numColumns());
+  }
+
+  /**
+   * As {@link #suits(SmileDistance, InstancesMatrix)} for row major values.
+   *
+   * @param distance the distance
+   * @param values the points, row i at i * d
+   * @param d dimension
+   * @return true to use a tree
+   */
+  public static boolean suits(SmileDistance distance, double[] values, int d) {
+    if (!(distance.getSmileDistance() instanceof Metric)
+        || d == 0 || values.length / d < MIN_SIZE || d > MAX_DIMENSION) {
+      return false;
+    }
+    for (double v : values) {
+      if (Double.isNaN(v)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Splits positions [from, to) around a random vantage point.
+   */
+  void build(int from, int to, Random random, double[] dist, double[] q) {
+    if (to - from <= LEAF) {
+      return;
+    }
+    swap(from, from + random.nextInt(to - from), null, 0);
+    System.arraycopy(points, from * d, q, 0, d);
+    int lo = from + 1;
+    distance.distances(q, points, d, lo, to, dist);
+    int m = lo + (to - lo) / 2;
+    select(dist, lo, to, m, random);
+    double inner = 0.0, outerLo = Double.POSITIVE_INFINITY, outerHi = 0.0;
+    for (int i = lo; i < m; i++) {
+      inner = Math.max(inner, dist[i - lo]);
+    }
+    for (int i = m; i < to; i++) {
+      outerLo = Math.min(outerLo, dist[i - lo]);
+      outerHi = Math.max(outerHi, dist[i - lo]);
+    }
+    mid[from] = m;
+    innerMax[from] = inner;
+    outerMin[from] = outerLo;
+    outerMax[from] = outerHi;
+    build(lo, m, random, dist, q);
+    build(m, to, random, dist, q);
+  }
+
+  /**
+   * Reorders positions [lo, hi) so position k holds the row at its rank by
+   * distance, nearer rows before it and farther ones after. dist[i - lo] is
+   * the distance of position i and moves with it.
+   */
+  void select(double[] dist, int lo, int hi, int k, Random random) {
+    int left = lo, right = hi - 1;
+    while (left < right) {
+      swap(left + random.nextInt(right - left + 1), right, dist, lo);
+      double pivot = dist[right - lo];
+      int store = left;
+      for (int i = left; i < right; i++) {
+        if (dist[i - lo] < pivot) {
+          swap(i, store++, dist, lo);
+        }
+      }
+      swap(store, right, dist, lo);
+      if (store == k) {
+        return;
+      } else if (store < k) {
+        left = store + 1;
+      } else {
+        right = store - 1;
+      }
+    }
+  }
+
+  /**
+   * Swaps two tree positions, and their distances when dist is given.
+   */
+  void swap(int i, int j, double[] dist, int base) {
+    if (i == j) {
+      return;
+    }
+    int t = ids[i];
+    ids[i] = ids[j];
+    ids[j] = t;
+    for (int a = i * d, b = j * d, end = a + d; a < end; a++, b++) {
+      double v = points[a];
+      points[a] = points[b];
+      points[b] = v;
+    }
+    if (dist != null) {
+      double v = dist[i - base];
+      dist[i - base] = dist[j - base];
+      dist[j - base] = v;
+    }
+  }
+
+  /**
+   * @return the number of rows
+   */
+  public int size() {
+    return n;
+  }
+
+  @Override
+  public void range(double[] q, double radius, List<Neighbor<double[], double[]>> neighbors) {
+    RangeBuffer s = scratch.get();
+    range(q.length == d ? q : Arrays.copyOf(q, d), q, -1, radius, s.block, s.found);
+    s.emit(keys, values, d, n, neighbors);
+  }
+
+  @Override
+  public void range(int i, double radius, RangeList found) {
+    RangeBuffer s = scratch.get();
+    range(s.row(keys, values, d, i), null, i, radius, s.block, found);
+  }
+
+  @Override
+  public void range(double[] q, double radius, RangeList found) {
+    range(q.length == d ? q : Arrays.copyOf(q, d), q, -1, radius, scratch.get().block, found);
+  }
+
+  /**
+   * Adds the rows within a radius of x to found, leaving out the row
+   * asked about, by number or as the query array.
+   */
+  void range(double[] x, double[] q, int exclude, double radius, double[] buf, RangeList found) {
+    if (radius <= 0.0) {
+      throw new IllegalArgumentException("Invalid radius: " + radius);
+    }
+    if (n > 0) {
+      range(x, q, exclude, radius, 0, n, buf, found);
+    }
+  }
+
+  void range(double[] x, double[] q, int exclude, double radius, int from, int to, double[] buf, RangeList found) {
+    if (to - from <= LEAF) {
+      scan(x, q, exclude, radius, from, to, buf, found);
+      return;
+    }
+    distance.distances(x, points, d, from, from + 1, buf);
+    double dv = buf[0];
+    if (dv <= radius && !skip(ids[from], q, exclude)) {
+      found.add(ids[from], dv);
+    }
+    if (dv + outerMax[from] < radius) {
+      // the whole subtree is in range, take it as one block
+      scan(x, q, exclude, radius, from + 1, to, buf, found);
+      return;
+    }
+    int m = mid[from];
+    if (dv - radius <= innerMax[from] + ROUNDING * (dv + radius + innerMax[from])) {
+      range(x, q, exclude, radius, from + 1, m, buf, found);
+    }
+    double slack = ROUNDING * (dv + radius + outerMax[from]);
+    if (dv + radius >= outerMin[from] - slack && dv - radius <= outerMax[from] + slack) {
+      range(x, q, exclude, radius, m, to, buf, found);
+    }
+  }
+
+  /**
+   * @return whether row i is the one asked about or removed
+   */
+  boolean skip(int i, double[] q, int exclude) {
+    return i == exclude || (keys != null && keys[i] == q)
+      || (removed != null && (removed[i >>> 6] & 1L << i) != 0);
+  }
+
+  /**
+   * Leaves a row out of every search from now on. The row stays in the
+   * tree as a vantage point, so the searches still return the nearest rows
+   * not removed.
+   *
+   * @param i the row number
+   */
+  public void remove(int i) {
+    if (removed == null) {
+      removed = new long[(n + 63) >>> 6];
+    }
+    removed[i >>> 6] |= 1L << i;
+  }
+
+  /**
+   * Adds the rows at positions [from, to) within the radius, a block of
+   * distances at a time.
+   */
+  void scan(double[] x, double[] q, int exclude, double radius, int from, int to, double[] buf, RangeList found) {
+    for (int lo = from; lo < to; lo += buf.length) {
+      int hi = Math.min(to, lo + buf.length);
+      distance.distances(x, points, d, lo, hi, radius, buf);
+      for (int p = lo; p < hi; p++) {
+        if (buf[p - lo] <= radius && !skip(ids[p], q, exclude)) {
+          found.add(ids[p], buf[p - lo]);
+        }
+      }
+    }
+  }
+
+  @Override
+  public Neighbor<double[], double[]>[] knn(double[] q, int k) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("Invalid k: " + k);
+    }
+    NeighborList list = new NeighborList(k);
+    knn(q, k, list);
+    Neighbor<double[], double[]>[] neighbors = neighbors(list.size());
+    for (int r = 0; r < neighbors.length; r++) {
+      int i = list.index(r);
+      double[] key = RangeBuffer.key(keys, values, d, i);
+      neighbors[r] = new Neighbor<double[], double[]>(key, key, i, list.distance(r));
+    }
+    return neighbors;
+  }
+
+  /**
+   * The k nearest rows of a point into a caller supplied list, which does
+   * not allocate. As with smile's searches, a query that is the very array
+   * a row was indexed as is left out, and so are removed rows.
+   *
+   * @param q the query
+   * @param k number of neighbors wanted
+   * @param list receives the rows found and their distances, nearest first
+   * @return the number found
+   */
+  public int knn(double[] q, int k, NeighborList list) {
+    list.reset(k);
+    double[] x = q.length == d ? q : Arrays.copyOf(q, d);
+    if (n > 0) {
+      knn(x, q, 0, n, list, scratch.get().block);
+    }
+    return list.size();
+  }
+
+  /**
+   * The nearest row within a radius of a point, as
+   * {@link GridIndex#nearest(double[], double)} asks it of a grid, without
+   * a Neighbor to hand back.
+   *
+   * @param q the query
+   * @param radius the radius
+   * @return the row number of the nearest row, or -1 when none is within
+   *         the radius
+   */
+  public int nearest(double[] q, double radius) {
+    RangeBuffer s = scratch.get();
+    NeighborList list = s.nearest;
+    list.reset(1);
+    double[] x = q.length == d ? q : Arrays.copyOf(q, d);
+    if (n > 0) {
+      knn(x, q, 0, n, list, s.block);
+    }
+    return list.size() > 0 && list.distance(0) <= radius ? list.index(0) : -1;
+  }
+
+  /**
+   * @return an array of n neighbors, typed as the generic array it holds
+   */
+  @SuppressWarnings("unchecked")
+  static <K, V> Neighbor<K, V>[] neighbors(int n) {
+    return (Neighbor<K, V>[])Array.newInstance(Neighbor.class, n);
+  }
+
+  void knn(double[] x, double[] q, int from, int to, NeighborList list, double[] buf) {
+    if (to - from <= LEAF) {
+      distance.distances(x, points, d, from, to, list.bound(), buf);
+      for (int p = from; p < to; p++) {
+        if (!skip(ids[p], q, -1)) {
+          list.offer(ids[p], buf[p - from]);
+        }
+      }
+      return;
+    }
+    distance.distances(x, points, d, from, from + 1, buf);
+    double dv = buf[0];
+    if (!skip(ids[from], q, -1)) {
+      list.offer(ids[from], dv);
+    }
+    int m = mid[from];
+    // nearer side first, so the bound tightens before the other is tried
+    boolean innerFirst = dv < (innerMax[from] + outerMin[from]) / 2;
+    for (int side = 0; side < 2; side++) {
+      double tau = list.bound();
+      if (innerFirst == (side == 0)) {
+        if (dv - tau <= innerMax[from] + ROUNDING * (dv + tau + innerMax[from])) {
+          knn(x, q, from + 1, m, list, buf);
+        }
+      } else {
+        double slack = ROUNDING * (dv + tau + outerMax[from]);
+        if (dv + tau >= outerMin[from] - slack && dv - tau <= outerMax[from] + slack) {
+          knn(x, q, m, to, list, buf);
+        }
+      }
+    }
+  }
+}
@@ -21,9 +21,12 @@
 
 package weka.classifiers.lazy;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.UpdateableClassifier;
@@ -45,8 +48,20 @@ import weka.core.TechnicalInformation.Type;
 import weka.core.TechnicalInformationHandler;
 import weka.core.Utils;
 import weka.core.WeightedInstancesHandler;
-import weka.core.neighboursearch.LinearNNSearch;
-import weka.core.neighboursearch.NearestNeighbourSearch;
+
+import us.hall.weka.smile.BlockedEuclidean;
+import us.hall.weka.smile.data.FeatureExtractor;
+import us.hall.weka.smile.data.InstancesConverter;
+import us.hall.weka.smile.data.InstancesMatrix;
+import us.hall.weka.smile.neighbor.FloatPointStore;
+import us.hall.weka.smile.neighbor.LSHIndex;
+import us.hall.weka.smile.neighbor.LinearIndex;
+import us.hall.weka.smile.neighbor.NeighborIndex;
+import us.hall.weka.smile.neighbor.NeighborList;
+import us.hall.weka.smile.neighbor.PQIndex;
+import us.hall.weka.smile.neighbor.PointStore;
+import us.hall.weka.smile.neighbor.QuantizedStore;
+import us.hall.weka.smile.neighbor.SearchPlanner;
 
 // DEBUG accuracy differences
 import smile.data.AttributeDataset;
@@ -105,9 +120,33 @@ import smile.data.parser.ArffParser;
  *  and the k value specified using hold-one-out evaluation
  *  on the training data (use when k &gt; 1)</pre>
  * 
- * <pre> -A
- *  The nearest neighbour search algorithm to use (default: weka.core.neighboursearch.LinearNNSearch).
- * </pre>
+ * <pre> -S &lt;auto|linear|kdtree|covertree|lsh|vptree&gt;
+ *  The smile neighbour search structure used for prediction.
+ *  (default: auto, chosen from the number and dimension of the instances)</pre>
+ * 
+ * <pre> -L &lt;number of tables&gt;
+ *  Number of hash tables for the lsh search structure.
+ *  (default: 10)</pre>
+ * 
+ * <pre> -P &lt;number of probes&gt;
+ *  Extra buckets probed per hash table by the lsh search structure
+ *  when -R is 0. (default: 4)</pre>
+ * 
+ * <pre> -R &lt;recall&gt;
+ *  Recall of the true nearest neighbours the lsh search structure
+ *  chooses the fewest probes for on a sample, 0 to keep -P.
+ *  (default: 0.9)</pre>
+ * 
+ * <pre> -Q &lt;number of subspaces&gt;
+ *  Product quantization subspaces, one byte per subspace and
+ *  training instance. (default: 0, exact coordinates)</pre>
+ * 
+ * <pre> -Z &lt;number of candidates&gt;
+ *  Product quantized candidates re-ranked by exact distance.
+ *  (default: 0, no re-ranking)</pre>
+ * 
+ * <pre> -float
+ *  Store the training instances in single precision.</pre>
  * 
  <!-- options-end -->
  *
@@ -124,11 +163,18 @@ public class KNN
   /** for serialization. */
   static final long serialVersionUID = -3080186098777067172L;
 
-  /** The training instances used for classification. */
-  protected Instances m_Train;
+  /** The structure of the training data. */
+  protected Instances m_Header;
+
+  /** Reads instances into the feature space of the point store. */
+  protected FeatureExtractor m_extractor;
+
+  /** The training points, class values and weights in primitive form. */
+  protected PointStore m_Store;
+
+  /** Neighbour index over m_Store used for prediction. */
+  protected NeighborIndex m_Index;
 
-  transient smile.classification.KNN<double[]> knn;
-  
   /** The number of class values (or 1 if predicting numeric). */
   protected int m_NumClasses;
 
@@ -185,9 +231,38 @@ public class KNN
     new Tag(WEIGHT_INVERSE, "Weight by 1/distance"),
     new Tag(WEIGHT_SIMILARITY, "Weight by 1-distance")
   };
+
+  /** Training set size from which hold-one-out runs in parallel. */
+  protected static final int CV_PARALLEL_THRESHOLD = 1000;
+
+  /** Per thread distribution predict() fills */
+  private static final ThreadLocal<double[]> DISTRIBUTION = new ThreadLocal<double[]>() {
+    @Override
+    protected double[] initialValue() {
+      return new double[0];
+    }
+  };
   
-  /** for nearest-neighbor search. */
-  protected NearestNeighbourSearch m_NNSearch = new LinearNNSearch();
+  /** The smile neighbour search structure, one of SearchPlanner.TAGS_SEARCH. */
+  protected int m_SearchStructure = SearchPlanner.SEARCH_AUTO;
+
+  /** Number of hash tables for the lsh search structure. */
+  protected int m_HashTables = LSHIndex.DEFAULT_TABLES;
+
+  /** Extra buckets probed per table by the lsh search structure. */
+  protected int m_Probes = LSHIndex.DEFAULT_PROBES;
+
+  /** Recall the lsh search structure tunes its probes for, 0 for none. */
+  protected double m_RecallTarget = 0.9;
+
+  /** Product quantization subspaces, 0 to keep exact coordinates. */
+  protected int m_Subspaces;
+
+  /** Quantized candidates re-ranked by exact distance, 0 for none. */
+  protected int m_Rerank;
+
+  /** Whether the training points are stored in single precision. */
+  protected boolean m_FloatStorage;
 
   /** The number of attributes the contribute to a prediction. */
   protected double m_NumAttributesUsed;
@@ -418,33 +493,217 @@ public class KNN
     m_CrossValidate = newCrossValidate;
   }
 
+   
   /**
    * Returns the tip text for this property.
    * @return tip text for this property suitable for
    * displaying in the explorer/experimenter gui
    */
-  public String nearestNeighbourSearchAlgorithmTipText() {
-    return "The nearest neighbour search algorithm to use " +
-    	   "(Default: weka.core.neighboursearch.LinearNNSearch).";
+  public String searchStructureTipText() {
+    return "The smile neighbour search structure used for prediction. Auto "
+      + "picks a KD-tree for low dimensional data, a vantage point tree for higher "
+      + "dimensions and a linear scan for small or very high dimensional data.";
   }
-  
+
   /**
-   * Returns the current nearestNeighbourSearch algorithm in use.
-   * @return the NearestNeighbourSearch algorithm currently in use.
+   * Gets the smile neighbour search structure used for prediction.
+   *
+   * @return the search structure
    */
-  public NearestNeighbourSearch getNearestNeighbourSearchAlgorithm() {
-    return m_NNSearch;
+  public SelectedTag getSearchStructure() {
+    return new SelectedTag(m_SearchStructure, SearchPlanner.TAGS_SEARCH);
   }
-  
+
   /**
-   * Sets the nearestNeighbourSearch algorithm to be used for finding nearest
-   * neighbour(s).
-   * @param nearestNeighbourSearchAlgorithm - The NearestNeighbourSearch class.
+   * Sets the smile neighbour search structure used for prediction.
+   *
+   * @param newStructure the search structure
    */
-  public void setNearestNeighbourSearchAlgorithm(NearestNeighbourSearch nearestNeighbourSearchAlgorithm) {
-    m_NNSearch = nearestNeighbourSearchAlgorithm;
+  public void setSearchStructure(SelectedTag newStructure) {
+    if (newStructure.getTags() == SearchPlanner.TAGS_SEARCH) {
+      m_SearchStructure = newStructure.getSelectedTag().getID();
+    }
   }
-   
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String hashTablesTipText() {
+    return "The number of hash tables of the lsh search structure. More tables "
+      + "raise recall at the cost of memory and query time.";
+  }
+
+  /**
+   * Gets the number of hash tables of the lsh search structure.
+   *
+   * @return the number of tables
+   */
+  public int getHashTables() {
+    return m_HashTables;
+  }
+
+  /**
+   * Sets the number of hash tables of the lsh search structure.
+   *
+   * @param newTables the number of tables
+   */
+  public void setHashTables(int newTables) {
+    m_HashTables = newTables;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String probesTipText() {
+    return "The number of extra buckets the lsh search structure probes per "
+      + "hash table when no recall target is set.";
+  }
+
+  /**
+   * Gets the number of extra buckets probed per hash table.
+   *
+   * @return the number of probes
+   */
+  public int getProbes() {
+    return m_Probes;
+  }
+
+  /**
+   * Sets the number of extra buckets probed per hash table.
+   *
+   * @param newProbes the number of probes
+   */
+  public void setProbes(int newProbes) {
+    m_Probes = newProbes;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String recallTargetTipText() {
+    return "The recall of the true nearest neighbours the lsh search structure "
+      + "chooses the fewest probes for, measured on a sample of the training "
+      + "data. 0 keeps the given probes.";
+  }
+
+  /**
+   * Gets the recall target of the lsh search structure.
+   *
+   * @return the recall target
+   */
+  public double getRecallTarget() {
+    return m_RecallTarget;
+  }
+
+  /**
+   * Sets the recall target of the lsh search structure.
+   *
+   * @param newRecall the recall target, 0 for none
+   */
+  public void setRecallTarget(double newRecall) {
+    m_RecallTarget = newRecall;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String subspacesTipText() {
+    return "The number of product quantization subspaces. When above 0 each "
+      + "training point is stored as one byte per subspace and searched by "
+      + "asymmetric distance, whatever the search structure. 0 keeps the "
+      + "exact coordinates.";
+  }
+
+  /**
+   * Gets the number of product quantization subspaces.
+   *
+   * @return the number of subspaces, 0 for none
+   */
+  public int getSubspaces() {
+    return m_Subspaces;
+  }
+
+  /**
+   * Sets the number of product quantization subspaces.
+   *
+   * @param newSubspaces the number of subspaces, 0 for none
+   */
+  public void setSubspaces(int newSubspaces) {
+    m_Subspaces = newSubspaces;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String rerankTipText() {
+    return "The number of best product quantized candidates re-ranked by "
+      + "their exact distance. Above 0 the exact coordinates are kept "
+      + "alongside the codes.";
+  }
+
+  /**
+   * Gets the number of quantized candidates re-ranked exactly.
+   *
+   * @return the number of candidates, 0 for none
+   */
+  public int getRerank() {
+    return m_Rerank;
+  }
+
+  /**
+   * Sets the number of quantized candidates re-ranked exactly.
+   *
+   * @param newRerank the number of candidates, 0 for none
+   */
+  public void setRerank(int newRerank) {
+    m_Rerank = newRerank;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String floatStorageTipText() {
+    return "Whether to store the training points in single precision, which "
+      + "halves their memory and the bandwidth of distance computations. "
+      + "Ignored when product quantizing.";
+  }
+
+  /**
+   * Gets whether the training points are stored in single precision.
+   *
+   * @return true if they are
+   */
+  public boolean getFloatStorage() {
+    return m_FloatStorage;
+  }
+
+  /**
+   * Sets whether the training points are stored in single precision.
+   *
+   * @param newFloatStorage true to store them as floats
+   */
+  public void setFloatStorage(boolean newFloatStorage) {
+    m_FloatStorage = newFloatStorage;
+  }
+
   /**
    * Get the number of training instances the classifier is currently using.
    * 
@@ -452,7 +711,7 @@ public class KNN
    */
   public int getNumTraining() {
 
-    return m_Train.numInstances();
+    return m_Store.size();
   }
 
   /**
@@ -493,54 +752,44 @@ public class KNN
     // can classifier handle the data?
     getCapabilities().testWithFail(instances);
 
-    // remove instances with missing class
-    instances = new Instances(instances);
-    instances.deleteWithMissingClass();
+    // remove instances with missing class, copying only if there are any
+    for (int i = 0; i < instances.numInstances(); i++) {
+      if (instances.instance(i).classIsMissing()) {
+        instances = new Instances(instances);
+        instances.deleteWithMissingClass();
+        break;
+      }
+    }
     
     m_NumClasses = instances.numClasses();
     m_ClassType = instances.classAttribute().type();
-    m_Train = new Instances(instances, 0, instances.numInstances());
+    m_Header = new Instances(instances, 0);
 
     // Throw away initial instances until within the specified window size
     if ((m_WindowSize > 0) && (instances.numInstances() > m_WindowSize)) {
-      m_Train = new Instances(m_Train, 
-			      m_Train.numInstances()-m_WindowSize, 
+      instances = new Instances(instances, 
+			      instances.numInstances()-m_WindowSize, 
 			      m_WindowSize);
     }
 
     m_NumAttributesUsed = 0.0;
-    for (int i = 0; i < m_Train.numAttributes(); i++) {
-      if ((i != m_Train.classIndex()) && 
-	  (m_Train.attribute(i).isNominal() ||
-	   m_Train.attribute(i).isNumeric())) {
+    for (int i = 0; i < m_Header.numAttributes(); i++) {
+      if ((i != m_Header.classIndex()) && 
+	  (m_Header.attribute(i).isNominal() ||
+	   m_Header.attribute(i).isNumeric())) {
 		m_NumAttributesUsed += 1.0;
       }
     }
-    
-    m_NNSearch.setInstances(m_Train);
-
-	Object[] arrays;
-	arrays = asArrays(m_Train,m_Train.classIndex());
-	double[][] data = (double[][])arrays[0];
-	int[] label = (int[])arrays[1];
 
-	knn = smile.classification.KNN.learn(data, label, m_kNN);
-		
+	// The store is the only copy of the training data: it shares the
+	// cached conversion (the caller's data when nothing was dropped, so
+	// repeated builds hit the cache)
+	InstancesMatrix matrix = InstancesConverter.convert(instances, instances.classIndex(), true);
+	m_extractor = new FeatureExtractor(matrix);
+	m_Store = quantize(new PointStore(matrix));	// shares the matrix until updated
+	m_Index = buildIndex(m_Store);
   }
   
-  public Object[] asArrays(Instances data, int classIndex) {
-  	double dA[][] = new double[data.numInstances()][data.numAttributes()-1 ];
-  	int cA[] = new int[data.numInstances()];
-	for (int i = 0; i < data.numInstances(); i++) {
-		for (int j = 0; j < data.numAttributes(); j++) {
-			if (j == classIndex) {
-				cA[i] = (int)data.instance(i).value(j);
-			}
-			else dA[i][j] = data.instance(i).value(j);
-		}
-	}
-	return new Object[] {dA, cA};
-  } 
     
   /**
    * Adds the supplied instance to the training set.
@@ -551,35 +800,153 @@ public class KNN
    */
   public void updateClassifier(Instance instance) throws Exception {
 
-    if (m_Train.equalHeaders(instance.dataset()) == false) {
-      throw new Exception("Incompatible instance types\n" + m_Train.equalHeadersMsg(instance.dataset()));
+    if (m_Header.equalHeaders(instance.dataset()) == false) {
+      throw new Exception("Incompatible instance types\n" + m_Header.equalHeadersMsg(instance.dataset()));
     }
     if (instance.classIsMissing()) {
       return;
     }
 
-    m_Train.add(instance);
-    m_NNSearch.update(instance);
     m_kNNValid = false;
-    if ((m_WindowSize > 0) && (m_Train.numInstances() > m_WindowSize)) {
-      boolean deletedInstance=false;
-      while (m_Train.numInstances() > m_WindowSize) {
-	m_Train.delete(0);
-        deletedInstance=true;
-      }
-      //rebuild datastructure KDTree currently can't delete
-      if(deletedInstance==true)
-        m_NNSearch.setInstances(m_Train);
+    if ((m_WindowSize > 0) && (m_Store.size() > m_WindowSize)) {
+      // window shrunk since the build
+      rebuildIndex();
     }
+    double[] x = m_extractor.extract(instance);
+    int slot = m_WindowSize > 0 ? m_Store.evict(m_WindowSize) : -1;
+    if (slot >= 0) {
+      // reuse the oldest point's slot
+      m_Index.remove(slot);
+      m_Store.set(slot, x, instance.classValue(), instance.weight());
+    } else {
+      slot = m_Store.add(x, instance.classValue(), instance.weight());
+    }
+    m_Index.insert(slot);
+  }
+
+  /**
+   * Rebuilds the point store and neighbour index over the newest points
+   * that fit the window.
+   */
+  protected void rebuildIndex() {
+    int n = Math.min(m_Store.size(), m_WindowSize > 0 ? m_WindowSize : m_Store.size());
+    PointStore store = new PointStore(m_Store.dimension(), n);
+    double[] x = new double[m_Store.dimension()];
+    for (int j = m_Store.size() - n; j < m_Store.size(); j++) {
+      int i = m_Store.arrival(j);
+      m_Store.get(i, x);
+      store.add(x, m_Store.classValue(i), m_Store.weight(i));
+    }
+    m_Store = quantize(store);
+    m_Index = buildIndex(m_Store);
+  }
+
+  /**
+   * Replaces a store by its product quantization when subspaces are set,
+   * or else by its single precision copy when float storage is on.
+   *
+   * @param store the points
+   * @return the store to use
+   */
+  protected PointStore quantize(PointStore store) {
+    if (m_Subspaces <= 0) {
+      return m_FloatStorage ? new FloatPointStore(store) : store;
+    }
+    return new QuantizedStore(store, m_Subspaces, m_Rerank > 0, 1);
+  }
+
+  /**
+   * Builds the selected neighbour index over all points of a store. A
+   * quantized store is always scanned by asymmetric distance.
+   *
+   * @param store the points
+   * @return the index
+   */
+  protected NeighborIndex buildIndex(PointStore store) {
+    if (store instanceof QuantizedStore) {
+      return new PQIndex((QuantizedStore)store, m_Rerank);
+    }
+    if (m_SearchStructure == SearchPlanner.SEARCH_LSH) {
+      return new LSHIndex(store, m_HashTables, m_Probes, m_RecallTarget, m_kNN, 1);
+    }
+    return SearchPlanner.build(store, m_SearchStructure);
   }
 
   public double classifyInstance(Instance instance) throws java.lang.Exception {
-  	double[] dA = new double[instance.numAttributes()-1];
-	for (int i = 0; i < instance.numAttributes(); i++) {
-		if (i == instance.classIndex()) continue;
-		dA[i] = instance.value(i);
-	}
-  	return knn.predict(dA);
+    // Select k by cross validation
+    if (!m_kNNValid && (m_CrossValidate) && (m_kNNUpper >= 1)) {
+      crossValidate();
+    }
+  	double[] dA = m_extractor.extract(instance);	// thread's reused buffer
+  	return predict(dA);
+  }
+
+  /**
+   * Predicts from the distribution of the k nearest training points, so
+   * the prediction weighs them as distributionForInstance does: the most
+   * probable class, the lower index on a tie, or the weighted mean for a
+   * numeric class. The distribution goes into the thread's reused buffer,
+   * so it does not allocate.
+   *
+   * @param x the features
+   * @return the prediction, missing if there is no training data
+   */
+  protected double predict(double[] x) {
+    if (m_Store.size() == 0) {
+      return Utils.missingValue();
+    }
+    double[] dist = DISTRIBUTION.get();
+    if (dist.length != m_NumClasses) {
+      dist = new double[m_NumClasses];
+      DISTRIBUTION.set(dist);
+    } else {
+      Arrays.fill(dist, 0.0);
+    }
+    distribution(x, dist);
+    return m_ClassType == Attribute.NOMINAL ? Utils.maxIndex(dist) : dist[0];
+  }
+
+  /**
+   * Classifies a whole batch of instances. Features are extracted once per
+   * row and the neighbour queries run in parallel.
+   *
+   * @param data the instances to classify
+   * @return the predicted class value of each instance
+   * @throws Exception if the classifier has not been built
+   */
+  public double[] classifyInstances(Instances data) throws Exception {
+    // Select k by cross validation
+    if (!m_kNNValid && (m_CrossValidate) && (m_kNNUpper >= 1)) {
+      crossValidate();
+    }
+    return m_extractor.applyAsDouble(data, x -> predict(x));
+  }
+
+  /**
+   * Batch version of distributionForInstance. Features are extracted once
+   * per row and the neighbour queries run in parallel.
+   *
+   * @param data the instances to classify
+   * @return the predicted class distribution of each instance
+   * @throws Exception if the classifier has not been built
+   */
+  public double[][] distributionsForInstances(Instances data) throws Exception {
+    // Select k by cross validation
+    if (!m_kNNValid && (m_CrossValidate) && (m_kNNUpper >= 1)) {
+      crossValidate();
+    }
+    final double[][] dist = new double[data.numInstances()][m_NumClasses];
+    m_extractor.forEach(data, (x, i) -> distribution(x, dist[i]));
+    return dist;
+  }
+
+  /**
+   * Batch prediction is cheaper than one instance at a time.
+   *
+   * @return true
+   */
+  public boolean implementsMoreEfficientBatchPrediction() {
+    return true;
   }
 
   /**
@@ -589,38 +956,80 @@ public class KNN
    * @return predicted class probability distribution
    * @throws Exception if an error occurred during the prediction
    */
-/*
   public double [] distributionForInstance(Instance instance) throws Exception {
 
-    if (m_Train.numInstances() == 0) {
-      //throw new Exception("No training instances!");
-      return m_defaultModel.distributionForInstance(instance);
-    }
-    if ((m_WindowSize > 0) && (m_Train.numInstances() > m_WindowSize)) {
-      m_kNNValid = false;
-      boolean deletedInstance=false;
-      while (m_Train.numInstances() > m_WindowSize) {
-	m_Train.delete(0);
-      }
-      //rebuild datastructure KDTree currently can't delete
-      if(deletedInstance==true)
-        m_NNSearch.setInstances(m_Train);
-    }
-
     // Select k by cross validation
     if (!m_kNNValid && (m_CrossValidate) && (m_kNNUpper >= 1)) {
       crossValidate();
     }
+    return distribution(m_extractor.extract(instance), new double[m_NumClasses]);
+  }
 
-    m_NNSearch.addInstanceInfo(instance);
+  /**
+   * Weights the votes of the k nearest training points into a class
+   * distribution, straight from the neighbour index and the store's class
+   * values and weights.
+   *
+   * @param x the features
+   * @param distribution receives the distribution, m_NumClasses long
+   *          and zeroed
+   * @return distribution
+   */
+  protected double[] distribution(double[] x, double[] distribution) {
+    NeighborList neighbours = NeighborList.forThread(m_kNN);
+    int found = m_Index.knn(x, m_kNN, neighbours);
+    double total = 0;
 
-    Instances neighbours = m_NNSearch.kNearestNeighbours(instance, m_kNN);
-    double [] distances = m_NNSearch.getDistances();
-    double [] distribution = makeDistribution( neighbours, distances );
+    // Set up a correction to the estimator
+    if (m_ClassType == Attribute.NOMINAL) {
+      int n = Math.max(1, m_Store.size());
+      for (int c = 0; c < m_NumClasses; c++) {
+	distribution[c] = 1.0 / n;
+      }
+      total = (double)m_NumClasses / n;
+    }
+
+    double scale = 1.0 / Math.sqrt(m_NumAttributesUsed);
+    double weighed = vote(neighbours, found, scale, true, distribution);
+    if (weighed == 0 && found > 0) {
+      // every neighbour is too far to be similar at all, count them equally
+      weighed = vote(neighbours, found, scale, false, distribution);
+    }
+    total += weighed;
 
+    // Normalise distribution
+    if (total > 0) {
+      Utils.normalize(distribution, total);
+    }
     return distribution;
   }
-*/
+
+  /**
+   * Adds the votes of the first found neighbours to distribution.
+   *
+   * @param weighted whether to weight them by distance, or only by the
+   *          training weights
+   * @return the total weight added
+   */
+  protected double vote(NeighborList neighbours, int found, double scale, boolean weighted,
+			double[] distribution) {
+    double total = 0;
+    for (int i = 0; i < found; i++) {
+      int p = neighbours.index(i);
+      double weight = m_Store.weight(p);
+      if (weighted) {
+	weight *= distanceWeight(neighbours.distance(i) * scale);
+      }
+      if (m_ClassType == Attribute.NOMINAL) {
+	distribution[(int)m_Store.classValue(p)] += weight;
+      } else {
+	distribution[0] += m_Store.classValue(p) * weight;
+      }
+      total += weight;
+    }
+    return total;
+  }
+
   /**
    * Returns an enumeration describing the available options.
    *
@@ -656,9 +1065,33 @@ public class KNN
 	      "\ton the training data (use when k > 1)",
 	      "X", 0,"-X"));
     newVector.addElement(new Option(
-	      "\tThe nearest neighbour search algorithm to use "+
-          "(default: weka.core.neighboursearch.LinearNNSearch).\n",
-	      "A", 0, "-A"));
+	      "\tThe smile neighbour search structure used for prediction.\n"+
+	      "\t(default: auto, chosen from the number and dimension of the instances)",
+	      "S", 1, "-S " + Tag.toOptionSynopsis(SearchPlanner.TAGS_SEARCH)));
+    newVector.addElement(new Option(
+	      "\tNumber of hash tables for the lsh search structure.\n"+
+	      "\t(default: " + LSHIndex.DEFAULT_TABLES + ")",
+	      "L", 1, "-L <number of tables>"));
+    newVector.addElement(new Option(
+	      "\tExtra buckets probed per hash table by the lsh search structure\n"+
+	      "\twhen -R is 0. (default: " + LSHIndex.DEFAULT_PROBES + ")",
+	      "P", 1, "-P <number of probes>"));
+    newVector.addElement(new Option(
+	      "\tRecall of the true nearest neighbours the lsh search structure\n"+
+	      "\tchooses the fewest probes for on a sample, 0 to keep -P.\n"+
+	      "\t(default: 0.9)",
+	      "R", 1, "-R <recall>"));
+    newVector.addElement(new Option(
+	      "\tProduct quantization subspaces, one byte per subspace and\n"+
+	      "\ttraining instance. (default: 0, exact coordinates)",
+	      "Q", 1, "-Q <number of subspaces>"));
+    newVector.addElement(new Option(
+	      "\tProduct quantized candidates re-ranked by exact distance.\n"+
+	      "\t(default: 0, no re-ranking)",
+	      "Z", 1, "-Z <number of candidates>"));
+    newVector.addElement(new Option(
+	      "\tStore the training instances in single precision.",
+	      "float", 0, "-float"));
 
     newVector.addAll(Collections.list(super.listOptions()));
     
@@ -696,9 +1129,33 @@ public class KNN
    *  and the k value specified using hold-one-out evaluation
    *  on the training data (use when k &gt; 1)</pre>
    * 
-   * <pre> -A
-   *  The nearest neighbour search algorithm to use (default: weka.core.neighboursearch.LinearNNSearch).
-   * </pre>
+   * <pre> -S &lt;auto|linear|kdtree|covertree|lsh|vptree&gt;
+   *  The smile neighbour search structure used for prediction.
+   *  (default: auto, chosen from the number and dimension of the instances)</pre>
+   * 
+   * <pre> -L &lt;number of tables&gt;
+   *  Number of hash tables for the lsh search structure.
+   *  (default: 10)</pre>
+   * 
+   * <pre> -P &lt;number of probes&gt;
+   *  Extra buckets probed per hash table by the lsh search structure
+   *  when -R is 0. (default: 4)</pre>
+   * 
+   * <pre> -R &lt;recall&gt;
+   *  Recall of the true nearest neighbours the lsh search structure
+   *  chooses the fewest probes for on a sample, 0 to keep -P.
+   *  (default: 0.9)</pre>
+   * 
+   * <pre> -Q &lt;number of subspaces&gt;
+   *  Product quantization subspaces, one byte per subspace and
+   *  training instance. (default: 0, exact coordinates)</pre>
+   * 
+   * <pre> -Z &lt;number of candidates&gt;
+   *  Product quantized candidates re-ranked by exact distance.
+   *  (default: 0, no re-ranking)</pre>
+   * 
+   * <pre> -float
+   *  Store the training instances in single precision.</pre>
    * 
    <!-- options-end -->
    *
@@ -729,24 +1186,43 @@ public class KNN
     setCrossValidate(Utils.getFlag('X', options));
     setMeanSquared(Utils.getFlag('E', options));
 
-    String nnSearchClass = Utils.getOption('A', options);
-    if(nnSearchClass.length() != 0) {
-      String nnSearchClassSpec[] = Utils.splitOptions(nnSearchClass);
-      if(nnSearchClassSpec.length == 0) { 
-        throw new Exception("Invalid NearestNeighbourSearch algorithm " +
-                            "specification string."); 
-      }
-      String className = nnSearchClassSpec[0];
-      nnSearchClassSpec[0] = "";
-
-      setNearestNeighbourSearchAlgorithm( (NearestNeighbourSearch)
-                  Utils.forName( NearestNeighbourSearch.class, 
-                                 className, 
-                                 nnSearchClassSpec)
-                                        );
+    String searchString = Utils.getOption('S', options);
+    if (searchString.length() != 0) {
+      setSearchStructure(new SelectedTag(searchString, SearchPlanner.TAGS_SEARCH));
+    } else {
+      setSearchStructure(new SelectedTag(SearchPlanner.SEARCH_AUTO, SearchPlanner.TAGS_SEARCH));
+    }
+    String tablesString = Utils.getOption('L', options);
+    if (tablesString.length() != 0) {
+      setHashTables(Integer.parseInt(tablesString));
+    } else {
+      setHashTables(LSHIndex.DEFAULT_TABLES);
+    }
+    String probesString = Utils.getOption('P', options);
+    if (probesString.length() != 0) {
+      setProbes(Integer.parseInt(probesString));
+    } else {
+      setProbes(LSHIndex.DEFAULT_PROBES);
     }
-    else 
-      this.setNearestNeighbourSearchAlgorithm(new LinearNNSearch());
+    String recallString = Utils.getOption('R', options);
+    if (recallString.length() != 0) {
+      setRecallTarget(Double.parseDouble(recallString));
+    } else {
+      setRecallTarget(0.9);
+    }
+    String subspacesString = Utils.getOption('Q', options);
+    if (subspacesString.length() != 0) {
+      setSubspaces(Integer.parseInt(subspacesString));
+    } else {
+      setSubspaces(0);
+    }
+    String rerankString = Utils.getOption('Z', options);
+    if (rerankString.length() != 0) {
+      setRerank(Integer.parseInt(rerankString));
+    } else {
+      setRerank(0);
+    }
+    setFloatStorage(Utils.getFlag("float", options));
     
     super.setOptions(options);
     
@@ -775,8 +1251,16 @@ public class KNN
         options.add("-F");
     }
 
-    options.add("-A");
-    options.add(m_NNSearch.getClass().getName()+" "+Utils.joinOptions(m_NNSearch.getOptions())); 
+    options.add("-S");
+    options.add(getSearchStructure().getSelectedTag().getIDStr());
+    options.add("-L"); options.add("" + m_HashTables);
+    options.add("-P"); options.add("" + m_Probes);
+    options.add("-R"); options.add("" + m_RecallTarget);
+    options.add("-Q"); options.add("" + m_Subspaces);
+    options.add("-Z"); options.add("" + m_Rerank);
+    if (getFloatStorage()) {
+        options.add("-float");
+    }
     
     Collections.addAll(options, super.getOptions());
     
@@ -784,30 +1268,29 @@ public class KNN
   }
 
   /**
-   * Returns an enumeration of the additional measure names 
-   * produced by the neighbour search algorithm, plus the chosen K in case
-   * cross-validation is enabled.
+   * Returns an enumeration of the additional measure names: the chosen K
+   * in case cross-validation is enabled, and the measured recall and query
+   * time (in microseconds) of the neighbour index when the lsh search
+   * structure is used.
    * 
    * @return an enumeration of the measure names
    */
   public Enumeration<String> enumerateMeasures() {
+    Vector<String> measures = new Vector<String>();
     if (m_CrossValidate) {
-      Enumeration<String> enm = m_NNSearch.enumerateMeasures();
-      Vector<String> measures = new Vector<String>();
-      while (enm.hasMoreElements())
-	measures.add(enm.nextElement());
       measures.add("measureKNN");
-      return measures.elements();
     }
-    else {
-      return m_NNSearch.enumerateMeasures();
+    if (m_SearchStructure == SearchPlanner.SEARCH_LSH) {
+      measures.add("measureSearchRecall");
+      measures.add("measureSearchTime");
     }
+    return measures.elements();
   }
   
   /**
-   * Returns the value of the named measure from the 
-   * neighbour search algorithm, plus the chosen K in case
-   * cross-validation is enabled.
+   * Returns the value of the named measure: the chosen K in case
+   * cross-validation is enabled, or the measured recall and query time
+   * of the lsh search structure.
    * 
    * @param additionalMeasureName the name of the measure to query for its value
    * @return the value of the named measure
@@ -816,8 +1299,13 @@ public class KNN
   public double getMeasure(String additionalMeasureName) {
     if (additionalMeasureName.equals("measureKNN"))
       return m_kNN;
+    else if (additionalMeasureName.equals("measureSearchRecall"))
+      return m_Index instanceof LSHIndex ? ((LSHIndex)m_Index).recall() : 1.0;
+    else if (additionalMeasureName.equals("measureSearchTime"))
+      return m_Index instanceof LSHIndex ? ((LSHIndex)m_Index).queryTime() : Double.NaN;
     else
-      return m_NNSearch.getMeasure(additionalMeasureName);
+      throw new IllegalArgumentException(additionalMeasureName 
+			  + " not supported (KNN)");
   }
   
   
@@ -828,11 +1316,11 @@ public class KNN
    */
   public String toString() {
 
-    if (m_Train == null) {
+    if (m_Header == null) {
       return "KNN: No model built yet.";
     }
     
-    if (m_Train.numInstances() == 0) {
+    if (m_Store.size() == 0) {
       return "Warning: no training instances - ZeroR model used.";
     }
 
@@ -870,67 +1358,35 @@ public class KNN
     m_DistanceWeighting = WEIGHT_NONE;
     m_CrossValidate = false;
     m_MeanSquared = false;
+    m_SearchStructure = SearchPlanner.SEARCH_AUTO;
+    m_HashTables = LSHIndex.DEFAULT_TABLES;
+    m_Probes = LSHIndex.DEFAULT_PROBES;
+    m_RecallTarget = 0.9;
+    m_Subspaces = 0;
+    m_Rerank = 0;
+    m_FloatStorage = false;
   }
   
   /**
-   * Turn the list of nearest neighbors into a probability distribution.
+   * Weight of a neighbour at the given distance under the selected
+   * distance weighting.
    *
-   * @param neighbours the list of nearest neighboring instances
-   * @param distances the distances of the neighbors
-   * @return the probability distribution
-   * @throws Exception if computation goes wrong or has no class attribute
+   * @param distance the distance, scaled by the number of attributes used
+   * @return the weight
    */
-  protected double [] makeDistribution(Instances neighbours, double[] distances)
-    throws Exception {
-
-    double total = 0, weight;
-    double [] distribution = new double [m_NumClasses];
-    
-    // Set up a correction to the estimator
-    if (m_ClassType == Attribute.NOMINAL) {
-      for(int i = 0; i < m_NumClasses; i++) {
-	distribution[i] = 1.0 / Math.max(1,m_Train.numInstances());
-      }
-      total = (double)m_NumClasses / Math.max(1,m_Train.numInstances());
-    }
+  protected double distanceWeight(double distance) {
 
-    for(int i=0; i < neighbours.numInstances(); i++) {
-      // Collect class counts
-      Instance current = neighbours.instance(i);
-      distances[i] = distances[i]*distances[i];
-      distances[i] = Math.sqrt(distances[i]/m_NumAttributesUsed);
-      switch (m_DistanceWeighting) {
-        case WEIGHT_INVERSE:
-          weight = 1.0 / (distances[i] + 0.001); // to avoid div by zero
-          break;
-        case WEIGHT_SIMILARITY:
-          weight = 1.0 - distances[i];
-          break;
-        default:                                 // WEIGHT_NONE:
-          weight = 1.0;
-          break;
-      }
-      weight *= current.weight();
-      try {
-        switch (m_ClassType) {
-          case Attribute.NOMINAL:
-            distribution[(int)current.classValue()] += weight;
-            break;
-          case Attribute.NUMERIC:
-            distribution[0] += current.classValue() * weight;
-            break;
-        }
-      } catch (Exception ex) {
-        throw new Error("Data has no class attribute!");
-      }
-      total += weight;      
-    }
-
-    // Normalise distribution
-    if (total > 0) {
-      Utils.normalize(distribution, total);
+    switch (m_DistanceWeighting) {
+      case WEIGHT_INVERSE:
+        return 1.0 / (distance + 0.001); // to avoid div by zero
+      case WEIGHT_SIMILARITY:
+        // Smile distances are not normalised and can pass 1, where the
+        // weight would go negative; such neighbours weigh nothing, and
+        // when all do they are counted unweighted
+        return Math.max(0.0, 1.0 - distance);
+      default:                           // WEIGHT_NONE:
+        return 1.0;
     }
-    return distribution;
   }
 
   /**
@@ -942,80 +1398,83 @@ public class KNN
   protected void crossValidate() {
 
     try {
-      if (m_NNSearch instanceof weka.core.neighboursearch.CoverTree)
-	throw new Exception("CoverTree doesn't support hold-one-out "+
-			    "cross-validation. Use some other NN " +
-			    "method.");
-
-      double [] performanceStats = new double [m_kNNUpper];
-      double [] performanceStatsSq = new double [m_kNNUpper];
-
-      for(int i = 0; i < m_kNNUpper; i++) {
-	performanceStats[i] = 0;
-	performanceStatsSq[i] = 0;
+      final int kMax = m_kNNUpper;
+      final int n = m_Store.size();
+      final int chunks = n >= CV_PARALLEL_THRESHOLD
+	? Math.min(n / (CV_PARALLEL_THRESHOLD / 4), 4 * ForkJoinPool.getCommonPoolParallelism())
+	: 1;
+      final double[][] chunkStats = new double[chunks][];
+      final double[][] chunkStatsSq = new double[chunks][];
+      // a linear scan answers a tile of points at a time from the blocked engine
+      final BlockedEuclidean pairs = m_Index instanceof LinearIndex
+	? ((LinearIndex)m_Index).pairwise() : null;
+      IntStream parts = IntStream.range(0, chunks);
+      if (chunks > 1) {
+	parts = parts.parallel();
       }
-
-
-      m_kNN = m_kNNUpper;
-      Instance instance;
-      Instances neighbours;
-      double[] origDistances, convertedDistances;
-      for(int i = 0; i < m_Train.numInstances(); i++) {
-	if (m_Debug && (i % 50 == 0)) {
-	  System.err.print("Cross validating "
-			   + i + "/" + m_Train.numInstances() + "\r");
-	}
-	instance = m_Train.instance(i);
-	neighbours = m_NNSearch.kNearestNeighbours(instance, m_kNN);
-        origDistances = m_NNSearch.getDistances();
-        
-	for(int j = m_kNNUpper - 1; j >= 0; j--) {
-	  // Update the performance stats
-          convertedDistances = new double[origDistances.length];
-          System.arraycopy(origDistances, 0, 
-                           convertedDistances, 0, origDistances.length);
-	  double [] distribution = makeDistribution(neighbours, 
-                                                    convertedDistances);
-          double thisPrediction = Utils.maxIndex(distribution);
-	  if (m_Train.classAttribute().isNumeric()) {
-	    thisPrediction = distribution[0];
-	    double err = thisPrediction - instance.classValue();
-	    performanceStatsSq[j] += err * err;   // Squared error
-	    performanceStats[j] += Math.abs(err); // Absolute error
-	  } else {
-	    if (thisPrediction != instance.classValue()) {
-	      performanceStats[j] ++;             // Classification error
+      parts.forEach(c -> {
+	double[] stats = new double[kMax];
+	double[] statsSq = new double[kMax];
+	// unweighted votes, for when similarity weights every neighbour to nothing
+	double[] plain = m_DistanceWeighting == WEIGHT_SIMILARITY ? new double[m_NumClasses] : null;
+	int from = (int)((long)n * c / chunks);
+	int to = (int)((long)n * (c + 1) / chunks);
+	if (pairs != null) {
+	  NeighborList[] lists = new NeighborList[BlockedEuclidean.TILE];
+	  for (int j = 0; j < lists.length; j++) {
+	    lists[j] = new NeighborList(kMax + 1);
+	  }
+	  for (int i = from; i < to; i += lists.length) {
+	    int end = Math.min(to, i + lists.length);
+	    ((LinearIndex)m_Index).knn(pairs, i, end, kMax + 1, lists);
+	    for (int j = i; j < end; j++) {
+	      holdOneOut(j, lists[j - i], kMax, stats, statsSq, plain);
 	    }
 	  }
-	  if (j >= 1) {
-	    neighbours = pruneToK(neighbours, convertedDistances, j);
+	} else {
+	  double[] x = new double[m_Store.dimension()];
+	  for (int i = from; i < to; i++) {
+	    m_Store.get(i, x);
+	    holdOneOut(i, x, kMax, stats, statsSq, plain);
 	  }
 	}
+	chunkStats[c] = stats;
+	chunkStatsSq[c] = statsSq;
+      });
+
+      // merged in chunk order so the sums do not depend on scheduling
+      double [] performanceStats = new double [kMax];
+      double [] performanceStatsSq = new double [kMax];
+      for (int c = 0; c < chunks; c++) {
+	for (int j = 0; j < kMax; j++) {
+	  performanceStats[j] += chunkStats[c][j];
+	  performanceStatsSq[j] += chunkStatsSq[c][j];
+	}
       }
 
       // Display the results of the cross-validation
-      for(int i = 0; i < m_kNNUpper; i++) {
+      for(int i = 0; i < kMax; i++) {
 	if (m_Debug) {
 	  System.err.print("Hold-one-out performance of " + (i + 1)
 			   + " neighbors " );
 	}
-	if (m_Train.classAttribute().isNumeric()) {
+	if (m_ClassType == Attribute.NUMERIC) {
 	  if (m_Debug) {
 	    if (m_MeanSquared) {
 	      System.err.println("(RMSE) = "
 				 + Math.sqrt(performanceStatsSq[i]
-					     / m_Train.numInstances()));
+					     / n));
 	    } else {
 	      System.err.println("(MAE) = "
 				 + performanceStats[i]
-				 / m_Train.numInstances());
+				 / n);
 	    }
 	  }
 	} else {
 	  if (m_Debug) {
 	    System.err.println("(%ERR) = "
 			       + 100.0 * performanceStats[i]
-			       / m_Train.numInstances());
+			       / n);
 	  }
 	}
       }
@@ -1024,12 +1483,12 @@ public class KNN
       // Check through the performance stats and select the best
       // k value (or the lowest k if more than one best)
       double [] searchStats = performanceStats;
-      if (m_Train.classAttribute().isNumeric() && m_MeanSquared) {
+      if (m_ClassType == Attribute.NUMERIC && m_MeanSquared) {
 	searchStats = performanceStatsSq;
       }
       double bestPerformance = Double.NaN;
       int bestK = 1;
-      for(int i = 0; i < m_kNNUpper; i++) {
+      for(int i = 0; i < kMax; i++) {
 	if (Double.isNaN(bestPerformance)
 	    || (bestPerformance > searchStats[i])) {
 	  bestPerformance = searchStats[i];
@@ -1049,37 +1508,121 @@ public class KNN
   }
   
   /**
-   * Prunes the list to contain the k nearest neighbors. If there are
-   * multiple neighbors at the k'th distance, all will be kept.
-   *
-   * @param neighbours the neighbour instances.
-   * @param distances the distances of the neighbours from target instance.
-   * @param k the number of neighbors to keep.
-   * @return the pruned neighbours.
+   * Scores training point i against its own neighbours for every k up to
+   * kMax, adding the errors to stats and squared errors to statsSq. The
+   * neighbours are fetched once and the votes accumulated one neighbour
+   * at a time, each k scored where its neighbourhood ends, so neighbours
+   * tied at the k-th distance all count. Values of k beyond the neighbours
+   * there are scored with all of them. plain is the caller's buffer for the
+   * unweighted votes under similarity weighting, null otherwise.
    */
-  public Instances pruneToK(Instances neighbours, double[] distances, int k) {
-    
-    if(neighbours==null || distances==null || neighbours.numInstances()==0) {
-      return null;
+  protected void holdOneOut(int i, double[] x, int kMax, double[] stats, double[] statsSq, double[] plain) {
+    NeighborList neighbours = NeighborList.forThread(kMax + 1);
+    m_Index.knn(x, kMax + 1, neighbours);
+    holdOneOut(i, neighbours, kMax, stats, statsSq, plain);
+  }
+
+  /**
+   * Scores training point i as above, given its kMax + 1 nearest
+   * neighbours.
+   */
+  protected void holdOneOut(int i, NeighborList neighbours, int kMax, double[] stats, double[] statsSq, double[] plain) {
+    int found = neighbours.size();
+    // drop the point itself, or the farthest if duplicates crowded it out
+    int self = found - 1;
+    for (int j = 0; j < found; j++) {
+      if (neighbours.index(j) == i) {
+	self = j;
+	break;
+      }
     }
-    if (k < 1) {
-      k = 1;
+    double actual = m_Store.classValue(i);
+    double[] votes = neighbours.votes(m_NumClasses);
+    double total = 0;
+    if (plain != null) {
+      Arrays.fill(plain, 0.0);
     }
-    
-    int currentK = 0;
-    double currentDist;
-    for(int i=0; i < neighbours.numInstances(); i++) {
-      currentK++;
-      currentDist = distances[i];
-      if(currentK>k && currentDist!=distances[i-1]) {
-        currentK--;
-        neighbours = new Instances(neighbours, 0, currentK);
-        break;
+    double plainTotal = 0;
+    int k = 0;		// neighbours counted so far
+    int scored = 0;	// values of k scored so far
+    for (int j = 0; j < found; j++) {
+      if (j == self) {
+	continue;
+      }
+      int p = neighbours.index(j);
+      double dist = neighbours.distance(j);
+      double weight = distanceWeight(dist / Math.sqrt(m_NumAttributesUsed)) * m_Store.weight(p);
+      if (m_ClassType == Attribute.NOMINAL) {
+	votes[(int)m_Store.classValue(p)] += weight;
+      } else {
+	votes[0] += m_Store.classValue(p) * weight;
+      }
+      total += weight;
+      if (plain != null) {
+	if (m_ClassType == Attribute.NOMINAL) {
+	  plain[(int)m_Store.classValue(p)] += m_Store.weight(p);
+	} else {
+	  plain[0] += m_Store.classValue(p) * m_Store.weight(p);
+	}
+	plainTotal += m_Store.weight(p);
       }
+      k++;
+      int next = j + 1 == self ? j + 2 : j + 1;
+      if (next < found && neighbours.distance(next) == dist) {
+	continue;	// the k-th neighbour is tied with the next
+      }
+      // every k whose pruned neighbourhood ends here
+      scored = score(holdOneOutError(votes, total, plain, plainTotal, actual),
+	scored, Math.min(k, kMax), stats, statsSq);
+      if (scored == kMax) {
+	break;
+      }
+    }
+    if (scored < kMax) {
+      // fewer neighbours than kMax: the larger k vote with all there are
+      score(holdOneOutError(votes, total, plain, plainTotal, actual), scored, kMax, stats, statsSq);
     }
+  }
 
-    return neighbours;
+  /**
+   * @return the error of the vote over the neighbours counted so far
+   */
+  private double holdOneOutError(double[] votes, double total, double[] plain, double plainTotal, double actual) {
+    double[] counted = votes;
+    double counts = total;
+    if (total == 0 && plain != null) {
+      counted = plain;
+      counts = plainTotal;
+    }
+    if (m_ClassType == Attribute.NOMINAL) {
+      int best = 0;
+      for (int c = 1; c < m_NumClasses; c++) {
+	if (counted[c] > counted[best]) {
+	  best = c;
+	}
+      }
+      return best != actual ? 1 : 0;
+    }
+    return (counts > 0 ? counted[0] / counts : counted[0]) - actual;
   }
+
+  /**
+   * Adds an error to the stats of k - 1 from scored up to to.
+   *
+   * @return to, the values of k scored
+   */
+  private int score(double err, int scored, int to, double[] stats, double[] statsSq) {
+    for (; scored < to; scored++) {
+      if (m_ClassType == Attribute.NOMINAL) {
+	stats[scored] += err;		// Classification error
+      } else {
+	statsSq[scored] += err * err;		// Squared error
+	stats[scored] += Math.abs(err);	// Absolute error
+      }
+    }
+    return scored;
+  }
+
   
   /**
    * Returns the revision string.
@@ -11,10 +11,11 @@ import weka.core.Instances;
 import weka.core.Option;
 import weka.core.WekaPackageClassLoaderManager;
 import weka.core.Utils;
-import weka.filters.Filter;
-import weka.filters.unsupervised.attribute.ReplaceMissingValues;
 
 import smile.clustering.Clustering;
+import us.hall.weka.smile.data.FeatureExtractor;
+import us.hall.weka.smile.data.InstancesConverter;
+import us.hall.weka.smile.data.InstancesMatrix;
 
 /**
  * <!-- globalinfo-start --> Cluster data using the Smile BIRCH algorithm.
@@ -76,9 +77,10 @@ public class BIRCH extends RandomizableClusterer {
   protected int m_NumClusters = 2;
   	
   /**
-   * replace missing values in training instances.
+   * Reads instances into the model's feature space, replacing missing values
+   * with the training means.
    */
-  protected ReplaceMissingValues m_ReplaceMissingFilter;
+  protected FeatureExtractor m_extractor;
 
   /**
    * Replace missing values globally?
@@ -108,38 +110,27 @@ public class BIRCH extends RandomizableClusterer {
 		// can clusterer handle the data?
 		getCapabilities().testWithFail(data);
 
-		m_ReplaceMissingFilter = new ReplaceMissingValues();
-		Instances instances = new Instances(data);
-
-		instances.setClassIndex(-1);		
-		
-		if (!m_dontReplaceMissing) {
-		  m_ReplaceMissingFilter.setInputFormat(instances);
-		  instances = Filter.useFilter(instances, m_ReplaceMissingFilter);
+		// missing values are replaced while converting, no filtered copy needed
+		InstancesMatrix matrix = InstancesConverter.convert(data,data.numAttributes()-1,!m_dontReplaceMissing);
+		m_extractor = new FeatureExtractor(matrix);
+		// BIRCH copies each point into its CF tree, so rows are streamed
+		// through one buffer rather than materialized as a double[][].
+		// Its CF sums are double only, so there is no -float mode as in
+		// KNN
+		int d = matrix.numColumns();
+		double[] values = matrix.values();
+		double[] x = new double[d];
+		m_birch = new smile.clustering.BIRCH(d,m_branch,m_radius);
+		for (int i = 0; i < matrix.numRows(); i++) {
+			System.arraycopy(values, i * d, x, 0, d);
+			m_birch.add(x);
 		}
-		Object[] oA = asArrays(data,instances.numAttributes()-1);
-		double[][] idata = (double[][])oA[0];
-		m_birch = new smile.clustering.BIRCH(idata[0].length,m_branch,m_radius);
-		for (int i = 0; i < idata.length; i++)
-            m_birch.add(idata[i]);   
         m_birch.partition(numberOfClusters(),5);        
 	}
 
 	public int clusterInstance(Instance instance) throws Exception {
 		try {
-			Instance inst = null;
-			if (!m_dontReplaceMissing) {
-			  m_ReplaceMissingFilter.input(instance);
-			  m_ReplaceMissingFilter.batchFinished();
-			  inst = m_ReplaceMissingFilter.output();
-			} else {
-			  inst = instance;
-			}
-			double[] dA = new double[instance.numAttributes()-1];
-			for (int i = 0; i < instance.numAttributes()-1; i++) {
-				if (i == instance.classIndex()) continue;
-				dA[i] = instance.value(i);
-			}
+			double[] dA = m_extractor.extract(instance);	// thread's reused buffer
 			int p = m_birch.predict(dA);
 			if (p == Clustering.OUTLIER) {
 				return 0;
@@ -150,20 +141,22 @@ public class BIRCH extends RandomizableClusterer {
 		return 0;
 	}
 
-  public Object[] asArrays(Instances data, int classIndex) {
-  	double dA[][] = new double[data.numInstances()][data.numAttributes()-1 ];
-  	int cA[] = new int[data.numInstances()];
-	for (int i = 0; i < data.numInstances(); i++) {
-		for (int j = 0; j < data.numAttributes(); j++) {
-			if (j == classIndex) {
-				cA[i] = (int)data.instance(i).value(j);
-			}
-			else dA[i][j] = data.instance(i).value(j);
-		}
+	/**
+	 * Cluster a whole batch of instances in one call. Features are extracted
+	 * once per row and the smile predictions run in parallel.
+	 *
+	 * @param data the instances to cluster
+	 * @return the cluster of each instance
+	 * @throws Exception if the clusterer has not been built
+	 */
+	public int[] clusterInstances(Instances data) throws Exception {
+		final smile.clustering.BIRCH birch = m_birch;
+		return m_extractor.apply(data, x -> {
+			int p = birch.predict(x);
+			return p == Clustering.OUTLIER ? 0 : p;
+		});
 	}
-	return new Object[] {dA, cA};
-  } 
-  	
+
   /**
    * Returns the number of clusters.
    * 
@@ -7,6 +7,7 @@ import java.util.Vector;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Properties;
+import java.util.Random;
 
 import java.lang.reflect.Array;
 import weka.Run;
@@ -17,14 +18,26 @@ import weka.core.Instance;
 import weka.core.Instances;
 //import weka.core.DistanceFunction;
 import weka.core.Option;
+import weka.core.OptionHandler;
 import weka.core.Utils;
-import weka.filters.Filter;
-import weka.filters.unsupervised.attribute.ReplaceMissingValues;
 import weka.gui.GenericPropertiesCreator;
 
 import smile.clustering.Clustering;
+import smile.clustering.PartitionClustering;
 import us.hall.weka.smile.SmileDistance;
 import us.hall.weka.smile.SmileEuclideanDistance;
+import us.hall.weka.smile.clustering.ApproximateDBScan;
+import us.hall.weka.smile.clustering.CompactDBScan;
+import us.hall.weka.smile.clustering.CoreIndex;
+import us.hall.weka.smile.clustering.IncrementalDBScan;
+import us.hall.weka.smile.clustering.ParallelDBScan;
+import us.hall.weka.smile.data.FeatureExtractor;
+import us.hall.weka.smile.data.InstancesConverter;
+import us.hall.weka.smile.data.InstancesMatrix;
+import us.hall.weka.smile.neighbor.GridIndex;
+import us.hall.weka.smile.neighbor.RangeSearch;
+import us.hall.weka.smile.neighbor.RowSearch;
+import us.hall.weka.smile.neighbor.VPTree;
 
 /**
  * <!-- globalinfo-start --> Cluster data using the Smile DBScan algorithm. Can use
@@ -55,6 +68,28 @@ import us.hall.weka.smile.SmileEuclideanDistance;
  * </pre>
  * 
  * <pre>
+ * -parallel
+ *  Cluster partitions of the data in parallel, with the same labels.
+ * </pre>
+ * 
+ * <pre>
+ * -vote
+ *  Predict by the vote of all training neighbors, as smile does.
+ * </pre>
+ * 
+ * <pre>
+ * -rho &lt;num&gt;
+ *  Cluster rho-approximately, joining cells within (1 + rho) times the radius.
+ *  (default 0, exact).
+ * </pre>
+ * 
+ * <pre>
+ * -sample &lt;num&gt;
+ *  Points compared with exact DBScan when approximate.
+ *  (default 10000).
+ * </pre>
+ * 
+ * <pre>
  * -do-not-check-capabilities
  *  If set, clusterer capabilities are not checked before clusterer is built
  *  (use with caution).
@@ -66,7 +101,7 @@ import us.hall.weka.smile.SmileEuclideanDistance;
  * @see RandomizableClusterer
  */
  
-public class DBScan extends RandomizableClusterer {
+public class DBScan extends RandomizableClusterer implements UpdateableClusterer {
 
 	static {
 //		PropertyEditorManager.registerEditor(smile.math.distance.Distance.class,
@@ -75,9 +110,48 @@ public class DBScan extends RandomizableClusterer {
 	}
 		
 	/**
-	 * Smile DBScan
+	 * The compact neighborhood engine, with the labels of smile DBScan,
+	 * the parallel or approximate engine in those modes, or the
+	 * incremental engine once updated
+	 */
+	transient PartitionClustering<double[]> m_dbscan;
+	
+	/**
+	 * Whether to cluster partitions of the data in parallel.
+	 */
+	boolean m_parallel = false;
+	
+	/**
+	 * Whether to predict by the vote of all training neighbors rather
+	 * than the nearest core point.
 	 */
-	transient smile.clustering.DBScan m_dbscan;
+	boolean m_vote = false;
+	
+	/**
+	 * The approximation of rho-approximate DBScan, 0 for exact.
+	 */
+	double m_rho = 0;
+	
+	/**
+	 * Points compared with exact DBScan when approximate.
+	 */
+	int m_sample = 10000;
+	
+	/**
+	 * Points compared with exact DBScan at the last build, 0 for none.
+	 */
+	int m_sampled;
+	
+	/**
+	 * Of those, the points whose cluster the approximation changed.
+	 */
+	int m_changed;
+	
+	/**
+	 * The core points and their clusters, for prediction in double mode
+	 * unless voting. Rebuilt on demand after updates.
+	 */
+	transient volatile CoreIndex m_cores;
 	
 	/**
 	 * The minimum number of neighbors for a core data point.
@@ -103,9 +177,15 @@ public class DBScan extends RandomizableClusterer {
   protected int m_NumClusters = 2;
   	
   /**
-   * replace missing values in training instances.
+   * Reads instances into the model's feature space, replacing missing values
+   * with the training means.
+   */
+  protected FeatureExtractor m_extractor;
+
+  /**
+   * The training points, for the incremental engine on the first update
    */
-  protected ReplaceMissingValues m_ReplaceMissingFilter;
+  protected transient InstancesMatrix m_matrix;
 
   /**
    * Replace missing values globally?
@@ -142,38 +222,134 @@ public class DBScan extends RandomizableClusterer {
 		// can clusterer handle the data?
 		getCapabilities().testWithFail(data);
 
-		m_ReplaceMissingFilter = new ReplaceMissingValues();
-		Instances instances = new Instances(data);
-
-		instances.setClassIndex(-1);		
-		
-		if (!m_dontReplaceMissing) {
-		  m_ReplaceMissingFilter.setInputFormat(instances);
-		  instances = Filter.useFilter(instances, m_ReplaceMissingFilter);
+		// missing values are replaced while converting, no filtered copy needed
+		InstancesMatrix matrix = InstancesConverter.convert(data,data.numAttributes()-1,!m_dontReplaceMissing);
+		m_extractor = new FeatureExtractor(matrix);
+		m_matrix = matrix;
+		// no single precision mode: the core index and range searches work
+		// over the double matrix, which a float copy could only add to
+		m_cores = null;
+		m_sampled = 0;
+		if (m_rho > 0 && ApproximateDBScan.suits(m_dist,matrix,m_range,m_rho)) {
+			ApproximateDBScan approximate = new ApproximateDBScan(matrix,m_dist,m_min,m_range,m_rho);
+			m_dbscan = approximate;
+			if (!m_vote) {
+				m_cores = new CoreIndex(matrix.values(),matrix.numColumns(),approximate.cores(),approximate.getClusterLabel(),m_dist,m_range);
+			}
+			compareExact(matrix,approximate);
+		}
+		else if (m_parallel) {
+			ParallelDBScan parallel = new ParallelDBScan(matrix,m_dist,m_min,m_range,this::rangeSearch,0);
+			m_dbscan = parallel;
+			if (!m_vote) {
+				m_cores = new CoreIndex(matrix.values(),matrix.numColumns(),parallel.cores(),parallel.getClusterLabel(),m_dist,m_range);
+			}
+		}
+		else {
+			CompactDBScan compact = new CompactDBScan(matrix,rangeSearch(matrix),m_min,m_range);
+			m_dbscan = compact;
+			if (!m_vote) {
+				m_cores = new CoreIndex(matrix.values(),matrix.numColumns(),compact.cores(),compact.getClusterLabel(),m_dist,m_range);
+			}
 		}
-		Object[] oA = asArrays(data,instances.numAttributes()-1);
-		double[][] idata = (double[][])oA[0];
-		m_dbscan = new smile.clustering.DBScan<>(idata,m_dist.getSmileDistance(),m_min,m_range);
 		m_NumClusters = m_dbscan.getNumClusters();
 		m_NumClusters++;			// Allow for outliers to be considered a cluster
 	}
 
+	/**
+	 * Clusters a window of the training points around a random one both
+	 * exactly and approximately, and counts the points whose cluster the
+	 * approximation changes. The window keeps the density of the data, which
+	 * a scattered sample would thin out below minPts.
+	 *
+	 * @param matrix the training points
+	 * @param approximate the approximate clustering of them
+	 */
+	void compareExact(InstancesMatrix matrix, ApproximateDBScan approximate) {
+		if (m_sample <= 0) {
+			return;
+		}
+		int[] window = approximate.window(m_sample,new Random(getSeed()));
+		InstancesMatrix part = matrix.select(window,0,window.length);
+		ParallelDBScan exact = new ParallelDBScan(part,m_dist,m_min,m_range,this::rangeSearch,0);
+		ApproximateDBScan approx = new ApproximateDBScan(part,m_dist,m_min,m_range,m_rho);
+		m_changed = ApproximateDBScan.changes(exact.getClusterLabel(),approx.getClusterLabel());
+		m_sampled = window.length;
+	}
+
+	/**
+	 * Neighborhood search for the DBScan engines. Low dimensional data goes on
+	 * a grid of cells the width of the range, so a query only looks at the
+	 * cells next to its own. Otherwise a vantage point tree prunes by the
+	 * triangle inequality when the distance is a true metric and the data
+	 * suits it, or range queries scan, a block of distances per call. All
+	 * find the same neighbors.
+	 *
+	 * @param matrix the training points
+	 * @return the search over them
+	 */
+	RowSearch rangeSearch(InstancesMatrix matrix) {
+		return rangeSearch(matrix,m_dist,m_range);
+	}
+
+	/**
+	 * Neighborhood search for queries of a range under a distance: a grid,
+	 * a vantage point tree or a scan, as the data and distance allow.
+	 *
+	 * @param matrix the training points
+	 * @param dist the distance
+	 * @param range the radius of the queries
+	 * @return the search over them
+	 */
+	static RowSearch rangeSearch(InstancesMatrix matrix, SmileDistance dist, double range) {
+		if (GridIndex.suits(dist,matrix,range)) {
+			return new GridIndex(matrix,dist,range);
+		}
+		if (VPTree.suits(dist,matrix)) {
+			return new VPTree(matrix,dist);
+		}
+		return new RangeSearch(matrix,dist);
+	}
+
+	/**
+	 * Adds an instance to the clusters. The first update after a build
+	 * moves the model onto an incremental engine over the training points,
+	 * in double precision, with the labels of the build; each update then
+	 * queries the neighborhood of the new point, and again around the
+	 * neighbors it makes core points, rather than reclustering.
+	 *
+	 * @param instance the new instance
+	 * @throws Exception if the clusterer has not been built
+	 */
+	public void updateClusterer(Instance instance) throws Exception {
+		if (m_extractor == null) {
+			throw new Exception("DBScan must be built before it is updated");
+		}
+		if (!(m_dbscan instanceof IncrementalDBScan)) {
+			m_dbscan = new IncrementalDBScan(m_matrix,m_dist,m_min,m_range);
+		}
+		// the engine keeps its core index up, the next prediction fetches it
+		m_cores = null;
+		// the extractor hands back the thread's buffer, the engine keeps the point
+		((IncrementalDBScan)m_dbscan).insert(m_extractor.extract(instance).clone());
+		m_NumClusters = m_dbscan.getNumClusters()+1;
+	}
+
+	/**
+	 * Renumbers the clusters after a run of updates and indexes their core
+	 * points for prediction.
+	 */
+	public void updateFinished() {
+		if (m_dbscan instanceof IncrementalDBScan) {
+			((IncrementalDBScan)m_dbscan).relabel();
+			cores();
+		}
+	}
+
 	public int clusterInstance(Instance instance) throws Exception {
 		try {
-			Instance inst = null;
-			if (!m_dontReplaceMissing) {
-			  m_ReplaceMissingFilter.input(instance);
-			  m_ReplaceMissingFilter.batchFinished();
-			  inst = m_ReplaceMissingFilter.output();
-			} else {
-			  inst = instance;
-			}
-			double[] dA = new double[instance.numAttributes()-1];
-			for (int i = 0; i < instance.numAttributes()-1; i++) {
-				if (i == instance.classIndex()) continue;
-				dA[i] = instance.value(i);
-			}
-			int p = m_dbscan.predict(dA);
+			double[] dA = m_extractor.extract(instance);	// thread's reused buffer
+			int p = predict(dA);
 			if (p == Clustering.OUTLIER) {
 				return m_NumClusters-1;
 			}
@@ -183,20 +359,55 @@ public class DBScan extends RandomizableClusterer {
 		return 0;
 	}
 
-  public Object[] asArrays(Instances data, int classIndex) {
-  	double dA[][] = new double[data.numInstances()][data.numAttributes()-1 ];
-  	int cA[] = new int[data.numInstances()];
-	for (int i = 0; i < data.numInstances(); i++) {
-		for (int j = 0; j < data.numAttributes(); j++) {
-			if (j == classIndex) {
-				cA[i] = (int)data.instance(i).value(j);
+	/**
+	 * Cluster a whole batch of instances in one call. Features are extracted
+	 * once per row and the smile predictions run in parallel.
+	 *
+	 * @param data the instances to cluster
+	 * @return the cluster of each instance
+	 * @throws Exception if the clusterer has not been built
+	 */
+	public int[] clusterInstances(Instances data) throws Exception {
+		final int outliers = m_NumClusters-1;
+		return m_extractor.apply(data, x -> {
+			int p = predict(x);
+			return p == Clustering.OUTLIER ? outliers : p;
+		});
+	}
+
+	/**
+	 * Prediction for extracted features: the cluster of the nearest core
+	 * point within the range, or the smile vote of the training neighbors
+	 * when voting.
+	 */
+	int predict(double[] x) {
+		CoreIndex cores = cores();
+		if (cores != null) {
+			return cores.predict(x);
+		}
+		return m_dbscan.predict(x);
+	}
+
+	/**
+	 * The core point index, fetched again from the incremental engine when
+	 * updates have come since, which adds the core points they make to it
+	 * rather than building it again.
+	 *
+	 * @return the index, or null when voting
+	 */
+	CoreIndex cores() {
+		CoreIndex cores = m_cores;
+		if (cores == null && !m_vote && m_dbscan instanceof IncrementalDBScan) {
+			synchronized (this) {
+				if (m_cores == null) {
+					m_cores = ((IncrementalDBScan)m_dbscan).coreIndex();
+				}
+				cores = m_cores;
 			}
-			else dA[i][j] = data.instance(i).value(j);
 		}
+		return cores;
 	}
-	return new Object[] {dA, cA};
-  } 
-  	
+
   /**
    * Returns an enumeration describing the available options.
    * 
@@ -215,6 +426,18 @@ public class DBScan extends RandomizableClusterer {
       
     result.addElement(new Option("\tThe neighborhood radius.\n" + "\t(default 5).",
       "N", 1, "-N <num>"));
+
+    result.addElement(new Option("\tCluster partitions of the data in parallel, with the same labels.",
+      "parallel", 0, "-parallel"));
+
+    result.addElement(new Option("\tPredict by the vote of all training neighbors, as smile does.",
+      "vote", 0, "-vote"));
+
+    result.addElement(new Option("\tCluster rho-approximately, joining cells within (1 + rho) times the radius.\n"
+      + "\t(default 0, exact).", "rho", 1, "-rho <num>"));
+
+    result.addElement(new Option("\tPoints compared with exact DBScan when approximate.\n" + "\t(default 10000).",
+      "sample", 1, "-sample <num>"));
    
     result.addAll(Collections.list(super.listOptions()));
 
@@ -256,6 +479,28 @@ public class DBScan extends RandomizableClusterer {
     *  The neighborhood radius.
     * </pre>
     * 
+    * <pre>
+    * -parallel
+    *  Cluster partitions of the data in parallel, with the same labels.
+    * </pre>
+    * 
+    * <pre>
+    * -vote
+    *  Predict by the vote of all training neighbors, as smile does.
+    * </pre>
+    * 
+    * <pre>
+    * -rho &lt;num&gt;
+    *  Cluster rho-approximately, joining cells within (1 + rho) times the radius.
+    *  (default 0, exact).
+    * </pre>
+    * 
+    * <pre>
+    * -sample &lt;num&gt;
+    *  Points compared with exact DBScan when approximate.
+    *  (default 10000).
+    * </pre>
+    * 
     * <!-- options-end -->
     * 
     * @param options the list of options as an array of strings
@@ -274,6 +519,18 @@ public class DBScan extends RandomizableClusterer {
     		setRange(Double.parseDouble(temp));
     	}
     	
+    	setParallel(Utils.getFlag("parallel", options));
+    	
+    	setVote(Utils.getFlag("vote", options));
+    	
+    	temp = Utils.getOption("rho",options);
+    	setRho(temp.length() > 0 ? Double.parseDouble(temp) : 0);
+    	
+    	temp = Utils.getOption("sample",options);
+    	if (temp.length() > 0) {
+    		setSample(Integer.parseInt(temp));
+    	}
+    	
     	String distFunctionClass = Utils.getOption('A', options);
 		if (distFunctionClass.length() != 0) {
 			String distFunctionClassSpec[] = Utils.splitOptions(distFunctionClass);
@@ -333,8 +590,23 @@ public class DBScan extends RandomizableClusterer {
 	result.add("" + getRange());
 	
     result.add("-A");
-    result.add(m_dist.getClass().getName());	// + " " + Utils
-//      .joinOptions(m_dist.getOptions())).trim());
+    result.add(m_dist instanceof OptionHandler ? (m_dist.getClass().getName() + " "
+      + Utils.joinOptions(((OptionHandler)m_dist).getOptions())).trim() : m_dist.getClass().getName());
+
+    if (getParallel()) {
+      result.add("-parallel");
+    }
+
+    if (getVote()) {
+      result.add("-vote");
+    }
+
+    if (getRho() > 0) {
+      result.add("-rho");
+      result.add("" + getRho());
+      result.add("-sample");
+      result.add("" + getSample());
+    }
 
     Collections.addAll(result, super.getOptions());
 
@@ -377,6 +649,91 @@ public class DBScan extends RandomizableClusterer {
     	return m_dist;
     }
     
+    /**
+     * Set whether to cluster partitions of the data in parallel. The
+     * labels are those of the sequential algorithm.
+     * @param true to run in parallel
+     */
+    public void setParallel(boolean parallel) {
+    	m_parallel = parallel;
+    }
+    
+    public boolean getParallel() {
+    	return m_parallel;
+    }
+    
+    /**
+     * Set whether to predict the cluster of a new point by the vote of
+     * all its training neighbors, as smile does, rather than by the
+     * nearest core point within the range, which only the core points
+     * are searched for.
+     * @param true to vote
+     */
+    public void setVote(boolean vote) {
+    	m_vote = vote;
+    }
+    
+    public boolean getVote() {
+    	return m_vote;
+    }
+    
+    /**
+     * Set the approximation of rho-approximate DBScan, 0 for exact. Points
+     * go in grid cells of diameter the radius, and cells join when core
+     * points in them may lie within (1 + rho) times the radius, so clusters
+     * closer than that may merge. Core points are exact. It needs low
+     * dimensional data without missing values under one of the Minkowski
+     * family of distances, and runs exactly otherwise, as it does in single
+     * precision storage and for updates.
+     * @param the approximation
+     */
+    public void setRho(double rho) {
+    	m_rho = rho;
+    }
+    
+    public double getRho() {
+    	return m_rho;
+    }
+    
+    /**
+     * Set the number of points compared with exact DBScan after an
+     * approximate build, 0 for none.
+     * @param the number of points
+     */
+    public void setSample(int sample) {
+    	m_sample = sample;
+    }
+    
+    public int getSample() {
+    	return m_sample;
+    }
+    
+  /**
+   * Describes the clustering, and how far the approximation moved points
+   * when rho-approximate.
+   *
+   * @return a description of the model
+   */
+  @Override
+  public String toString() {
+    if (m_extractor == null) {
+      return "DBScan: No model built yet.";
+    }
+    StringBuilder result = new StringBuilder("DBScan\n======\n\n");
+    result.append("Clusters: " + (m_NumClusters - 1) + ", and one for outliers\n");
+    if (m_dbscan instanceof ApproximateDBScan) {
+      result.append("rho-approximate, rho " + m_rho + "\n");
+      if (m_sampled > 0) {
+        result.append("Changed cluster against exact DBScan: " + m_changed + " of "
+          + m_sampled + " points in a window\n");
+      }
+    }
+    else if (m_rho > 0 && !(m_dbscan instanceof IncrementalDBScan)) {
+      result.append("Exact, the data does not suit the rho-approximate grid\n");
+    }
+    return result.toString();
+  }
+
   /**
    * Main method for executing this class.
    * 
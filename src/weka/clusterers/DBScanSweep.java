@@ -0,0 +1,450 @@
+package weka.clusterers;
+
+import java.beans.PropertyEditorManager;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import weka.core.Capabilities;
+import weka.core.Capabilities.Capability;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.core.Utils;
+
+import smile.clustering.Clustering;
+import us.hall.weka.smile.SmileDistance;
+import us.hall.weka.smile.SmileEuclideanDistance;
+import us.hall.weka.smile.clustering.GraphDBScan;
+import us.hall.weka.smile.clustering.NeighborhoodGraph;
+import us.hall.weka.smile.data.FeatureExtractor;
+import us.hall.weka.smile.data.InstancesConverter;
+import us.hall.weka.smile.data.InstancesMatrix;
+
+/**
+ * <!-- globalinfo-start --> Cluster data with DBScan for many settings of the
+ * radius and minimum neighbors from one neighborhood search. The neighbors
+ * of every point within a maximum radius are found once, sorted by
+ * distance; the clustering of any radius up to the maximum and any minimum
+ * is then read off them without another distance, with the labels of
+ * DBScan. A radius can be suggested from the knee of the k-distance graph.
+ * <p/>
+ * <!-- globalinfo-end -->
+ *
+ * <!-- options-start --> Valid options are:
+ * <p/>
+ *
+ * <pre>
+ * -M &lt;num&gt;
+ *  The minimum number of neighbors for a core data point.
+ *  (default 2).
+ * </pre>
+ *
+ * <pre>
+ * -R &lt;num&gt;
+ *  The neighborhood radius, 0 for the knee of the k-distance graph.
+ *  (default 0).
+ * </pre>
+ *
+ * <pre>
+ * -max &lt;num&gt;
+ *  The largest radius clusterings are read for.
+ *  (default 5).
+ * </pre>
+ *
+ * <pre>
+ * -A &lt;classname and options&gt;
+ *  Distance function to use.
+ *  (default: us.hall.weka.smile.SmileEuclideanDistance)
+ * </pre>
+ *
+ * <pre>
+ * -do-not-check-capabilities
+ *  If set, clusterer capabilities are not checked before clusterer is built
+ *  (use with caution).
+ * </pre>
+ *
+ * <!-- options-end -->
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ * @see DBScan
+ */
+
+public class DBScanSweep extends RandomizableClusterer {
+
+	static {
+		PropertyEditorManager.registerEditor(us.hall.weka.smile.SmileDistance.class,
+			weka.gui.GenericObjectEditor.class);
+	}
+
+	/**
+	 * The neighbors of every training point within the largest radius
+	 */
+	transient NeighborhoodGraph m_graph;
+
+	/**
+	 * The clustering read for the current radius and minimum
+	 */
+	transient GraphDBScan m_dbscan;
+
+	/**
+	 * The minimum number of neighbors for a core data point.
+	 */
+	int m_min = 2;
+
+	/**
+	 * The neighborhood radius, 0 for the knee of the k-distance graph.
+	 */
+	double m_range = 0;
+
+	/**
+	 * The largest radius clusterings are read for.
+	 */
+	double m_maxRange = 5;
+
+	/**
+	 * Distance function
+	 */
+	SmileDistance m_dist = new SmileEuclideanDistance();
+
+  /**
+   * number of clusters to generate.
+   */
+  protected int m_NumClusters = 2;
+
+  /**
+   * Reads instances into the model's feature space, replacing missing values
+   * with the training means.
+   */
+  protected FeatureExtractor m_extractor;
+
+  /**
+   * Replace missing values globally?
+   */
+  protected boolean m_dontReplaceMissing = false;
+
+	  /**
+	   * Returns default capabilities of the clusterer.
+	   *
+	   * @return the capabilities of this clusterer
+	   */
+	  @Override
+	  public Capabilities getCapabilities() {
+		Capabilities result = super.getCapabilities();
+		result.disableAll();
+		result.enable(Capability.NO_CLASS);
+
+		// attributes
+		result.enable(Capability.NOMINAL_ATTRIBUTES);
+		result.enable(Capability.NUMERIC_ATTRIBUTES);
+		result.enable(Capability.MISSING_VALUES);
+
+		return result;
+	  }
+
+	/**
+	 * Finds the neighbors of every point within the larger of the maximum
+	 * radius and the radius, then reads the clustering of the radius and
+	 * minimum off them.
+	 *
+	 * @param data the training instances
+	 * @throws Exception if the clusterer cannot be built
+	 */
+	public void buildClusterer(Instances data) throws Exception {
+		// can clusterer handle the data?
+		getCapabilities().testWithFail(data);
+
+		// missing values are replaced while converting, no filtered copy needed
+		InstancesMatrix matrix = InstancesConverter.convert(data,data.numAttributes()-1,!m_dontReplaceMissing);
+		m_extractor = new FeatureExtractor(matrix);
+		double max = Math.max(m_maxRange,m_range);
+		m_graph = new NeighborhoodGraph(matrix,DBScan.rangeSearch(matrix,m_dist,max),m_dist,max);
+		double range = m_range > 0 ? m_range : m_graph.suggestRadius(m_min);
+		select(range,m_min);
+	}
+
+	/**
+	 * Makes the clustering of a radius and minimum the model, without
+	 * searching the neighborhoods again.
+	 *
+	 * @param range the neighborhood radius, at most the largest radius built for
+	 * @param min the minimum number of neighbors for a core data point
+	 * @throws Exception if the clusterer has not been built
+	 */
+	public void select(double range, int min) throws Exception {
+		if (m_graph == null) {
+			throw new Exception("DBScanSweep must be built before a clustering is selected");
+		}
+		m_dbscan = m_graph.cluster(range,min);
+		m_NumClusters = m_dbscan.getNumClusters()+1;	// Allow for outliers to be considered a cluster
+	}
+
+	/**
+	 * The training cluster labels for a radius and minimum, as DBScan built
+	 * with them would give, outliers in the last cluster. The model is left
+	 * as it is, so settings can be swept cheaply.
+	 *
+	 * @param range the neighborhood radius, at most the largest radius built for
+	 * @param min the minimum number of neighbors for a core data point
+	 * @return the cluster of each training instance
+	 * @throws Exception if the clusterer has not been built
+	 */
+	public int[] clusterLabels(double range, int min) throws Exception {
+		if (m_graph == null) {
+			throw new Exception("DBScanSweep must be built before it is swept");
+		}
+		GraphDBScan dbscan = m_graph.cluster(range,min);
+		int[] labels = dbscan.getClusterLabel().clone();
+		int outliers = dbscan.getNumClusters();
+		for (int i = 0; i < labels.length; i++) {
+			if (labels[i] == Clustering.OUTLIER) {
+				labels[i] = outliers;
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * A radius for a minimum from the knee of the sorted distances of the
+	 * training points to their min-th nearest neighbor.
+	 *
+	 * @param min the minimum number of neighbors for a core data point
+	 * @return the suggested radius
+	 * @throws Exception if the clusterer has not been built
+	 */
+	public double suggestRange(int min) throws Exception {
+		if (m_graph == null) {
+			throw new Exception("DBScanSweep must be built before a radius is suggested");
+		}
+		return m_graph.suggestRadius(min);
+	}
+
+	/**
+	 * @return the radius of the current clustering
+	 */
+	public double selectedRange() {
+		return m_dbscan == null ? m_range : m_dbscan.radius();
+	}
+
+	public int clusterInstance(Instance instance) throws Exception {
+		try {
+			double[] dA = m_extractor.extract(instance);	// thread's reused buffer
+			int p = m_dbscan.predict(dA);
+			if (p == Clustering.OUTLIER) {
+				return m_NumClusters-1;
+			}
+			return p;
+		}
+		catch (Throwable tossed) { tossed.printStackTrace(); }
+		return 0;
+	}
+
+	/**
+	 * Cluster a whole batch of instances in one call. Features are extracted
+	 * once per row and the predictions run in parallel.
+	 *
+	 * @param data the instances to cluster
+	 * @return the cluster of each instance
+	 * @throws Exception if the clusterer has not been built
+	 */
+	public int[] clusterInstances(Instances data) throws Exception {
+		final GraphDBScan dbscan = m_dbscan;
+		final int outliers = m_NumClusters-1;
+		return m_extractor.apply(data, x -> {
+			int p = dbscan.predict(x);
+			return p == Clustering.OUTLIER ? outliers : p;
+		});
+	}
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  @Override
+  public Enumeration<Option> listOptions() {
+    Vector<Option> result = new Vector<Option>();
+
+    result.addElement(new Option("\tThe minimum number of neighbors for a core data point.\n" + "\t(default 2).",
+      "M", 1, "-M <num>"));
+
+    result.addElement(new Option("\tThe neighborhood radius, 0 for the knee of the k-distance graph.\n" + "\t(default 0).",
+      "R", 1, "-R <num>"));
+
+    result.addElement(new Option("\tThe largest radius clusterings are read for.\n" + "\t(default 5).",
+      "max", 1, "-max <num>"));
+
+	result.addElement(new Option("\tDistance function to use.\n"
+      + "\t(default: us.hall.weka.smile.SmileEuclideanDistance)", "A", 1,
+      "-A <classname and options>"));
+
+    result.addAll(Collections.list(super.listOptions()));
+
+    return result.elements();
+  }
+
+  /**
+   * Returns the number of clusters.
+   *
+   * @return the number of clusters generated for a training dataset.
+   * @throws Exception if number of clusters could not be returned successfully
+   */
+   @Override
+   public int numberOfClusters() throws Exception {
+   	return m_NumClusters;
+   }
+
+   /**
+    * Parses a given list of options.
+    * <p/>
+    *
+    * <!-- options-start --> Valid options are:
+    * <p/>
+    *
+    * <pre>
+    * -M &lt;num&gt;
+    *  The minimum number of neighbors for a core data point.
+    *  (default 2).
+    * </pre>
+    *
+    * <pre>
+    * -R &lt;num&gt;
+    *  The neighborhood radius, 0 for the knee of the k-distance graph.
+    *  (default 0).
+    * </pre>
+    *
+    * <pre>
+    * -max &lt;num&gt;
+    *  The largest radius clusterings are read for.
+    *  (default 5).
+    * </pre>
+    *
+    * <pre>
+    * -A &lt;classname and options&gt;
+    *  Distance function to use.
+    *  (default: us.hall.weka.smile.SmileEuclideanDistance)
+    * </pre>
+    *
+    * <!-- options-end -->
+    *
+    * @param options the list of options as an array of strings
+    * @throws Exception if an option is not supported
+    */
+    @Override
+    public void setOptions(String[] options) throws Exception {
+
+		String temp = Utils.getOption("M", options);
+		if (temp.length() > 0) {
+		  setMinimum(Integer.parseInt(temp));
+		}
+
+    	temp = Utils.getOption("R",options);
+    	if (temp.length() > 0) {
+    		setRange(Double.parseDouble(temp));
+    	}
+
+    	temp = Utils.getOption("max",options);
+    	if (temp.length() > 0) {
+    		setMaxRange(Double.parseDouble(temp));
+    	}
+
+    	String distFunctionClass = Utils.getOption('A', options);
+		if (distFunctionClass.length() != 0) {
+			String distFunctionClassSpec[] = Utils.splitOptions(distFunctionClass);
+			String className = distFunctionClassSpec[0];
+			distFunctionClassSpec[0] = "";
+			setDistance((SmileDistance) Utils.forName(
+				SmileDistance.class, className, distFunctionClassSpec));
+		}
+    	super.setOptions(options);
+
+    	Utils.checkForRemainingOptions(options);
+    }
+
+  /**
+   * Gets the current settings of DBScanSweep.
+   *
+   * @return an array of strings suitable for passing to setOptions()
+   */
+  @Override
+  public String[] getOptions() {
+    Vector<String> result = new Vector<String>();
+
+    result.add("-M");
+    result.add("" + getMinimum());
+
+	result.add("-R");
+	result.add("" + getRange());
+
+	result.add("-max");
+	result.add("" + getMaxRange());
+
+    result.add("-A");
+    result.add(m_dist instanceof OptionHandler ? (m_dist.getClass().getName() + " "
+      + Utils.joinOptions(((OptionHandler)m_dist).getOptions())).trim() : m_dist.getClass().getName());
+
+    Collections.addAll(result, super.getOptions());
+
+    return result.toArray(new String[result.size()]);
+  }
+
+    /**
+     * Set the minimum number of neighbors for a core data point.
+     * @param the minimum
+     */
+    public void setMinimum(int min) {
+    	m_min = min;
+    }
+
+    public int getMinimum() {
+    	return m_min;
+    }
+
+    /**
+     * Set the neighborhood radius, 0 to take the knee of the k-distance
+     * graph for the minimum.
+     * @param the radius
+     */
+    public void setRange(double range) {
+    	m_range = range;
+    }
+
+    public double getRange() {
+    	return m_range;
+    }
+
+    /**
+     * Set the largest radius clusterings are read for. The neighbors of
+     * every point within it are held, so memory grows with it.
+     * @param the largest radius
+     */
+    public void setMaxRange(double maxRange) {
+    	m_maxRange = maxRange;
+    }
+
+    public double getMaxRange() {
+    	return m_maxRange;
+    }
+
+    /**
+     * Set the distance function to use
+     * @param the distance function
+     */
+    public void setDistance(SmileDistance dist) {
+    	m_dist = dist;
+    }
+
+    public SmileDistance getDistance() {
+    	return m_dist;
+    }
+
+  /**
+   * Main method for executing this class.
+   *
+   * @param args use -h to list all parameters
+   */
+  public static void main(String[] args) {
+    runClusterer(new DBScanSweep(), args);
+  }
+}
@@ -1,5 +1,6 @@
 package weka.clusterers;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Vector;
@@ -11,10 +12,16 @@ import weka.core.Instances;
 import weka.core.Option;
 import weka.core.WekaPackageClassLoaderManager;
 import weka.core.Utils;
-import weka.filters.Filter;
-import weka.filters.unsupervised.attribute.ReplaceMissingValues;
 
 import smile.clustering.Clustering;
+import smile.clustering.KMeans;
+import smile.math.matrix.DenseMatrix;
+import smile.math.matrix.Matrix;
+import us.hall.weka.smile.BlockedEuclidean;
+import us.hall.weka.smile.SmileEuclideanDistance;
+import us.hall.weka.smile.UnrolledDistance;
+import us.hall.weka.smile.data.InstancesConverter;
+import us.hall.weka.smile.data.InstancesMatrix;
 
 /**
  * <!-- globalinfo-start --> Cluster data using the Smile SpectralClustering algorithm.
@@ -52,9 +59,10 @@ import smile.clustering.Clustering;
 public class SpectralClustering extends RandomizableClusterer {
 
 	/**
-	 * Smile SpectralClustering
+	 * Cluster of each training instance, as Smile SpectralClustering labels
+	 * them
 	 */
-	transient smile.clustering.SpectralClustering m_spectral;
+	transient int[] m_labels;
 	
 	/**
 	 * Assume we step through instances one at a time for clusterInstance
@@ -71,11 +79,6 @@ public class SpectralClustering extends RandomizableClusterer {
    */
   protected int m_NumClusters = 2;
   	
-  /**
-   * replace missing values in training instances.
-   */
-  protected ReplaceMissingValues m_ReplaceMissingFilter;
-
   /**
    * Replace missing values globally?
    */
@@ -104,31 +107,92 @@ public class SpectralClustering extends RandomizableClusterer {
 		// can clusterer handle the data?
 		getCapabilities().testWithFail(data);
 
-		m_ReplaceMissingFilter = new ReplaceMissingValues();
-		Instances instances = new Instances(data);
+		// missing values are replaced while converting, no filtered copy needed
+		InstancesMatrix matrix = InstancesConverter.convert(data,data.numAttributes()-1,!m_dontReplaceMissing);
+		m_labels = cluster(affinity(matrix),m_NumClusters);
+	}
+
+	/**
+	 * The rest of Smile SpectralClustering(data, k, sigma) on its normalized
+	 * affinity matrix: the k leading eigenvectors, their rows unit length,
+	 * clustered by k-means.
+	 *
+	 * @param L the normalized affinity matrix, overwritten
+	 * @param k the number of clusters
+	 * @return the cluster of each point
+	 */
+	static int[] cluster(DenseMatrix L, int k) {
+		if (k < 2) {
+			throw new IllegalArgumentException("Invalid number of clusters: " + k);
+		}
+		L.setSymmetric(true);
+		double[][] Y = L.eigen(k).getEigenVectors().array();
+		for (double[] y : Y) {
+			smile.math.Math.unitize2(y);
+		}
+		return new KMeans(Y,k).getClusterLabel();
+	}
 
-		instances.setClassIndex(-1);		
-		
-		if (!m_dontReplaceMissing) {
-		  m_ReplaceMissingFilter.setInputFormat(instances);
-		  instances = Filter.useFilter(instances, m_ReplaceMissingFilter);
+	/**
+	 * The normalized gaussian affinity matrix Smile computes from the data,
+	 * D^-1/2 W D^-1/2 for the affinities W and their row sums D, built in
+	 * place in one Smile matrix; handing W to Smile as double[][] would
+	 * have it copied into a second. The squared distances are taken a tile
+	 * at a time by the blocked Euclidean engine instead of one pair at a
+	 * time. The diagonal is left zero. Pairs with missing coordinates use
+	 * the direct distance, which skips them.
+	 *
+	 * @param matrix the points
+	 * @return the normalized affinity between each pair of points
+	 */
+	DenseMatrix affinity(InstancesMatrix matrix) {
+		if (m_width <= 0) {
+			throw new IllegalArgumentException("Invalid standard deviation of Gaussian kernel: " + m_width);
 		}
-		Object[] oA = asArrays(data,instances.numAttributes()-1);
-		double[][] idata = (double[][])oA[0];
-		m_spectral = new smile.clustering.SpectralClustering(idata,m_NumClusters,m_width);
+		SmileEuclideanDistance euclidean = new SmileEuclideanDistance();
+		final UnrolledDistance direct = (UnrolledDistance)euclidean.getSmileDistance();
+		final BlockedEuclidean pairs = euclidean.pairwise(matrix);
+		final double[] values = matrix.values();
+		final int d = matrix.numColumns();
+		final int n = matrix.numRows();
+		final DenseMatrix W = Matrix.zeros(n,n);
+		final double gamma = -0.5 / (m_width * m_width);
+		pairs.forEachTile(true, (aFrom, aTo, bFrom, bTo, sq) -> {
+			int w = bTo - bFrom;
+			for (int i = aFrom; i < aTo; i++) {
+				for (int j = bFrom, end = Math.min(i, bTo); j < end; j++) {
+					double s = sq[(i - aFrom) * w + j - bFrom];
+					if (Double.isNaN(s)) {
+						s = direct.d(Arrays.copyOfRange(values, i * d, (i + 1) * d), values, j * d);
+						s *= s;
+					}
+					double a = Math.exp(gamma * s);
+					W.set(i,j,a);
+					W.set(j,i,a);
+				}
+			}
+		});
+		// W is symmetric, so both passes run down columns, which Smile
+		// stores contiguously, and keep the products in Smile's order
+		double[] D = new double[n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				D[i] += W.get(j,i);
+			}
+			D[i] = 1.0 / Math.sqrt(D[i]);
+		}
+		for (int j = 0; j < n; j++) {
+			for (int i = 0; i < n; i++) {
+				double w = W.get(i,j);
+				W.set(i,j,i > j ? D[i] * w * D[j] : D[j] * w * D[i]);
+			}
+		}
+		return W;
 	}
 
 	public int clusterInstance(Instance instance) throws Exception {
 		try {
-			Instance inst = null;
-			if (!m_dontReplaceMissing) {
-			  m_ReplaceMissingFilter.input(instance);
-			  m_ReplaceMissingFilter.batchFinished();
-			  inst = m_ReplaceMissingFilter.output();
-			} else {
-			  inst = instance;
-			}
-			int p = m_spectral.getClusterLabel()[m_instanceIndex];
+			int p = m_labels[m_instanceIndex];
 			m_instanceIndex++;		// Increment instance index
 			if (p == Clustering.OUTLIER) {
 				return 0;
@@ -139,20 +203,27 @@ public class SpectralClustering extends RandomizableClusterer {
 		return 0;
 	}
 
-  public Object[] asArrays(Instances data, int classIndex) {
-  	double dA[][] = new double[data.numInstances()][data.numAttributes()-1 ];
-  	int cA[] = new int[data.numInstances()];
-	for (int i = 0; i < data.numInstances(); i++) {
-		for (int j = 0; j < data.numAttributes(); j++) {
-			if (j == classIndex) {
-				cA[i] = (int)data.instance(i).value(j);
-			}
-			else dA[i][j] = data.instance(i).value(j);
+	/**
+	 * Cluster a whole batch of instances in one call. As with clusterInstance
+	 * the instances are taken to be the training instances, in order, so this
+	 * returns the training labels without touching the data.
+	 *
+	 * @param data the instances to cluster
+	 * @return the cluster of each instance
+	 * @throws Exception if the batch is larger than the training data
+	 */
+	public int[] clusterInstances(Instances data) throws Exception {
+		int[] labels = m_labels;
+		if (data.numInstances() > labels.length) {
+			throw new Exception("Only the " + labels.length + " training instances can be clustered");
 		}
+		int[] p = new int[data.numInstances()];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = labels[i] == Clustering.OUTLIER ? 0 : labels[i];
+		}
+		return p;
 	}
-	return new Object[] {dA, cA};
-  } 
-  	
+
   /**
    * Returns the number of clusters.
    * 
@@ -0,0 +1,166 @@
+package us.hall.weka.smile;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+
+import us.hall.weka.smile.data.FeatureExtractor;
+import us.hall.weka.smile.data.InstancesConverter;
+import weka.classifiers.lazy.KNN;
+import weka.clusterers.DBScan;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Checks that the steady state prediction path allocates nothing:
+ * FeatureExtractor.extract, DBScan.clusterInstance and KNN.classifyInstance
+ * are warmed up, then the bytes the calling thread allocates over further
+ * calls are read from com.sun.management.ThreadMXBean.
+ * <p/>
+ * Covers the grid and vantage point tree core indexes of DBScan with the
+ * voting and parallel modes, and the linear, KD-tree and vantage point tree
+ * searches of KNN, the first also over single precision storage. The cover
+ * tree is Smile's own structure and allocates in Smile, so it is not
+ * checked.
+ * <p/>
+ * Run from the repository root with the classes, Weka and the lib jars on
+ * the class path; exits with status 1 if a check fails:
+ * <pre>
+ * java -cp ... us.hall.weka.smile.AllocationTest [arff]
+ * </pre>
+ *
+ * @author Mike Hall (mik3hall@gmail.com)
+ */
+public class AllocationTest {
+
+  /** Passes over the data before measuring */
+  static final int WARMUP = 20;
+
+  /** Passes over the data measured */
+  static final int PASSES = 5;
+
+  /** Bytes per call still taken as none, for the odd lazy initialization */
+  static final double TOLERANCE = 1.0;
+
+  interface Call {
+    double apply(Instance inst) throws Exception;
+  }
+
+  static final com.sun.management.ThreadMXBean THREADS =
+    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+  static int failures;
+
+  /** Keeps the results alive, so the calls are not optimized away */
+  static volatile double sink;
+
+  public static void main(String[] args) throws Exception {
+    if (!THREADS.isThreadAllocatedMemorySupported()) {
+      System.out.println("Thread allocation counters are not supported, nothing checked");
+      return;
+    }
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+    Instances chameleon = DataSource.read(args.length > 0 ? args[0] : "data/clustering/chameleon/out_t4.8k.arff");
+    Instances blobs = blobs(3000, 8, 3, 42);
+
+    Object[][] clusterings = {
+      { "chameleon", chameleon, "-M 20 -R 10.0" },
+      { "blobs", blobs, "-M 10 -R 3.0" }
+    };
+    for (Object[] c : clusterings) {
+      Instances data = new Instances((Instances)c[1]);
+      data.setClassIndex(-1);
+      FeatureExtractor extractor = new FeatureExtractor(InstancesConverter.convert(data, data.numAttributes() - 1, true));
+      check("FeatureExtractor.extract " + c[0], data, inst -> extractor.extract(inst)[0]);
+      for (String mode : new String[] { "", " -vote", " -parallel" }) {
+        DBScan dbscan = new DBScan();
+        dbscan.setOptions(Utils.splitOptions(c[2] + mode));
+        dbscan.buildClusterer(data);
+        check("DBScan.clusterInstance " + c[0] + mode, data, dbscan::clusterInstance);
+      }
+    }
+
+    for (Instances source : new Instances[] { chameleon, blobs }) {
+      Instances data = new Instances(source);
+      data.setClassIndex(data.numAttributes() - 1);
+      for (String search : new String[] { "auto", "auto -float", "linear", "kdtree", "vptree" }) {
+        KNN knn = new KNN();
+        knn.setOptions(Utils.splitOptions("-K 5 -S " + search));
+        knn.buildClassifier(data);
+        check("KNN.classifyInstance " + data.relationName() + " -S " + search, data, knn::classifyInstance);
+      }
+    }
+
+    System.out.println(failures == 0 ? "OK" : failures + " failed");
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Warms a call up over the data, then measures what it allocates per
+   * instance.
+   */
+  static void check(String name, Instances data, Call call) throws Exception {
+    double sum = 0;
+    for (int p = 0; p < WARMUP; p++) {
+      for (int i = 0; i < data.numInstances(); i++) {
+        sum += call.apply(data.instance(i));
+      }
+    }
+    long thread = Thread.currentThread().getId();
+    long calls = 0;
+    long before = THREADS.getThreadAllocatedBytes(thread);
+    for (int p = 0; p < PASSES; p++) {
+      for (int i = 0; i < data.numInstances(); i++) {
+        sum += call.apply(data.instance(i));
+        calls++;
+      }
+    }
+    long bytes = THREADS.getThreadAllocatedBytes(thread) - before;
+    sink = sum;
+    double perCall = (double)bytes / calls;
+    boolean ok = perCall < TOLERANCE;
+    if (!ok) {
+      failures++;
+    }
+    System.out.printf("%-4s %s: %.2f bytes per call%n", ok ? "ok" : "FAIL", name, perCall);
+  }
+
+  /**
+   * Gaussian blobs with a nominal class, the blob of each point.
+   */
+  static Instances blobs(int n, int d, int k, long seed) {
+    ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+    for (int j = 0; j < d; j++) {
+      attributes.add(new Attribute("a" + j));
+    }
+    ArrayList<String> labels = new ArrayList<String>();
+    for (int c = 0; c < k; c++) {
+      labels.add("c" + c);
+    }
+    attributes.add(new Attribute("class", labels));
+    Instances data = new Instances("blobs", attributes, n);
+    Random random = new Random(seed);
+    double[][] centers = new double[k][d];
+    for (int c = 0; c < k; c++) {
+      for (int j = 0; j < d; j++) {
+        centers[c][j] = random.nextDouble() * 20;
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      int c = random.nextInt(k);
+      double[] values = new double[d + 1];
+      for (int j = 0; j < d; j++) {
+        values[j] = centers[c][j] + random.nextGaussian();
+      }
+      values[d] = c;
+      data.add(new DenseInstance(1.0, values));
+    }
+    return data;
+  }
+}